@@ -0,0 +1,66 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Content for the request loop benchmarks and the LoadGenerator: "/small"
+ * has a known length, "/chunked" does not and is sent in chunked encoding,
+ * and "/binary" is 60 KB of random bytes with a known length, like the
+ * data of MyLibrary in the tests. None is of a type that would be
+ * compressed.
+ *
+ * @author Hannes R.
+ */
+class BenchmarkLibrary implements Library {
+
+	// constants
+	static final String MIMETYPE = "application/octet-stream";
+	static final byte[] SMALL = filled(1024);
+	static final byte[] CHUNKED = filled(16384);
+	static final byte[] BINARY = random(60000);
+
+	@Override
+	public Content getContent(URI uri) throws HttpStatus {
+		String path = uri.getPath();
+		if (path.equals("/small")) return content(SMALL, SMALL.length);
+		if (path.equals("/chunked")) return content(CHUNKED, 0);
+		if (path.equals("/binary")) return content(BINARY, BINARY.length);
+		return null;
+	}
+
+	private static OutContent content(final byte[] data, final int size) {
+		return new OutContent() {
+			@Override
+			public int getDataSize() {
+				return size;
+			}
+
+			@Override
+			public String getMimetype() {
+				return MIMETYPE;
+			}
+
+			@Override
+			public void out(OutputStream stream) throws IOException {
+				stream.write(data);
+			}
+		};
+	}
+
+	private static byte[] filled(int size) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte)'x');
+		return data;
+	}
+
+	private static byte[] random(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+}
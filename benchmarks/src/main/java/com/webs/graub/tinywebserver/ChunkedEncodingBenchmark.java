@@ -0,0 +1,69 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Encoding a body with ChunkedEncodingOutputStream, written in pieces of
+ * the given size, and decoding it with ChunkedEncodingInputStream.
+ *
+ * @author Hannes R.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkedEncodingBenchmark {
+
+	@Param({"1024", "65536"})
+	int mBodySize;
+
+	@Param({"64", "8192"})
+	int mWriteSize;
+
+	byte[] mBody;
+	byte[] mEncoded;
+	byte[] mReadBuffer;
+	DiscardOutputStream mSink;
+
+	@Setup
+	public void setup() throws IOException {
+		mBody = new byte[mBodySize];
+		mReadBuffer = new byte[mWriteSize];
+		mSink = new DiscardOutputStream();
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		write(new ChunkedEncodingOutputStream(encoded));
+		mEncoded = encoded.toByteArray();
+	}
+
+	@Benchmark
+	public long encode() throws IOException {
+		write(new ChunkedEncodingOutputStream(mSink));
+		return mSink.mCount;
+	}
+
+	@Benchmark
+	public long decode() throws IOException {
+		ChunkedEncodingInputStream in = new ChunkedEncodingInputStream(
+				new ByteArrayInputStream(mEncoded));
+		long total = 0;
+		for (int n = in.read(mReadBuffer); n >= 0; n = in.read(mReadBuffer)) {
+			total += n;
+		}
+		return total;
+	}
+
+	private void write(ChunkedEncodingOutputStream out) throws IOException {
+		for (int off = 0; off < mBody.length; off += mWriteSize) {
+			out.write(mBody, off, Math.min(mWriteSize, mBody.length - off));
+		}
+		out.complete();
+	}
+
+}
@@ -0,0 +1,25 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.OutputStream;
+
+/**
+ * Stream that throws away what is written, only counting the bytes, so
+ * that a benchmark measures the writer and not the destination.
+ *
+ * @author Hannes R.
+ */
+class DiscardOutputStream extends OutputStream {
+
+	long mCount;
+
+	@Override
+	public void write(int b) {
+		mCount++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		mCount += len;
+	}
+
+}
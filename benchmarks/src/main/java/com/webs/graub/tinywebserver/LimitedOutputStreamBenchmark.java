@@ -0,0 +1,40 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Writing a body of known length through LimitedOutputStream, in pieces
+ * of the given size.
+ *
+ * @author Hannes R.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LimitedOutputStreamBenchmark {
+
+	static final int BODY_SIZE = 65536;
+
+	@Param({"64", "8192"})
+	int mWriteSize;
+
+	byte[] mBody = new byte[BODY_SIZE];
+	DiscardOutputStream mSink = new DiscardOutputStream();
+
+	@Benchmark
+	public long write() throws IOException {
+		LimitedOutputStream out = new LimitedOutputStream(mSink, BODY_SIZE);
+		for (int off = 0; off < BODY_SIZE; off += mWriteSize) {
+			out.write(mBody, off, Math.min(mWriteSize, BODY_SIZE - off));
+		}
+		out.complete();
+		return mSink.mCount;
+	}
+
+}
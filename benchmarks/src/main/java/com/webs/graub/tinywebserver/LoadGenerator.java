@@ -0,0 +1,617 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Load generator that starts a Server with the BenchmarkLibrary in the
+ * same JVM and drives it over the loopback interface. Any number of
+ * connections are followed by a few selector threads, with keep-alive or
+ * "Connection: close", HTTP/1.1 or 1.0, and pipelining, over a weighted
+ * mix of paths. It reports throughput and latency percentiles. <p>
+ *
+ * With -rate, every connection sends on a fixed schedule, and the latency
+ * of a request is counted from the time it was due, not from the time it
+ * could be written. A server that stalls is then charged for every
+ * request that should have been sent during the stall, as a real
+ * population of clients would see it, instead of the one request that
+ * was waiting ("coordinated omission"). The time from writing a request
+ * to the end of its response is reported as the service time. Without
+ * -rate, connections send as soon as they can, and the two times are the
+ * same; that is good for maximum throughput, but its percentiles hide
+ * stalls. <p>
+ *
+ * The server and the generator share the machine, so the generator
+ * should have fewer threads than there are processors. Every connection
+ * takes two file descriptors of the process. <p>
+ *
+ * Example, 10000 connections at 20000 requests per second in total:
+ * <pre>
+ * java -cp target/benchmarks.jar com.webs.graub.tinywebserver.LoadGenerator -engine NIO -c 10000 -rate 20000
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class LoadGenerator {
+
+	// constants
+	static final String DEFAULT_MIX = "/small:8,/chunked:1,/binary:1";
+	static final String USAGE =
+			"options:\n" +
+			"  -engine BLOCKING|NIO  server engine (BLOCKING)\n" +
+			"  -c N                  connections (64)\n" +
+			"  -threads N            generator threads (processors / 2, 1 to 4)\n" +
+			"  -pipeline N           requests in flight per connection (1)\n" +
+			"  -close                \"Connection: close\", one request per connection\n" +
+			"  -http10               HTTP/1.0 requests; the server closes after each\n" +
+			"  -rate N               requests per second in total; 0 sends as fast as possible (0)\n" +
+			"  -d SECONDS            measured duration (10)\n" +
+			"  -warmup SECONDS       unmeasured time before it (2)\n" +
+			"  -mix PATH:W,...       weighted paths (" + DEFAULT_MIX + ")\n" +
+			"  -suite                a fixed set of scenarios, one line each; other\n" +
+			"                        options apply to all of them";
+	static final String[] SUITE = {
+		"-engine BLOCKING -c 64",
+		"-engine NIO -c 64",
+		"-engine BLOCKING -c 16 -pipeline 16",
+		"-engine NIO -c 16 -pipeline 16",
+		"-engine BLOCKING -c 16 -close",
+		"-engine NIO -c 16 -close",
+		"-engine BLOCKING -c 16 -http10 -mix /small:8,/binary:2",
+		"-engine NIO -c 16 -http10 -mix /small:8,/binary:2",
+		"-engine BLOCKING -c 10000 -rate 20000",
+		"-engine NIO -c 10000 -rate 20000",
+	};
+	static final int READ_BUFFER_SIZE = 65536;
+	static final long RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(10);
+	static final long MAX_SPREAD = TimeUnit.SECONDS.toNanos(1);
+
+	// options
+	Server.Engine mEngine = Server.Engine.BLOCKING;
+	int mConnections = 64;
+	int mThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+	int mPipeline = 1;
+	boolean mKeepAlive = true;
+	boolean mHttp10 = false;
+	long mRate = 0;
+	int mDuration = 10;
+	int mWarmup = 2;
+	String mMix = DEFAULT_MIX;
+
+	// members
+	String[] mPaths;
+	int[] mWeights;
+	int mTotalWeight;
+	byte[][] mRequests;
+	InetSocketAddress mAddress;
+	volatile Result mResult;
+
+	public static void main(String[] args) throws Exception {
+		try {
+			if (indexOf(args, "-suite") >= 0) {
+				suite(args, System.out);
+			} else {
+				LoadGenerator generator = parse(args);
+				generator.run().print(System.out, generator.toString());
+			}
+		} catch (IllegalArgumentException ex) {
+			System.err.println(ex.getMessage());
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Runs the scenarios of SUITE one after another, each with a new
+	 * server, and prints one line for each.
+	 * @param args options that apply to all scenarios, like "-d 5"
+	 */
+	public static void suite(String[] args, PrintStream out) throws IOException, InterruptedException {
+		out.println(String.format("%-58s %9s %8s %8s %8s %8s %8s %7s",
+				"scenario", "req/s", "MB/s", "p50 us", "p99 us", "p99.9 us", "max us", "errors"));
+		for (String scenario : SUITE) {
+			String[] options = scenario.split(" ");
+			String[] all = new String[options.length + args.length];
+			System.arraycopy(options, 0, all, 0, options.length);
+			System.arraycopy(args, 0, all, options.length, args.length);
+			Result result = parse(all).run();
+			out.println(String.format("%-58s %9.0f %8.1f %8d %8d %8d %8d %7d",
+					scenario, result.getThroughput(), result.getMegabytesPerSecond(),
+					result.mLatency.getPercentile(50), result.mLatency.getPercentile(99),
+					result.mLatency.getPercentile(99.9), result.mLatency.getMax(),
+					result.getErrors()));
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException on an unknown option or a bad value
+	 */
+	public static LoadGenerator parse(String[] args) {
+		LoadGenerator generator = new LoadGenerator();
+		for (int i = 0; i < args.length; ++i) {
+			String option = args[i];
+			if (option.equals("-close")) {
+				generator.mKeepAlive = false;
+			} else if (option.equals("-http10")) {
+				generator.mHttp10 = true;
+			} else if (option.equals("-suite")) {
+				// handled by main()
+			} else if (i + 1 < args.length) {
+				String value = args[++i];
+				try {
+					if (option.equals("-engine")) generator.mEngine = Server.Engine.valueOf(value);
+					else if (option.equals("-c")) generator.mConnections = positive(value);
+					else if (option.equals("-threads")) generator.mThreads = positive(value);
+					else if (option.equals("-pipeline")) generator.mPipeline = positive(value);
+					else if (option.equals("-rate")) generator.mRate = Long.parseLong(value);
+					else if (option.equals("-d")) generator.mDuration = positive(value);
+					else if (option.equals("-warmup")) generator.mWarmup = Integer.parseInt(value);
+					else if (option.equals("-mix")) generator.mMix = value;
+					else throw new IllegalArgumentException("Unknown option: " + option);
+				} catch (NumberFormatException ex) {
+					throw new IllegalArgumentException("Bad value for " + option + ": " + value);
+				}
+			} else {
+				throw new IllegalArgumentException("Unknown option or missing value: " + option);
+			}
+		}
+		generator.setMix(generator.mMix);
+		return generator;
+	}
+
+	/**
+	 * Starts the server, runs the warmup and the measured time, and stops
+	 * the server.
+	 * @return the measured part
+	 */
+	public Result run() throws IOException, InterruptedException {
+		Server server = new Server(new BenchmarkLibrary(), 0, mEngine);
+		server.start();
+		Worker[] workers = new Worker[Math.min(mThreads, mConnections)];
+		try {
+			mAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+					server.mListenerSocket.getLocalPort());
+			for (int i = 0; i < workers.length; ++i) {
+				workers[i] = new Worker(i);
+			}
+			// the first requests are spread over one period of the schedule,
+			// or up to a second, so that the connections are not all opened
+			// at once
+			long start = System.nanoTime();
+			long interval = mRate > 0 ? (long)(mConnections * 1e9 / mRate) : 0;
+			long spread = mRate > 0 ? interval : Math.min(TimeUnit.SECONDS.toNanos(mWarmup), MAX_SPREAD);
+			mResult = new Result();
+			for (int i = 0; i < mConnections; ++i) {
+				workers[i % workers.length].mConnections.add(
+						new Connection(workers[i % workers.length], start + spread * i / mConnections, interval));
+			}
+			for (Worker worker : workers) {
+				worker.start();
+			}
+			Thread.sleep(TimeUnit.SECONDS.toMillis(mWarmup));
+			Result result = new Result();
+			mResult = result;
+			Thread.sleep(TimeUnit.SECONDS.toMillis(mDuration));
+			mResult = new Result();
+			result.mEnd = System.nanoTime();
+			return result;
+		} finally {
+			for (Worker worker : workers) {
+				if (worker != null) worker.shutdown();
+			}
+			server.stopServer();
+			server.join(5000);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return mEngine + " engine, " + mConnections + " connections, " +
+				(mHttp10 ? "HTTP/1.0" : mKeepAlive ? "keep-alive" : "Connection: close") +
+				(mPipeline > 1 ? ", pipeline " + mPipeline : "") +
+				(mRate > 0 ? ", " + mRate + " req/s" : ", closed loop") +
+				", " + mThreads + " threads, mix " + mMix;
+	}
+
+	void setMix(String mix) {
+		String[] entries = mix.split(",");
+		mPaths = new String[entries.length];
+		mWeights = new int[entries.length];
+		mRequests = new byte[entries.length][];
+		mTotalWeight = 0;
+		for (int i = 0; i < entries.length; ++i) {
+			int colon = entries[i].lastIndexOf(':');
+			mPaths[i] = colon < 0 ? entries[i] : entries[i].substring(0, colon);
+			if (!mPaths[i].startsWith("/")) throw new IllegalArgumentException("Bad path: " + mPaths[i]);
+			try {
+				mWeights[i] = colon < 0 ? 1 : positive(entries[i].substring(colon + 1));
+			} catch (NumberFormatException ex) {
+				throw new IllegalArgumentException("Bad weight: " + entries[i]);
+			}
+			mTotalWeight += mWeights[i];
+			mRequests[i] = ResponseHead.ascii("GET " + mPaths[i] +
+					(mHttp10 ? " HTTP/1.0" : " HTTP/1.1") + "\r\nHost: localhost\r\n" +
+					(mKeepAlive || mHttp10 ? "" : "Connection: close\r\n") + "\r\n");
+		}
+	}
+
+	// the server closes the connection after every response to these
+	private boolean isOneShot() {
+		return !mKeepAlive || mHttp10;
+	}
+
+	private int getDepth() {
+		return isOneShot() ? 1 : mPipeline;
+	}
+
+	private static int positive(String value) {
+		int n = Integer.parseInt(value);
+		if (n <= 0) throw new NumberFormatException();
+		return n;
+	}
+
+	private static int indexOf(String[] args, String option) {
+		for (int i = 0; i < args.length; ++i) {
+			if (args[i].equals(option)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts and times of one phase of a run. Times are in microseconds.
+	 */
+	public static class Result {
+
+		// members
+		final long mStart = System.nanoTime();
+		long mEnd;
+		final Metrics.Histogram mLatency = new Metrics.Histogram();
+		final Metrics.Histogram mServiceTime = new Metrics.Histogram();
+		final LongAdder mResponses = new LongAdder();
+		final LongAdder mFailed = new LongAdder();
+		final LongAdder mConnects = new LongAdder();
+		final LongAdder mBytes = new LongAdder();
+		// by the first digit of the status code
+		final LongAdder[] mStatusClasses = new LongAdder[6];
+		{
+			for (int i = 0; i < mStatusClasses.length; ++i) mStatusClasses[i] = new LongAdder();
+		}
+
+		void record(int status, long latencyNanos, long serviceNanos) {
+			mResponses.increment();
+			mStatusClasses[Math.min(Math.max(status / 100, 0), 5)].increment();
+			mLatency.recordNanos(latencyNanos);
+			mServiceTime.recordNanos(serviceNanos);
+		}
+
+		public double getSeconds() {
+			return (mEnd - mStart) / 1e9;
+		}
+
+		public double getThroughput() {
+			return mResponses.sum() / getSeconds();
+		}
+
+		public double getMegabytesPerSecond() {
+			return mBytes.sum() / getSeconds() / 1e6;
+		}
+
+		/**
+		 * @return requests that failed with an I/O error, and responses
+		 *         with 4xx or 5xx status
+		 */
+		public long getErrors() {
+			return mFailed.sum() + mStatusClasses[4].sum() + mStatusClasses[5].sum();
+		}
+
+		public Metrics.Histogram getLatency() {
+			return mLatency;
+		}
+
+		public Metrics.Histogram getServiceTime() {
+			return mServiceTime;
+		}
+
+		public void print(PrintStream out, String title) {
+			out.println(title);
+			out.println(String.format("  %d responses in %.1f s: %.0f req/s, %.1f MB/s received, %d connections opened",
+					mResponses.sum(), getSeconds(), getThroughput(), getMegabytesPerSecond(), mConnects.sum()));
+			out.println(String.format("  status 2xx %d, 3xx %d, 4xx %d, 5xx %d; %d requests failed",
+					mStatusClasses[2].sum(), mStatusClasses[3].sum(), mStatusClasses[4].sum(),
+					mStatusClasses[5].sum(), mFailed.sum()));
+			out.println(String.format("  %-14s %8s %8s %8s %8s %8s %8s", "(us)",
+					"p50", "p90", "p99", "p99.9", "p99.99", "max"));
+			printPercentiles(out, "latency", mLatency);
+			printPercentiles(out, "service time", mServiceTime);
+		}
+
+		private static void printPercentiles(PrintStream out, String name, Metrics.Histogram histogram) {
+			out.println(String.format("  %-14s %8d %8d %8d %8d %8d %8d", name,
+					histogram.getPercentile(50), histogram.getPercentile(90),
+					histogram.getPercentile(99), histogram.getPercentile(99.9),
+					histogram.getPercentile(99.99), histogram.getMax()));
+		}
+
+	}
+
+	/**
+	 * Thread with a Selector that follows its share of the connections.
+	 * Connections that may send are kept in a queue by the time their
+	 * next request is due.
+	 */
+	class Worker extends Thread {
+
+		// members
+		final Selector mSelector;
+		final ArrayList<Connection> mConnections = new ArrayList<Connection>();
+		final PriorityQueue<Connection> mDue = new PriorityQueue<Connection>(16, new Comparator<Connection>() {
+			@Override
+			public int compare(Connection a, Connection b) {
+				return Long.compare(a.mQueuedAt, b.mQueuedAt);
+			}
+		});
+		final ByteBuffer mReadBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		volatile boolean mRunning = true;
+
+		Worker(int index) throws IOException {
+			super("LoadGenerator-" + index);
+			this.mSelector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (Connection connection : mConnections) {
+					schedule(connection);
+				}
+				while (mRunning) {
+					long now = System.nanoTime();
+					while (!mDue.isEmpty() && mDue.peek().mQueuedAt <= now) {
+						Connection connection = mDue.poll();
+						connection.mQueued = false;
+						connection.issue(now);
+						schedule(connection);
+					}
+					// the last millisecond before a request is due is spun,
+					// the sleep of select() is not more precise than that
+					long wait = mDue.isEmpty() ? TimeUnit.MILLISECONDS.toNanos(100) : mDue.peek().mQueuedAt - now;
+					long millis = TimeUnit.NANOSECONDS.toMillis(wait);
+					if (millis > 0) {
+						mSelector.select(millis);
+					} else {
+						mSelector.selectNow();
+					}
+					now = System.nanoTime();
+					Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						((Connection)key.attachment()).ready(key, now);
+					}
+				}
+			} catch (IOException ex) {
+				ex.printStackTrace();
+			} finally {
+				for (Connection connection : mConnections) {
+					connection.close();
+				}
+				try {
+					mSelector.close();
+				} catch (IOException ex) {
+					// nothing to do
+				}
+			}
+		}
+
+		/**
+		 * Queues a connection that may send more requests.
+		 */
+		void schedule(Connection connection) {
+			if (!connection.mQueued && connection.getOutstanding() < getDepth()) {
+				connection.mQueued = true;
+				connection.mQueuedAt = Math.max(connection.mNext, connection.mRetryAt);
+				mDue.add(connection);
+			}
+		}
+
+		void shutdown() throws InterruptedException {
+			mRunning = false;
+			mSelector.wakeup();
+			join();
+		}
+
+	}
+
+	/**
+	 * One client connection, reopened when the server closes it. The
+	 * requests in flight are kept in a ring with the time each was due
+	 * and the time it was written.
+	 */
+	class Connection {
+
+		// members
+		final Worker mWorker;
+		final ResponseScanner mScanner = new ResponseScanner();
+		final long[] mDueTimes = new long[getDepth()];
+		final long[] mSentTimes = new long[getDepth()];
+		final ByteBuffer mOut;
+		final long mInterval;
+		SocketChannel mChannel;
+		SelectionKey mKey;
+		long mNext;
+		long mRetryAt;
+		long mQueuedAt;
+		int mHead;
+		int mTail;
+		boolean mQueued;
+		int mRandom;
+
+		/**
+		 * @param first when the first request is due
+		 * @param interval time between requests, 0 for as fast as possible
+		 */
+		Connection(Worker worker, long first, long interval) {
+			this.mWorker = worker;
+			this.mNext = first;
+			this.mInterval = interval;
+			this.mRandom = (int)first | 1;
+			int longest = 0;
+			for (byte[] request : mRequests) longest = Math.max(longest, request.length);
+			this.mOut = ByteBuffer.allocate(longest * getDepth());
+		}
+
+		int getOutstanding() {
+			return mTail - mHead;
+		}
+
+		/**
+		 * Writes the requests that are due, as many as fit in the pipeline.
+		 */
+		void issue(long now) {
+			if (mRetryAt > now) return;
+			while (getOutstanding() < mDueTimes.length && mNext <= now) {
+				if (mChannel == null && !open(now)) return;
+				mOut.put(mRequests[pick()]);
+				int slot = mTail % mDueTimes.length;
+				mDueTimes[slot] = mInterval > 0 ? mNext : now;
+				mSentTimes[slot] = now;
+				mTail++;
+				mNext += mInterval;
+			}
+			flush(now);
+		}
+
+		void ready(SelectionKey key, long now) {
+			if (key.isValid() && key.isConnectable()) connected(now);
+			if (key.isValid() && key.isReadable()) read(now);
+			if (key.isValid() && key.isWritable()) flush(now);
+		}
+
+		void close() {
+			if (mChannel == null) return;
+			try {
+				mChannel.close();
+			} catch (IOException ex) {
+				// nothing to do
+			}
+			mChannel = null;
+			mKey = null;
+			mScanner.reset();
+			mOut.clear();
+		}
+
+		private boolean open(long now) {
+			try {
+				mChannel = SocketChannel.open();
+				mChannel.configureBlocking(false);
+				mChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+				mResult.mConnects.increment();
+				boolean connected = mChannel.connect(mAddress);
+				mKey = mChannel.register(mWorker.mSelector, connected ? SelectionKey.OP_READ : SelectionKey.OP_CONNECT, this);
+				return true;
+			} catch (IOException ex) {
+				fail(now);
+				return false;
+			}
+		}
+
+		private void connected(long now) {
+			try {
+				mChannel.finishConnect();
+				mKey.interestOps(SelectionKey.OP_READ);
+				flush(now);
+			} catch (IOException ex) {
+				fail(now);
+			}
+		}
+
+		private void flush(long now) {
+			if (mChannel == null || !mChannel.isConnected()) return;
+			try {
+				mOut.flip();
+				mChannel.write(mOut);
+				mOut.compact();
+				mKey.interestOps(mOut.position() > 0 ?
+						SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+			} catch (IOException ex) {
+				fail(now);
+			}
+		}
+
+		private void read(long now) {
+			ByteBuffer buf = mWorker.mReadBuffer;
+			buf.clear();
+			try {
+				int n = mChannel.read(buf);
+				if (n < 0) {
+					if (mScanner.eof()) complete(now);
+					if (mChannel == null) return;
+					if (getOutstanding() > 0) throw new EOFException();
+					close();
+					mWorker.schedule(this);
+					return;
+				}
+				mResult.mBytes.add(n);
+				buf.flip();
+				while (mChannel != null && mScanner.scan(buf)) {
+					complete(now);
+				}
+			} catch (IOException ex) {
+				fail(now);
+			}
+		}
+
+		private void complete(long now) throws IOException {
+			if (getOutstanding() == 0) throw new IOException("Response without a request");
+			int slot = mHead % mDueTimes.length;
+			mResult.record(mScanner.getStatus(), now - mDueTimes[slot], now - mSentTimes[slot]);
+			mHead++;
+			if (mScanner.isClose() || isOneShot()) {
+				// requests written after this one are lost
+				mResult.mFailed.add(getOutstanding());
+				mHead = mTail;
+				close();
+			}
+			mWorker.schedule(this);
+		}
+
+		// the requests in flight fail; the next ones wait a little, but
+		// remain due from their time in the schedule
+		private void fail(long now) {
+			mResult.mFailed.add(Math.max(getOutstanding(), 1));
+			mHead = mTail;
+			close();
+			mRetryAt = now + RETRY_DELAY;
+			mWorker.schedule(this);
+		}
+
+		// a path of the mix, by weight
+		private int pick() {
+			mRandom ^= mRandom << 13;
+			mRandom ^= mRandom >>> 17;
+			mRandom ^= mRandom << 5;
+			int r = (mRandom & Integer.MAX_VALUE) % mTotalWeight;
+			for (int i = 0; i < mWeights.length; ++i) {
+				r -= mWeights[i];
+				if (r < 0) return i;
+			}
+			return 0;
+		}
+
+	}
+
+}
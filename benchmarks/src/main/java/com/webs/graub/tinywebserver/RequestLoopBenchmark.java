@@ -0,0 +1,61 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One keep-alive request, served in memory the way a Session serves it:
+ * the head is parsed, the handler gets the content from the library and
+ * writes the response to the connection's output stream, which is then
+ * flushed. No sockets are involved, so with "-prof gc" the allocation
+ * rate is what the server itself allocates per request.
+ *
+ * @author Hannes R.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestLoopBenchmark {
+
+	@Param({"/small", "/chunked"})
+	String mPath;
+
+	byte[] mRequest;
+	RequestParser mParser;
+	DiscardOutputStream mSink;
+	ConnectionOutputStream mOut;
+	RequestHandler mHandler;
+
+	@Setup
+	public void setup() {
+		mRequest = ResponseHead.ascii("GET " + mPath + " HTTP/1.1\r\n"
+				+ "Host: localhost\r\nAccept-Encoding: gzip\r\n\r\n");
+		mParser = new RequestParser();
+		mSink = new DiscardOutputStream();
+		mOut = new ConnectionOutputStream(mSink, null);
+		mHandler = new RequestHandler(new BenchmarkLibrary(), mOut);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mOut.release();
+		mParser.release();
+	}
+
+	@Benchmark
+	public long request() throws IOException {
+		mParser.reset();
+		mParser.parse(mRequest, 0, mRequest.length);
+		HttpRequest request = new HttpRequest();
+		mParser.fill(request);
+		mHandler.handle(request);
+		mOut.flush();
+		return mSink.mCount;
+	}
+
+}
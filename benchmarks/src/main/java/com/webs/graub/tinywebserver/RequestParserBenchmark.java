@@ -0,0 +1,72 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Parsing request heads into HttpRequests: from an array, as the
+ * NioConnection does, and from a ConnectionInputStream, as the Session
+ * does.
+ *
+ * @author Hannes R.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestParserBenchmark {
+
+	static final String MINIMAL = "GET / HTTP/1.1\r\nHost: localhost\r\n\r\n";
+	static final String BROWSER = "GET /static/css/site.css?v=42 HTTP/1.1\r\n"
+			+ "Host: www.example.com\r\n"
+			+ "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+			+ "Accept: text/css,*/*;q=0.1\r\n"
+			+ "Accept-Language: en-US,en;q=0.5\r\n"
+			+ "Accept-Encoding: gzip, deflate, br\r\n"
+			+ "Referer: https://www.example.com/\r\n"
+			+ "Connection: keep-alive\r\n"
+			+ "If-None-Match: \"5f3a-4d2\"\r\n"
+			+ "Cache-Control: max-age=0\r\n"
+			+ "\r\n";
+
+	@Param({"minimal", "browser"})
+	String mRequest;
+
+	byte[] mBytes;
+	RequestParser mParser;
+	ByteArrayInputStream mSource;
+	ConnectionInputStream mIn;
+
+	@Setup
+	public void setup() {
+		mBytes = ResponseHead.ascii(mRequest.equals("minimal") ? MINIMAL : BROWSER);
+		mParser = new RequestParser();
+		mSource = new ByteArrayInputStream(mBytes);
+		mIn = new ConnectionInputStream(mSource);
+	}
+
+	@Benchmark
+	public HttpRequest parseArray() {
+		mParser.reset();
+		mParser.parse(mBytes, 0, mBytes.length);
+		HttpRequest request = new HttpRequest();
+		mParser.fill(request);
+		return request;
+	}
+
+	@Benchmark
+	public HttpRequest parseStream() throws IOException {
+		mSource.reset();
+		mParser.reset();
+		mParser.parse(mIn);
+		HttpRequest request = new HttpRequest();
+		mParser.fill(request);
+		return request;
+	}
+
+}
@@ -0,0 +1,53 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Rendering response heads: the head of a file response, as the
+ * RequestHandler writes it, and a complete error response.
+ *
+ * @author Hannes R.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseHeadBenchmark {
+
+	ResponseHead mHead = new ResponseHead();
+	DiscardOutputStream mSink = new DiscardOutputStream();
+	RequestHandler mHandler = new RequestHandler(new BenchmarkLibrary(), mSink);
+	HttpRequest mRequest = new HttpRequest();
+	HttpStatus mNotFound = new HttpStatus(HttpStatus.NOT_FOUND);
+
+	@Setup
+	public void setup() {
+		mRequest.setRequestLine(Http.GET, RequestParser.ROOT, RequestParser.HTTP1_1,
+				Http.Version.HTTP1_1);
+	}
+
+	@Benchmark
+	public long fileHead() throws IOException {
+		mHead.start(RequestParser.HTTP1_1, RequestHandler.STATUS_OK);
+		mHead.line(ResponseHead.ACCEPT_RANGES_LINE);
+		mHead.header(ResponseHead.ETAG, "\"5f3a-4d2\"");
+		mHead.header(ResponseHead.LAST_MODIFIED, "Sat, 17 Oct 2026 10:00:00 GMT");
+		mHead.header(ResponseHead.CONTENT_TYPE, "text/css");
+		mHead.header(ResponseHead.CONTENT_LENGTH, 24562);
+		mHead.end();
+		mHead.writeTo(mSink);
+		return mSink.mCount;
+	}
+
+	@Benchmark
+	public long errorResponse() throws IOException {
+		mHandler.errorResponse(mRequest, mNotFound);
+		return mSink.mCount;
+	}
+
+}
@@ -0,0 +1,242 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental reader of HTTP responses for the load generator. It takes
+ * whatever bytes have arrived and tells when a response is complete,
+ * without allocating, so one thread can follow thousands of connections.
+ * The body is skipped, only its length is counted. Bodies delimited by
+ * Content-Length, chunked encoding or the end of the connection are
+ * understood; interim "1xx" responses are skipped.
+ *
+ * @author Hannes R.
+ */
+class ResponseScanner {
+
+	// constants
+	static final int MAX_LINE = 1024;
+	static final byte[] HTTP_1 = ResponseHead.ascii("HTTP/1.");
+	static final byte[] CONTENT_LENGTH = ResponseHead.ascii("content-length:");
+	static final byte[] TRANSFER_ENCODING = ResponseHead.ascii("transfer-encoding:");
+	static final byte[] CONNECTION = ResponseHead.ascii("connection:");
+	static final byte[] CLOSE = ResponseHead.ascii("close");
+	static final byte[] KEEP_ALIVE = ResponseHead.ascii("keep-alive");
+
+	// states
+	static final int STATUS = 0;
+	static final int HEADER = 1;
+	static final int LENGTH_BODY = 2;
+	static final int CHUNK_SIZE = 3;
+	static final int CHUNK_DATA = 4;
+	static final int CHUNK_END = 5;
+	static final int TRAILER = 6;
+	static final int CLOSE_BODY = 7;
+
+	// members
+	byte[] mLine = new byte[MAX_LINE];
+	int mLineLength;
+	boolean mLineComplete;
+	int mState = STATUS;
+	int mStatus;
+	long mContentLength;
+	boolean mChunked;
+	boolean mClose;
+	long mRemaining;
+	long mBodyBytes;
+
+	/**
+	 * Consumes bytes up to the end of one response.
+	 * @return true if a response was completed; the rest of the buffer
+	 *         may hold the next one
+	 */
+	boolean scan(ByteBuffer buf) throws IOException {
+		while (buf.hasRemaining()) {
+			if (mState == LENGTH_BODY || mState == CHUNK_DATA || mState == CLOSE_BODY) {
+				int n = (int)Math.min(buf.remaining(), mRemaining);
+				buf.position(buf.position() + n);
+				mRemaining -= n;
+				mBodyBytes += n;
+				if (mRemaining == 0) {
+					if (mState == LENGTH_BODY) return finish();
+					mState = CHUNK_END;
+				}
+			} else if (line(buf) && processLine()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Tells that the connection was closed by the server.
+	 * @return true if this completed a response whose body ended with
+	 *         the connection
+	 */
+	boolean eof() {
+		return mState == CLOSE_BODY && finish();
+	}
+
+	/**
+	 * @return true if no part of a response has been seen since the last
+	 *         complete one
+	 */
+	boolean isIdle() {
+		return mState == STATUS && mLineLength == 0;
+	}
+
+	void reset() {
+		mState = STATUS;
+		mLineLength = 0;
+		mLineComplete = false;
+	}
+
+	/**
+	 * @return status code of the last response
+	 */
+	int getStatus() {
+		return mStatus;
+	}
+
+	/**
+	 * @return true if the server closes the connection after the last
+	 *         response
+	 */
+	boolean isClose() {
+		return mClose;
+	}
+
+	/**
+	 * @return number of body bytes of the last response, without the
+	 *         chunk framing
+	 */
+	long getBodyBytes() {
+		return mBodyBytes;
+	}
+
+	// collects a line into mLine, without CRLF; true when it is complete
+	private boolean line(ByteBuffer buf) {
+		if (mLineComplete) {
+			mLineLength = 0;
+			mLineComplete = false;
+		}
+		while (buf.hasRemaining()) {
+			byte b = buf.get();
+			if (b == '\n') {
+				if (mLineLength > 0 && mLine[mLineLength-1] == '\r') mLineLength--;
+				mLineComplete = true;
+				return true;
+			}
+			// overlong lines are cut, only their start matters here
+			if (mLineLength < MAX_LINE) mLine[mLineLength++] = b;
+		}
+		return false;
+	}
+
+	// true if the line completed a response
+	private boolean processLine() throws IOException {
+		switch (mState) {
+		case STATUS:
+			// "HTTP/1.1 200 OK"
+			if (mLineLength < 12 || !startsWith(HTTP_1, false)) {
+				throw new IOException("Bad status line: " + new String(mLine, 0, mLineLength, "ISO-8859-1"));
+			}
+			mStatus = (mLine[9] - '0') * 100 + (mLine[10] - '0') * 10 + (mLine[11] - '0');
+			mClose = mLine[7] == '0';
+			mContentLength = -1;
+			mChunked = false;
+			mBodyBytes = 0;
+			mState = HEADER;
+			return false;
+		case HEADER:
+			if (mLineLength > 0) {
+				header();
+				return false;
+			}
+			if (mStatus >= 100 && mStatus < 200) {
+				mState = STATUS;
+				return false;
+			}
+			if (mStatus == 204 || mStatus == 304) return finish();
+			if (mChunked) {
+				mState = CHUNK_SIZE;
+			} else if (mContentLength >= 0) {
+				if (mContentLength == 0) return finish();
+				mRemaining = mContentLength;
+				mState = LENGTH_BODY;
+			} else {
+				mRemaining = Long.MAX_VALUE;
+				mClose = true;
+				mState = CLOSE_BODY;
+			}
+			return false;
+		case CHUNK_SIZE:
+			long size = 0;
+			for (int i = 0; i < mLineLength && mLine[i] != ';'; ++i) {
+				int digit = Character.digit(mLine[i], 16);
+				if (digit < 0) throw new IOException("Bad chunk size");
+				size = size * 16 + digit;
+			}
+			if (size == 0) {
+				mState = TRAILER;
+			} else {
+				mRemaining = size;
+				mState = CHUNK_DATA;
+			}
+			return false;
+		case CHUNK_END:
+			if (mLineLength != 0) throw new IOException("Missing CRLF after chunk");
+			mState = CHUNK_SIZE;
+			return false;
+		case TRAILER:
+			return mLineLength == 0 && finish();
+		default:
+			throw new IllegalStateException();
+		}
+	}
+
+	private void header() {
+		if (startsWith(CONTENT_LENGTH, true)) {
+			long length = 0;
+			for (int i = CONTENT_LENGTH.length; i < mLineLength; ++i) {
+				if (mLine[i] >= '0' && mLine[i] <= '9') length = length * 10 + (mLine[i] - '0');
+			}
+			mContentLength = length;
+		} else if (startsWith(TRANSFER_ENCODING, true)) {
+			mChunked = true;
+		} else if (startsWith(CONNECTION, true)) {
+			if (contains(CLOSE)) mClose = true;
+			else if (contains(KEEP_ALIVE)) mClose = false;
+		}
+	}
+
+	private boolean finish() {
+		reset();
+		return true;
+	}
+
+	private boolean startsWith(byte[] prefix, boolean ignoreCase) {
+		if (mLineLength < prefix.length) return false;
+		for (int i = 0; i < prefix.length; ++i) {
+			byte b = mLine[i];
+			if (ignoreCase && b >= 'A' && b <= 'Z') b += 'a' - 'A';
+			if (b != prefix[i]) return false;
+		}
+		return true;
+	}
+
+	private boolean contains(byte[] word) {
+		outer:
+		for (int i = 0; i + word.length <= mLineLength; ++i) {
+			for (int j = 0; j < word.length; ++j) {
+				byte b = mLine[i + j];
+				if (b >= 'A' && b <= 'Z') b += 'a' - 'A';
+				if (b != word[j]) continue outer;
+			}
+			return true;
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * End-to-end requests over one keep-alive connection to a server in the
+ * same JVM, on the loopback interface, with either engine. This measures
+ * latency; "-prof gc" only sees the allocation of the client thread,
+ * which reads the response without allocating. The server's allocation
+ * per request is measured by RequestLoopBenchmark.
+ *
+ * @author Hannes R.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocketLoopBenchmark {
+
+	static final byte[] CONTENT_LENGTH = ResponseHead.ascii(Http.CONTENT_LENGTH + ": ");
+	static final byte[] TRANSFER_ENCODING = ResponseHead.ascii(Http.TRANSFER_ENCODING + ": ");
+
+	@Param({"BLOCKING", "NIO"})
+	Server.Engine mEngine;
+
+	@Param({"/small", "/chunked"})
+	String mPath;
+
+	Server mServer;
+	Socket mSocket;
+	OutputStream mOut;
+	InputStream mIn;
+	byte[] mRequest;
+	byte[] mLine = new byte[1024];
+	byte[] mBuf = new byte[65536];
+
+	@Setup
+	public void start() throws IOException, InterruptedException {
+		mServer = new Server(new BenchmarkLibrary(), 0, mEngine);
+		mServer.start();
+		mSocket = new Socket(InetAddress.getLoopbackAddress(), mServer.mListenerSocket.getLocalPort());
+		mSocket.setTcpNoDelay(true);
+		mOut = mSocket.getOutputStream();
+		mIn = new BufferedInputStream(mSocket.getInputStream(), 65536);
+		mRequest = ResponseHead.ascii("GET " + mPath + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	}
+
+	@TearDown
+	public void stop() throws IOException, InterruptedException {
+		mSocket.close();
+		mServer.stopServer();
+		mServer.join(5000);
+	}
+
+	@Benchmark
+	public long request() throws IOException {
+		mOut.write(mRequest);
+		mOut.flush();
+		return readResponse();
+	}
+
+	/**
+	 * Reads the head and the body of a response.
+	 * @return number of body bytes
+	 */
+	private long readResponse() throws IOException {
+		long length = -1;
+		boolean chunked = false;
+		int len;
+		while ((len = readLine()) > 0) {
+			if (startsWith(CONTENT_LENGTH, len)) {
+				length = 0;
+				for (int i = CONTENT_LENGTH.length; i < len; ++i) {
+					length = length * 10 + (mLine[i] - '0');
+				}
+			} else if (startsWith(TRANSFER_ENCODING, len)) {
+				chunked = true;
+			}
+		}
+		if (chunked) {
+			// reads up to the end of the last chunk, not further
+			InputStream body = new ChunkedEncodingInputStream(mIn);
+			long total = 0;
+			for (int n = body.read(mBuf); n >= 0; n = body.read(mBuf)) {
+				total += n;
+			}
+			return total;
+		}
+		for (long remaining = length; remaining > 0; ) {
+			int n = mIn.read(mBuf, 0, (int)Math.min(remaining, mBuf.length));
+			if (n < 0) throw new EOFException("Connection closed inside the body");
+			remaining -= n;
+		}
+		return length;
+	}
+
+	// a line into mLine, without CRLF; returns its length
+	private int readLine() throws IOException {
+		int len = 0;
+		for (int b = mIn.read(); b != '\n'; b = mIn.read()) {
+			if (b < 0) throw new EOFException("Connection closed inside the head");
+			if (len < mLine.length) mLine[len++] = (byte)b;
+		}
+		if (len > 0 && mLine[len-1] == '\r') len--;
+		return len;
+	}
+
+	private boolean startsWith(byte[] prefix, int len) {
+		if (len < prefix.length) return false;
+		for (int i = 0; i < prefix.length; ++i) {
+			if (mLine[i] != prefix[i]) return false;
+		}
+		return true;
+	}
+
+}
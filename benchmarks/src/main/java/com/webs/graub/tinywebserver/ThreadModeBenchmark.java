@@ -0,0 +1,172 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Compares platform threads and virtual threads as session executors.
+ * Opens a number of keep-alive connections, keeps them all open and
+ * measures request latency over them. Virtual threads are skipped when
+ * the JVM does not have them. Unlike the JMH benchmarks this runs as a
+ * plain main(), since it needs thousands of sockets open at once. <p>
+ *
+ * Usage: ThreadModeBenchmark [connections] [requests] [client threads]
+ *
+ * @author Hannes R.
+ */
+public class ThreadModeBenchmark {
+
+	static final byte[] REQUEST = ResponseHead.ascii("GET /small HTTP/1.1\r\nHost: localhost\r\n\r\n");
+	static final byte[] LAST_REQUEST = ResponseHead.ascii("GET /small HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+	static final byte[] CONTENT_LENGTH = ResponseHead.ascii(Http.CONTENT_LENGTH + ": ");
+
+	public static void main(String[] args) throws Exception {
+		int connections = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+		int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+
+		run("platform", null, connections, requests, clients);
+
+		ExecutorService virtual;
+		try {
+			virtual = Server.newVirtualThreadExecutor();
+		} catch (UnsupportedOperationException ex) {
+			System.out.println("virtual: skipped (" + ex.getMessage() + ")");
+			return;
+		}
+		run("virtual", virtual, connections, requests, clients);
+		virtual.shutdown();
+	}
+
+	static void run(String name, ExecutorService executor, int connections,
+			int requests, int clients) throws Exception {
+		Server server = new Server(new BenchmarkLibrary(), 0);
+		if (executor != null) server.setExecutor(executor);
+		server.start();
+		int port = server.mListenerSocket.getLocalPort();
+
+		// open all connections and make sure each has a session running
+		int threadsBefore = ManagementFactory.getThreadMXBean().getThreadCount();
+		final Connection[] conns = new Connection[connections];
+		for (int i=0; i<connections; ++i) {
+			conns[i] = new Connection(port);
+			conns[i].request();
+		}
+		int threadsDuring = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		// measure latency with a fixed number of client threads, each
+		// cycling over its own share of the open connections
+		final long[] latencies = new long[requests];
+		final int perClient = requests / clients;
+		final int clientCount = clients;
+		Thread[] workers = new Thread[clients];
+		long start = System.nanoTime();
+		for (int c=0; c<clients; ++c) {
+			final int client = c;
+			workers[c] = new Thread() {
+				public void run() {
+					try {
+						int conn = client;
+						for (int i=0; i<perClient; ++i) {
+							long t0 = System.nanoTime();
+							conns[conn].request();
+							latencies[client*perClient + i] = System.nanoTime() - t0;
+							conn += clientCount;
+							if (conn >= conns.length) conn = client;
+						}
+					} catch (IOException ex) {
+						ex.printStackTrace();
+					}
+				}
+			};
+			workers[c].start();
+		}
+		for (Thread w : workers) w.join();
+		long elapsed = System.nanoTime() - start;
+
+		for (Connection conn : conns) conn.close();
+		server.stopServer();
+		server.join();
+
+		long[] measured = Arrays.copyOf(latencies, perClient*clients);
+		Arrays.sort(measured);
+		System.out.println(name + ": connections=" + connections
+				+ " jvmThreads=" + threadsDuring + " (+" + (threadsDuring-threadsBefore) + ")"
+				+ " req/s=" + (long)(measured.length / (elapsed / 1e9))
+				+ " p50=" + percentile(measured, 50) + "us"
+				+ " p99=" + percentile(measured, 99) + "us"
+				+ " max=" + measured[measured.length-1]/1000 + "us");
+	}
+
+	static long percentile(long[] sorted, int p) {
+		int index = (int)Math.ceil(sorted.length * p / 100.0) - 1;
+		return sorted[Math.max(index, 0)] / 1000;
+	}
+
+	static class Connection {
+		Socket mSocket;
+		BufferedInputStream mIn;
+		OutputStream mOut;
+		byte[] mLine = new byte[1024];
+
+		Connection(int port) throws IOException {
+			mSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+			mIn = new BufferedInputStream(mSocket.getInputStream());
+			mOut = mSocket.getOutputStream();
+		}
+
+		void request() throws IOException {
+			request(REQUEST);
+		}
+
+		// BenchmarkLibrary's "/small" always has a Content-Length
+		void request(byte[] request) throws IOException {
+			mOut.write(request);
+			mOut.flush();
+			long length = 0;
+			int len;
+			while ((len = readLine()) > 0) {
+				if (startsWith(CONTENT_LENGTH, len)) {
+					for (int i = CONTENT_LENGTH.length; i < len; ++i) {
+						length = length * 10 + (mLine[i] - '0');
+					}
+				}
+			}
+			for (long remaining = length; remaining > 0; --remaining) {
+				if (mIn.read() < 0) throw new EOFException("Connection closed inside the body");
+			}
+		}
+
+		// a line into mLine, without CRLF; returns its length
+		private int readLine() throws IOException {
+			int len = 0;
+			for (int b = mIn.read(); b != '\n'; b = mIn.read()) {
+				if (b < 0) throw new EOFException("Connection closed inside the head");
+				if (len < mLine.length) mLine[len++] = (byte)b;
+			}
+			if (len > 0 && mLine[len-1] == '\r') len--;
+			return len;
+		}
+
+		private boolean startsWith(byte[] prefix, int len) {
+			if (len < prefix.length) return false;
+			for (int i = 0; i < prefix.length; ++i) {
+				if (mLine[i] != prefix[i]) return false;
+			}
+			return true;
+		}
+
+		void close() throws IOException {
+			request(LAST_REQUEST);
+			mSocket.close();
+		}
+	}
+
+}
@@ -0,0 +1,50 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Util.readLine() and Util.readHeaders(), which read a response head one
+ * byte at a time.
+ *
+ * @author Hannes R.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilBenchmark {
+
+	static final byte[] HEAD = ResponseHead.ascii("HTTP/1.1 200 OK\r\n"
+			+ "Server: TinyWebServer (graub.webs.com)\r\n"
+			+ "Date: Sun, 18 Oct 2026 10:00:00 GMT\r\n"
+			+ "Content-Type: text/html\r\n"
+			+ "Content-Length: 1234\r\n"
+			+ "Last-Modified: Sat, 17 Oct 2026 10:00:00 GMT\r\n"
+			+ "ETag: \"5f3a-4d2\"\r\n"
+			+ "\r\n");
+
+	ByteArrayInputStream mIn = new ByteArrayInputStream(HEAD);
+
+	@Benchmark
+	public String readLine() throws IOException {
+		mIn.reset();
+		return Util.readLine(mIn);
+	}
+
+	@Benchmark
+	public HashMap<String,String> readHeaders() throws IOException {
+		mIn.reset();
+		Util.readLine(mIn);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(mIn, headers);
+		return headers;
+	}
+
+}
@@ -0,0 +1,268 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The body of a request, decoded from the connection's input: either
+ * the number of bytes given with Content-Length, or chunked data. The
+ * data streams through the buffer of the connection, so a body of any
+ * size is read with constant memory. <p>
+ *
+ * Besides the InputStream methods, the body can be read as a
+ * ReadableByteChannel, into ByteBuffers. Closing the body does not close
+ * the connection; whatever has not been read is skipped when the next
+ * request is read. <p>
+ *
+ * A client that sent "Expect: 100-continue" waits for an interim
+ * response before sending the body. It is sent when the body is read for
+ * the first time, so a body that is never read is never asked for. <p>
+ *
+ * Reads that need a buffer of the body's own use one leased from the
+ * BufferPool, which is given back when the body is closed or skipped.
+ *
+ * @author Hannes R.
+ */
+public class BodyInputStream extends InputStream implements ReadableByteChannel {
+
+	// constants
+	static final int SCRATCH_SIZE = 8192;
+
+	// members
+	InputStream mIn;
+	ChunkedEncodingInputStream mChunked;
+	long mRemaining; // bytes left of a Content-Length body
+	long mMaxSize;
+	long mCount;
+	boolean mEof;
+	boolean mOpen;
+	byte[] mScratch;
+	OutputStream mContinue; // where "100 Continue" goes before the first read
+	String mContentType;
+
+	private BodyInputStream(InputStream in, ChunkedEncodingInputStream chunked,
+			long length, long maxSize) {
+		this.mIn = in;
+		this.mChunked = chunked;
+		this.mRemaining = length;
+		this.mMaxSize = maxSize;
+		this.mCount = 0;
+		this.mEof = (chunked == null && length == 0);
+		this.mOpen = true;
+	}
+
+	/**
+	 * Starts reading the body of a request, as given by its headers.
+	 * @param maxSize largest body that is accepted
+	 * @throws HttpStatus "400 Bad Request" if the length is malformed, or
+	 *         "413 Payload Too Large" if the body is known to be too big
+	 */
+	static BodyInputStream open(InputStream in, RequestHeaders headers, long maxSize)
+			throws HttpStatus {
+		String encoding = headers.get(RequestHeaders.TRANSFER_ENCODING);
+		String length = headers.get(RequestHeaders.CONTENT_LENGTH);
+		if (encoding != null) {
+			if (!encoding.trim().equalsIgnoreCase(Http.CHUNKED)) {
+				throw new HttpStatus(HttpStatus.NOT_IMPLEMENTED);
+			}
+			BodyInputStream body = new BodyInputStream(in, new ChunkedEncodingInputStream(in), 0, maxSize);
+			body.mContentType = headers.get(RequestHeaders.CONTENT_TYPE);
+			return body;
+		}
+		long size = 0;
+		if (length != null) {
+			try {
+				size = Long.parseLong(length.trim());
+			} catch (NumberFormatException ex) {
+				throw new HttpStatus(HttpStatus.BAD_REQUEST);
+			}
+			if (size < 0) throw new HttpStatus(HttpStatus.BAD_REQUEST);
+			if (size > maxSize) throw new HttpStatus(HttpStatus.PAYLOAD_TOO_LARGE);
+		}
+		BodyInputStream body = new BodyInputStream(in, null, size, maxSize);
+		body.mContentType = headers.get(RequestHeaders.CONTENT_TYPE);
+		return body;
+	}
+
+	/**
+	 * @return body of a request that has none
+	 */
+	static BodyInputStream empty() {
+		return new BodyInputStream(null, null, 0, 0);
+	}
+
+	/**
+	 * Sends "100 Continue" to the given stream when the body is read for
+	 * the first time. Nothing is sent if the body is empty.
+	 */
+	void continueOnRead(OutputStream out) {
+		if (!mEof) mContinue = out;
+	}
+
+	/**
+	 * @return true if the client has not yet been told to send the body
+	 */
+	boolean awaitsContinue() {
+		return mContinue != null;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!mOpen) throw new ClosedChannelException();
+		if (mScratch == null) mScratch = BufferPool.lease(SCRATCH_SIZE);
+		int n = next(mScratch, 0, 1);
+		return n < 0 ? -1 : 0xFF & mScratch[0];
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (!mOpen) throw new ClosedChannelException();
+		return next(b, off, len);
+	}
+
+	private int next(byte[] b, int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (mEof) return -1;
+		if (mContinue != null) {
+			mContinue.write(ResponseHead.CONTINUE_RESPONSE);
+			mContinue = null;
+		}
+		int n;
+		if (mChunked != null) {
+			try {
+				n = mChunked.read(b, off, len);
+			} catch (ProtocolException ex) {
+				// the client's fault; the end of the body is not known
+				throw new HttpStatus(HttpStatus.BAD_REQUEST);
+			}
+		} else {
+			n = mIn.read(b, off, (int)Math.min(len, mRemaining));
+			if (n < 0) throw new EOFException("Connection closed inside the request body");
+			mRemaining -= n;
+		}
+		if (n < 0 || (mChunked == null && mRemaining == 0)) mEof = true;
+		if (n > 0) {
+			mCount += n;
+			if (mCount > mMaxSize) throw new HttpStatus(HttpStatus.PAYLOAD_TOO_LARGE);
+		}
+		return n;
+	}
+
+	/**
+	 * Reads into the remaining space of the buffer.
+	 * @return number of bytes read, or -1 at the end of the body
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!mOpen) throw new ClosedChannelException();
+		if (!dst.hasRemaining()) return 0;
+		if (dst.hasArray()) {
+			int n = read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining());
+			if (n > 0) dst.position(dst.position() + n);
+			return n;
+		}
+		if (mScratch == null) mScratch = BufferPool.lease(SCRATCH_SIZE);
+		int n = next(mScratch, 0, Math.min(dst.remaining(), mScratch.length));
+		if (n > 0) dst.put(mScratch, 0, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (!mOpen) throw new ClosedChannelException();
+		if (n <= 0 || mEof) return 0;
+		if (mScratch == null) mScratch = BufferPool.lease(SCRATCH_SIZE);
+		int r = next(mScratch, 0, (int)Math.min(n, mScratch.length));
+		return r < 0 ? 0 : r;
+	}
+
+	@Override
+	public int available() throws IOException {
+		if (mEof) return 0;
+		if (mChunked != null) return mChunked.available();
+		return (int)Math.min(mRemaining, mIn.available());
+	}
+
+	/**
+	 * Reads and throws away the rest of the body, so that the connection
+	 * can go on with the next request. A body that turns out to be larger
+	 * than allowed, or malformed, is not read to its end.
+	 * @return false if the body was too large or malformed, and the
+	 *         connection can not go on
+	 */
+	boolean skipRemaining() throws IOException {
+		if (mScratch == null) mScratch = BufferPool.lease(SCRATCH_SIZE);
+		try {
+			skipToEnd();
+			return true;
+		} catch (HttpStatus status) {
+			// too large or malformed; not worth reading through
+			return false;
+		} finally {
+			releaseScratch();
+		}
+	}
+
+	private void skipToEnd() throws IOException {
+		while (!mEof) {
+			if (mChunked == null) {
+				// the length has been checked already, no need to count
+				long n = mIn.skip(mRemaining);
+				if (n > 0) {
+					mRemaining -= n;
+					mEof = (mRemaining == 0);
+					continue;
+				}
+			}
+			next(mScratch, 0, mScratch.length);
+		}
+	}
+
+	/**
+	 * @return media type of the body, as given by the client, or null
+	 */
+	public String getContentType() {
+		return mContentType;
+	}
+
+	/**
+	 * @return number of body bytes read so far
+	 */
+	public long getCount() {
+		return mCount;
+	}
+
+	/**
+	 * @return trailer fields of a chunked body, once it has been read to
+	 *         its end
+	 */
+	public Map<String,String> getTrailers() {
+		if (mChunked == null) return Collections.emptyMap();
+		return mChunked.getTrailers();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return mOpen;
+	}
+
+	@Override
+	public void close() {
+		mOpen = false;
+		releaseScratch();
+	}
+
+	private void releaseScratch() {
+		BufferPool.release(mScratch);
+		mScratch = null;
+	}
+
+}
@@ -0,0 +1,241 @@
+package com.webs.graub.tinywebserver;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the I/O buffers that connections and streams use, so that a
+ * keep-alive connection under steady load allocates (almost) nothing per
+ * request. Buffers are leased and must be released when no longer used;
+ * a released buffer must not be touched again. <p>
+ *
+ * Buffers come in size classes, powers of two from MIN_SIZE to MAX_SIZE,
+ * and a lease gets a buffer of the smallest class that fits, which may be
+ * bigger than asked for. Bigger buffers are not pooled. Heap arrays are
+ * kept first in a small cache of the thread that released them, and then
+ * in a pool shared by all threads; direct buffers only in the shared pool.
+ * The shared pool keeps at most MAX_SHARED_BYTES, the rest is left to the
+ * garbage collector. <p>
+ *
+ * With the system property "tinywebserver.debugBuffers" set to true,
+ * every lease is recorded with the stack trace of where it happened, so
+ * buffers that are never released can be found with leaks(). Releasing a
+ * buffer twice throws IllegalStateException, and released arrays are
+ * overwritten, so that a stream still using one fails visibly.
+ *
+ * @author Hannes R.
+ */
+class BufferPool {
+
+	// constants
+	static final int MIN_SIZE = 1024;
+	static final int MAX_SIZE = 65536;
+	static final int THREAD_CACHE_DEPTH = 4;
+	static final long MAX_SHARED_BYTES = 16L * 1024 * 1024;
+	static final String DEBUG_PROPERTY = "tinywebserver.debugBuffers";
+	static final byte POISON = (byte)0xDE;
+	private static final int CLASSES = classOf(MAX_SIZE) + 1;
+
+	// members
+	private static final SizeClass[] sClasses = new SizeClass[CLASSES];
+	private static final AtomicLong sSharedBytes = new AtomicLong();
+	private static final ThreadLocal<ThreadCache> sThreadCaches = new ThreadLocal<ThreadCache>() {
+		@Override
+		protected ThreadCache initialValue() {
+			return new ThreadCache();
+		}
+	};
+	private static volatile boolean sDebug = Boolean.getBoolean(DEBUG_PROPERTY);
+	private static final Map<Object, Throwable> sLeases = new IdentityHashMap<Object, Throwable>();
+
+	static {
+		for (int i = 0; i < CLASSES; ++i) {
+			sClasses[i] = new SizeClass(MIN_SIZE << i);
+		}
+	}
+
+	private BufferPool() {
+	}
+
+	/**
+	 * @return a heap buffer of at least the given size, with undefined
+	 *         content
+	 */
+	static byte[] lease(int size) {
+		byte[] buf = null;
+		int c = classOf(size);
+		if (c < CLASSES) {
+			buf = sThreadCaches.get().pop(c);
+			if (buf == null) {
+				buf = sClasses[c].mHeap.poll();
+				if (buf != null) sSharedBytes.addAndGet(-buf.length);
+			}
+			if (buf == null) buf = new byte[sClasses[c].mSize];
+		} else {
+			buf = new byte[size];
+		}
+		if (sDebug) leased(buf);
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer obtained with lease(int) back. Null is ignored.
+	 */
+	static void release(byte[] buf) {
+		if (buf == null) return;
+		if (sDebug) {
+			released(buf);
+			Arrays.fill(buf, POISON);
+		}
+		int c = exactClassOf(buf.length);
+		if (c < 0) return;
+		if (sThreadCaches.get().push(c, buf)) return;
+		if (reserve(buf.length)) sClasses[c].mHeap.offer(buf);
+	}
+
+	/**
+	 * @return a direct buffer with a capacity of at least the given size,
+	 *         cleared
+	 */
+	static ByteBuffer leaseDirect(int size) {
+		ByteBuffer buf = null;
+		int c = classOf(size);
+		if (c < CLASSES) {
+			buf = sClasses[c].mDirect.poll();
+			if (buf != null) {
+				sSharedBytes.addAndGet(-buf.capacity());
+				buf.clear();
+			} else {
+				buf = ByteBuffer.allocateDirect(sClasses[c].mSize);
+			}
+		} else {
+			buf = ByteBuffer.allocateDirect(size);
+		}
+		if (sDebug) leased(buf);
+		return buf;
+	}
+
+	/**
+	 * Gives a buffer obtained with leaseDirect(int) back. Null is ignored.
+	 */
+	static void release(ByteBuffer buf) {
+		if (buf == null) return;
+		if (sDebug) released(buf);
+		int c = exactClassOf(buf.capacity());
+		if (c < 0 || !buf.isDirect()) return;
+		if (reserve(buf.capacity())) sClasses[c].mDirect.offer(buf);
+	}
+
+	/**
+	 * Moves the buffers cached by the current thread to the shared pool.
+	 * Called when the thread is about to end, or to sit idle for long.
+	 */
+	static void releaseThreadCache() {
+		ThreadCache cache = sThreadCaches.get();
+		for (int c = 0; c < CLASSES; ++c) {
+			byte[] buf;
+			while ((buf = cache.pop(c)) != null) {
+				if (reserve(buf.length)) sClasses[c].mHeap.offer(buf);
+			}
+		}
+	}
+
+	/**
+	 * Turns leak detection on or off. Leases made while it was off are
+	 * not tracked.
+	 */
+	static void setDebug(boolean debug) {
+		synchronized (sLeases) {
+			sDebug = debug;
+			sLeases.clear();
+		}
+	}
+
+	/**
+	 * @return stack traces of where the buffers that have not been
+	 *         released were leased; empty unless in debug mode
+	 */
+	static List<Throwable> leaks() {
+		synchronized (sLeases) {
+			return Collections.unmodifiableList(new ArrayList<Throwable>(sLeases.values()));
+		}
+	}
+
+	private static void leased(Object buf) {
+		synchronized (sLeases) {
+			sLeases.put(buf, new Throwable("Buffer leased here"));
+		}
+	}
+
+	private static void released(Object buf) {
+		synchronized (sLeases) {
+			if (sLeases.remove(buf) == null && sDebug) {
+				throw new IllegalStateException("Buffer released twice, or not leased from the pool");
+			}
+		}
+	}
+
+	// takes room in the shared pool, if there is any left
+	private static boolean reserve(int bytes) {
+		if (sSharedBytes.addAndGet(bytes) <= MAX_SHARED_BYTES) return true;
+		sSharedBytes.addAndGet(-bytes);
+		return false;
+	}
+
+	// index of the smallest class that holds size bytes; CLASSES or more
+	// if none does
+	private static int classOf(int size) {
+		if (size <= MIN_SIZE) return 0;
+		if (size > MAX_SIZE) return Integer.MAX_VALUE;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - 10;
+	}
+
+	// index of the class of exactly this size, or -1
+	private static int exactClassOf(int size) {
+		if (size < MIN_SIZE || size > MAX_SIZE || Integer.bitCount(size) != 1) return -1;
+		return classOf(size);
+	}
+
+	/**
+	 * Pooled buffers of one size.
+	 */
+	static class SizeClass {
+		final int mSize;
+		final ConcurrentLinkedQueue<byte[]> mHeap = new ConcurrentLinkedQueue<byte[]>();
+		final ConcurrentLinkedQueue<ByteBuffer> mDirect = new ConcurrentLinkedQueue<ByteBuffer>();
+
+		SizeClass(int size) {
+			this.mSize = size;
+		}
+	}
+
+	/**
+	 * The heap arrays a thread has released, a few per class, for the next
+	 * leases of the same thread.
+	 */
+	static class ThreadCache {
+		final byte[][][] mStacks = new byte[CLASSES][THREAD_CACHE_DEPTH][];
+		final int[] mCounts = new int[CLASSES];
+
+		byte[] pop(int c) {
+			if (mCounts[c] == 0) return null;
+			byte[] buf = mStacks[c][--mCounts[c]];
+			mStacks[c][mCounts[c]] = null;
+			return buf;
+		}
+
+		boolean push(int c, byte[] buf) {
+			if (mCounts[c] == THREAD_CACHE_DEPTH) return false;
+			mStacks[c][mCounts[c]++] = buf;
+			return true;
+		}
+	}
+
+}
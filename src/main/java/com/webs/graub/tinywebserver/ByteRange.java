@@ -0,0 +1,109 @@
+package com.webs.graub.tinywebserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * One range of bytes requested with the Range header, with the positions
+ * of the first and the last byte (inclusive) resolved against the size
+ * of the content.
+ *
+ * @author Hannes R.
+ */
+class ByteRange {
+
+	// constants
+	static final String BYTES_UNIT = "bytes";
+	static final int MAX_RANGES = 16;
+
+	// members
+	long mFirst;
+	long mLast;
+
+	ByteRange(long first, long last) {
+		this.mFirst = first;
+		this.mLast = last;
+	}
+
+	long length() {
+		return mLast - mFirst + 1;
+	}
+
+	/**
+	 * @return value for the Content-Range header
+	 */
+	String contentRange(long size) {
+		return BYTES_UNIT + " " + mFirst + "-" + mLast + "/" + size;
+	}
+
+	/**
+	 * Parses a Range header value such as "bytes=0-99,200-,-50". Ranges
+	 * that overlap or touch each other are merged, and the result is
+	 * sorted by position.
+	 * @return the satisfiable ranges (empty if there are none), or null
+	 *         if the header is to be ignored: it is malformed, uses another
+	 *         unit, or asks for too many ranges
+	 */
+	static List<ByteRange> parse(String header, long size) {
+		int eq = header.indexOf('=');
+		if (eq < 0 || !header.substring(0, eq).trim().equalsIgnoreCase(BYTES_UNIT)) {
+			return null;
+		}
+		String[] specs = header.substring(eq+1).split(",");
+		if (specs.length > MAX_RANGES) return null;
+		List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+		for (String spec : specs) {
+			spec = spec.trim();
+			int dash = spec.indexOf('-');
+			if (dash < 0) return null;
+			String first = spec.substring(0, dash).trim();
+			String last = spec.substring(dash+1).trim();
+			try {
+				if (first.isEmpty()) {
+					// suffix range: the last n bytes
+					long n = Long.parseLong(last);
+					if (n < 0) return null;
+					if (n > 0 && size > 0) {
+						ranges.add(new ByteRange(Math.max(size-n, 0), size-1));
+					}
+				} else {
+					long f = Long.parseLong(first);
+					long l = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+					if (f < 0 || l < f) return null;
+					if (f < size) {
+						ranges.add(new ByteRange(f, Math.min(l, size-1)));
+					}
+				}
+			} catch (NumberFormatException ex) {
+				return null;
+			}
+		}
+		return merge(ranges);
+	}
+
+	private static List<ByteRange> merge(List<ByteRange> ranges) {
+		if (ranges.size() < 2) return ranges;
+		Collections.sort(ranges, new Comparator<ByteRange>() {
+			@Override
+			public int compare(ByteRange a, ByteRange b) {
+				return a.mFirst < b.mFirst ? -1 : (a.mFirst == b.mFirst ? 0 : 1);
+			}
+		});
+		List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+		ByteRange current = ranges.get(0);
+		for (int i=1; i<ranges.size(); ++i) {
+			ByteRange next = ranges.get(i);
+			if (next.mFirst <= current.mLast + 1) {
+				current = new ByteRange(current.mFirst, Math.max(current.mLast, next.mLast));
+			} else {
+				merged.add(current);
+				current = next;
+			}
+		}
+		merged.add(current);
+		return merged;
+	}
+
+}
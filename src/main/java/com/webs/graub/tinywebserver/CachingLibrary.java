@@ -0,0 +1,428 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Library that remembers what another library produces. The bytes that an
+ * OutContent writes are captured once and then served from memory to
+ * every GET and HEAD request of the same URI, until they expire. Results
+ * without content (null, or a thrown HttpStatus) are remembered too, for
+ * a shorter time, so repeated requests for missing pages do not reach the
+ * library either. POST and PUT requests pass through, and make the cache
+ * forget their URI. <p>
+ *
+ * The cache has a byte budget and is a segmented LRU: new entries start
+ * in a probation segment and move to the protected segment when they are
+ * requested again. Entries are dropped from the probation segment first,
+ * so a burst of one-off requests does not push out the popular pages. <p>
+ *
+ * An expired entry may still be served for the stale-while-revalidate
+ * period, while a background thread asks the library for a fresh one.
+ * Content whose bytes have not changed keeps its Last-Modified time and
+ * ETag, so conditional requests still match after a refresh. With
+ * off-heap storage, the bytes are captured straight into direct buffers,
+ * outside of the garbage collected heap. <p>
+ *
+ * Content that is not worth capturing is passed through as it is: file
+ * regions, and content bigger than a quarter of the budget. <p>
+ *
+ * Example:
+ * <pre>
+ * CachingLibrary library = new CachingLibrary(new MyLibrary(), 256*1024*1024);
+ * library.setTtl(30000);
+ * library.setStaleWhileRevalidate(60000);
+ * new Server(library, 8080).start();
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class CachingLibrary implements Library {
+
+	// constants
+	public static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+	public static final long DEFAULT_TTL = 60000;
+	public static final long DEFAULT_NEGATIVE_TTL = 10000;
+	static final int PROTECTED_PERCENT = 80;
+	static final int ENTRY_OVERHEAD = 128;
+	static final int INITIAL_CAPTURE_SIZE = 1024;
+
+	// members
+	Library mLibrary;
+	long mCacheBudget;
+	long mMaxEntrySize;
+	long mTtl = DEFAULT_TTL;
+	long mStaleTtl = 0;
+	long mNegativeTtl = DEFAULT_NEGATIVE_TTL;
+	boolean mOffHeap = false;
+	Executor mRefresher;
+	long mProbationBytes = 0;
+	long mProtectedBytes = 0;
+	LinkedHashMap<String, Entry> mProbation =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	LinkedHashMap<String, Entry> mProtected =
+			new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+	public CachingLibrary(Library library) {
+		this(library, DEFAULT_CACHE_BYTES);
+	}
+
+	/**
+	 * @param library library that produces the content
+	 * @param cacheBytes how many bytes of content may be kept
+	 */
+	public CachingLibrary(Library library, long cacheBytes) {
+		this.mLibrary = library;
+		this.mCacheBudget = cacheBytes;
+		// a single entry may take at most a quarter of the cache, and no
+		// more than one buffer holds
+		this.mMaxEntrySize = Math.min(cacheBytes / 4, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * How long content is served from the cache, in milliseconds.
+	 */
+	public void setTtl(long millis) {
+		mTtl = millis;
+	}
+
+	/**
+	 * How long expired content may still be served while it is refreshed
+	 * in the background, in milliseconds. Zero, the default, refreshes
+	 * expired content before answering. If the refresh fails, the expired
+	 * content is kept, and the next request tries again.
+	 */
+	public void setStaleWhileRevalidate(long millis) {
+		mStaleTtl = millis;
+	}
+
+	/**
+	 * How long results without content are remembered, in milliseconds.
+	 */
+	public void setNegativeTtl(long millis) {
+		mNegativeTtl = millis;
+	}
+
+	/**
+	 * Keeps the captured bytes in direct buffers, outside of the heap.
+	 */
+	public void setOffHeap(boolean offHeap) {
+		mOffHeap = offHeap;
+	}
+
+	/**
+	 * Sets the Executor that refreshes stale content. By default a single
+	 * daemon thread does it.
+	 */
+	public void setRefreshExecutor(Executor executor) {
+		mRefresher = executor;
+	}
+
+	@Override
+	public Content getContent(URI uri) throws HttpStatus {
+		return getContent(Http.GET, uri);
+	}
+
+	@Override
+	public Content getContent(String method, URI uri) throws HttpStatus {
+		if (!Http.GET.equals(method) && !Http.HEAD.equals(method)) {
+			// the request may change what the URI gives
+			invalidate(uri);
+			return mLibrary.getContent(method, uri);
+		}
+		String key = uri.toString();
+		long now = System.currentTimeMillis();
+		Entry entry = lookup(key);
+		if (entry != null && now < entry.mStaleUntil) {
+			if (now >= entry.mFreshUntil) refreshLater(key, uri, entry);
+			return entry.result(this, uri);
+		}
+		entry = load(uri, entry);
+		Content fresh = entry.mFresh;
+		entry.mFresh = null;
+		store(key, entry);
+		return fresh != null ? fresh : entry.result(this, uri);
+	}
+
+	/**
+	 * Makes the cache forget the given URI.
+	 */
+	public synchronized void invalidate(URI uri) {
+		String key = uri.toString();
+		Entry entry = mProbation.remove(key);
+		if (entry != null) mProbationBytes -= entry.mSize;
+		entry = mProtected.remove(key);
+		if (entry != null) mProtectedBytes -= entry.mSize;
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public synchronized void clear() {
+		mProbation.clear();
+		mProtected.clear();
+		mProbationBytes = 0;
+		mProtectedBytes = 0;
+	}
+
+	/**
+	 * @return number of bytes the entries of the cache take
+	 */
+	public synchronized long getCachedBytes() {
+		return mProbationBytes + mProtectedBytes;
+	}
+
+	/**
+	 * Asks the library for the content, and captures it.
+	 * @param previous entry that the new one replaces, or null
+	 */
+	Entry load(URI uri, Entry previous) throws HttpStatus {
+		long now = System.currentTimeMillis();
+		Entry entry = new Entry();
+		Content content;
+		try {
+			content = mLibrary.getContent(Http.GET, uri);
+		} catch (HttpStatus status) {
+			entry.mStatus = status;
+			entry.expires(now, mNegativeTtl, 0);
+			return entry;
+		}
+		if (content == null) {
+			entry.expires(now, mNegativeTtl, 0);
+			return entry;
+		}
+		entry.expires(now, mTtl, mStaleTtl);
+		if (!(content instanceof OutContent) || content instanceof FileRegionContent
+				|| ((OutContent)content).getContentLength() > mMaxEntrySize) {
+			entry.mPassThrough = true;
+			entry.mFresh = content;
+			return entry;
+		}
+		OutContent out = (OutContent)content;
+		Capture capture = new Capture(mMaxEntrySize, out.getContentLength(), mOffHeap);
+		try {
+			out.out(capture);
+		} catch (TooLarge ex) {
+			// the content has been used up; the request gets a new one
+			entry.mPassThrough = true;
+			entry.mFresh = mLibrary.getContent(Http.GET, uri);
+			return entry;
+		} catch (IOException ex) {
+			throw new HttpStatus(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+		ByteBuffer data = capture.data();
+		StaticFileLibrary.CachedFile unchanged = (previous != null ? previous.mContent : null);
+		if (unchanged != null && unchanged.mData.equals(data)
+				&& equal(unchanged.mMimetype, out.getMimetype())) {
+			// the validators stay, so the copies of clients remain current
+			entry.mContent = unchanged;
+		} else {
+			entry.mContent = new StaticFileLibrary.CachedFile(data.asReadOnlyBuffer(),
+					out.getMimetype(), now);
+		}
+		entry.mSize += data.remaining();
+		return entry;
+	}
+
+	private void refreshLater(final String key, final URI uri, final Entry stale) {
+		synchronized (this) {
+			if (stale.mRefreshing) return;
+			stale.mRefreshing = true;
+			if (mRefresher == null) mRefresher = newRefresher();
+		}
+		mRefresher.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Entry entry = load(uri, stale);
+					entry.mFresh = null;
+					if (stale.hasContent() && !entry.hasContent()) {
+						// a failure does not replace content that is still good
+						synchronized (CachingLibrary.this) {
+							stale.mRefreshing = false;
+						}
+						return;
+					}
+					store(key, entry);
+				} catch (RuntimeException ex) {
+					// the stale entry is served until it expires
+					synchronized (CachingLibrary.this) {
+						stale.mRefreshing = false;
+					}
+				}
+			}
+		});
+	}
+
+	private synchronized Entry lookup(String key) {
+		Entry entry = mProtected.get(key);
+		if (entry != null) return entry;
+		entry = mProbation.remove(key);
+		if (entry == null) return null;
+		// requested again: worth protecting
+		mProbationBytes -= entry.mSize;
+		mProtected.put(key, entry);
+		mProtectedBytes += entry.mSize;
+		long protectedBudget = mCacheBudget / 100 * PROTECTED_PERCENT;
+		Iterator<Entry> lru = mProtected.values().iterator();
+		while (mProtectedBytes > protectedBudget && lru.hasNext()) {
+			Entry eldest = lru.next();
+			if (eldest == entry) continue;
+			lru.remove();
+			mProtectedBytes -= eldest.mSize;
+			mProbation.put(eldest.mKey, eldest);
+			mProbationBytes += eldest.mSize;
+		}
+		return entry;
+	}
+
+	private synchronized void store(String key, Entry entry) {
+		entry.mKey = key;
+		entry.mSize += ENTRY_OVERHEAD + 2 * key.length();
+		Entry old = mProtected.get(key);
+		if (old != null) {
+			// a refreshed entry keeps its place
+			mProtected.put(key, entry);
+			mProtectedBytes += entry.mSize - old.mSize;
+		} else {
+			old = mProbation.put(key, entry);
+			if (old != null) mProbationBytes -= old.mSize;
+			mProbationBytes += entry.mSize;
+		}
+		// drop least recently used entries, on probation first, until the
+		// budget is met
+		Iterator<Entry> lru = mProbation.values().iterator();
+		while (mProbationBytes + mProtectedBytes > mCacheBudget && lru.hasNext()) {
+			Entry eldest = lru.next();
+			if (eldest == entry) continue;
+			lru.remove();
+			mProbationBytes -= eldest.mSize;
+		}
+		lru = mProtected.values().iterator();
+		while (mProbationBytes + mProtectedBytes > mCacheBudget && lru.hasNext()) {
+			Entry eldest = lru.next();
+			if (eldest == entry) continue;
+			lru.remove();
+			mProtectedBytes -= eldest.mSize;
+		}
+	}
+
+	private static Executor newRefresher() {
+		ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "CachingLibrary-refresh");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		return executor;
+	}
+
+	/**
+	 * What the library gave for a URI, and until when it may be used.
+	 */
+	static class Entry {
+		String mKey;
+		StaticFileLibrary.CachedFile mContent; // null if there was none
+		HttpStatus mStatus;                    // thrown by the library
+		boolean mPassThrough;                  // not captured; ask the library
+		Content mFresh;                        // content for the request that loaded
+		long mFreshUntil;
+		long mStaleUntil;
+		long mSize;
+		boolean mRefreshing;
+
+		void expires(long now, long ttl, long staleTtl) {
+			mFreshUntil = now + ttl;
+			mStaleUntil = mFreshUntil + staleTtl;
+		}
+
+		boolean hasContent() {
+			return mContent != null || mPassThrough;
+		}
+
+		Content result(CachingLibrary cache, URI uri) throws HttpStatus {
+			if (mStatus != null) throw mStatus;
+			if (mPassThrough) return cache.mLibrary.getContent(Http.GET, uri);
+			return mContent;
+		}
+	}
+
+	private static boolean equal(String a, String b) {
+		return a == null ? b == null : a.equals(b);
+	}
+
+	/**
+	 * Collects the bytes written by a content, up to a limit, in a heap
+	 * or a direct buffer that grows as needed.
+	 */
+	static class Capture extends OutputStream {
+		long mLimit;
+		boolean mDirect;
+		ByteBuffer mData;
+
+		/**
+		 * @param expected number of bytes the content tells it has, or -1
+		 */
+		Capture(long limit, long expected, boolean direct) {
+			this.mLimit = limit;
+			this.mDirect = direct;
+			this.mData = allocate((int)(expected >= 0 ? expected : INITIAL_CAPTURE_SIZE));
+		}
+
+		@Override
+		public void write(int b) {
+			ensure(1);
+			mData.put((byte)b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+			ensure(len);
+			mData.put(b, off, len);
+		}
+
+		/**
+		 * @return the bytes captured, in a buffer of their size
+		 */
+		ByteBuffer data() {
+			mData.flip();
+			if (mData.limit() == mData.capacity()) return mData;
+			ByteBuffer exact = allocate(mData.limit());
+			exact.put(mData);
+			exact.flip();
+			return exact;
+		}
+
+		private void ensure(int len) {
+			if (mData.position() + (long)len > mLimit) throw new TooLarge();
+			if (mData.remaining() >= len) return;
+			long size = Math.max(mData.capacity() * 2L, mData.position() + (long)len);
+			ByteBuffer grown = allocate((int)Math.min(size, mLimit));
+			mData.flip();
+			grown.put(mData);
+			mData = grown;
+		}
+
+		private ByteBuffer allocate(int size) {
+			return mDirect ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+	}
+
+	/**
+	 * Thrown when a content writes more than can be cached.
+	 */
+	static class TooLarge extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+	}
+
+}
@@ -4,6 +4,10 @@ import java.io.EOFException;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.ProtocolException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * ChunkedEncodingInputStream is an InputStream that reads HTTP stream
@@ -15,12 +19,15 @@ import java.io.InputStream;
  * by giving the source InputStream as a parameter. Now you are ready to
  * read the data. The stream will give data until the last chunk, after which
  * the stream will indicate EOF (even if there would still be data in the
- * underlying stream) <p>
- * 
- * Due to the nature of chunked encoding, the class provides a small buffering
- * feature (the size of the chunk) but if you want additional buffering, you
- * can use this class together with BufferedInputStream. <p>
- * 
+ * underlying stream). The trailer fields after the last chunk are read as
+ * well, and are then available from getTrailers(). Malformed framing
+ * gives a ProtocolException, and data ending too early an EOFException. <p>
+ *
+ * The chunk data is not copied into a buffer of its own: reads are passed
+ * to the underlying stream, limited to what is left of the current chunk.
+ * Size lines are read byte by byte, so the underlying stream should be
+ * buffered (e.g. BufferedInputStream). <p>
+ *
  * Example:
  * <pre>
  * BufferedReader reader = new BuffredReader(
@@ -32,17 +39,21 @@ import java.io.InputStream;
  *     System.out.println(line);
  * }
  * </pre>
- *  
+ *
  * @author Hannes R.
  */
 public class ChunkedEncodingInputStream extends FilterInputStream {
 
+	// constants
+	static final int MAX_LINE_LENGTH = 4096;
+	static final int MAX_TRAILERS = 100;
+
 	// members
-	byte[] mChunk;
-	int mPointer;
-	enum State {INITIAL,ACTIVE,EOF,EOF_WILL_THROW};
-	//boolean mEof = false;
+	enum State {INITIAL,DATA,EOF};
 	State mState = State.INITIAL;
+	long mRemaining = 0;
+	byte[] mLine;
+	Map<String,String> mTrailers = Collections.emptyMap();
 
 	protected ChunkedEncodingInputStream(InputStream in) {
 		super(in);
@@ -50,96 +61,141 @@ public class ChunkedEncodingInputStream extends FilterInputStream {
 
 	@Override
 	public int read() throws IOException {
-		if (mState==State.INITIAL) readChunk();
-		if (mState==State.EOF) return eof();
-		if (mState==State.EOF_WILL_THROW)
-			throw new EOFException("No more chunks");
-
-		if (mPointer>=mChunk.length) readChunk();
-		if (mState==State.EOF) return eof();
-		return b2i(mChunk[mPointer++]);
+		if (!nextData()) return -1;
+		int b = in.read();
+		if (b < 0) throw new EOFException("Stream ended inside a chunk");
+		mRemaining--;
+		return b;
 	}
 
 	@Override
 	public int read(byte b[], int off, int len) throws IOException {
-		if (mState==State.INITIAL) readChunk();
-		if (mState==State.EOF) return eof();
-		if (mState==State.EOF_WILL_THROW)
-			throw new EOFException("No more chunks");
-
-		int b_pointer = 0;
-		while(true) {
-			if (mPointer>=mChunk.length) readChunk();
-			if (mState != State.ACTIVE) break;
-			int length = Math.min(len, mChunk.length - mPointer);
-			if (length==0) break;
-			System.arraycopy(mChunk, mPointer, b, off+b_pointer, length);
-			mPointer += length;
-			b_pointer += length;
-		}
-		return b_pointer;
+		if (len == 0) return 0;
+		if (!nextData()) return -1;
+		int n = in.read(b, off, (int)Math.min(len, mRemaining));
+		if (n < 0) throw new EOFException("Stream ended inside a chunk");
+		mRemaining -= n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0 || !nextData()) return 0;
+		long skipped = in.skip(Math.min(n, mRemaining));
+		mRemaining -= skipped;
+		return skipped;
 	}
 
 	@Override
 	public int available() throws IOException {
-		if (mState==State.ACTIVE) {
-			if (mPointer<mChunk.length) return mChunk.length-mPointer;
-			else return in.available();
-		}
-		else return 0;
+		if (mState != State.DATA) return 0;
+		return (int)Math.min(mRemaining, in.available());
 	}
 
-	private int b2i(byte b) {
-		return 0xFF & (int)b;
+	@Override
+	public boolean markSupported() {
+		return false;
 	}
 
-	private int eof() {
-		mState = State.EOF_WILL_THROW;
-		return -1;
+	/**
+	 * @return true once the last chunk and the trailer have been read
+	 */
+	public boolean isComplete() {
+		return mState == State.EOF;
 	}
 
-	private void readChunk() throws IOException {
-		// read hex number
-		byte[] buf = new byte[32];
-		int size = 0;
-		while (true) {
-			byte b = (byte)in.read();
-			if (!isalnum(b)) break;
-			buf[size++] = b;
-		}
-		// ignore rest of the line until newline char
-		while(true) {
-			int b = in.read();
-			if (b<0 || (byte)b=='\n') break;
-		}
+	/**
+	 * @return the trailer fields sent after the last chunk; empty until
+	 *         the stream has been read to its end
+	 */
+	public Map<String,String> getTrailers() {
+		return mTrailers;
+	}
 
-		// decode this as chunk size
-		int chunk_size = Integer.parseInt(new String(buf, 0, size).trim(), 16);
-		if (chunk_size>0) {
-			mState = State.ACTIVE;
-			// read chunk according to chunk size
-			mChunk = new byte[chunk_size];
-			in.read(mChunk);
-			// ignore rest of the line until newline char
-			while(true) {
-				int b = in.read();
-				if (b<0 || (byte)b=='\n') break;
+	/**
+	 * Moves on to the next chunk if the current one has been read.
+	 * @return false if there is no more data
+	 */
+	private boolean nextData() throws IOException {
+		while (mRemaining == 0) {
+			if (mState == State.EOF) return false;
+			// chunk data is followed by a line end
+			if (mState == State.DATA && readLine() != 0) {
+				throw new ProtocolException("Chunk is longer than its size");
 			}
-			// set read position at beginning of chunk
-			mPointer = 0;
-		} else {
-			mState = State.EOF;
-			mChunk = null;
-			mPointer = 0;
+			long size = readChunkSize();
+			if (size == 0) {
+				readTrailers();
+				mState = State.EOF;
+				return false;
+			}
+			mRemaining = size;
+			mState = State.DATA;
 		}
+		return true;
 	}
 
+	private long readChunkSize() throws IOException {
+		int len = readLine();
+		long size = 0;
+		int digits = 0;
+		for (int i=0; i<len; ++i) {
+			int d = hexValue(mLine[i]);
+			if (d < 0) {
+				// chunk extensions follow the size; they are ignored
+				if (mLine[i] == ';' || mLine[i] == ' ' || mLine[i] == '\t') break;
+				throw new ProtocolException("Malformed chunk size");
+			}
+			if (++digits > 15) throw new ProtocolException("Chunk size too big");
+			size = (size << 4) | d;
+		}
+		if (digits == 0) throw new ProtocolException("Malformed chunk size");
+		return size;
+	}
 
-	// true if byte represents an alphanumeric ascii character
-	boolean isalnum(byte b) {
-		return (b>='0'&&b<='9')||(b>='a'&&b<='f')||(b>='A'&&b<='F');
+	private void readTrailers() throws IOException {
+		Map<String,String> trailers = null;
+		while (true) {
+			int len = readLine();
+			if (len == 0) break;
+			String line = new String(mLine, 0, len, RequestParser.ISO_8859_1);
+			int colon = line.indexOf(':');
+			if (colon <= 0) throw new ProtocolException("Malformed trailer field");
+			if (trailers == null) trailers = new HashMap<String,String>();
+			if (trailers.size() >= MAX_TRAILERS) throw new ProtocolException("Too many trailer fields");
+			trailers.put(line.substring(0, colon).trim(), line.substring(colon+1).trim());
+		}
+		if (trailers != null) mTrailers = trailers;
 	}
 
-}
+	/**
+	 * Reads a line into mLine, without the line end.
+	 * @return length of the line
+	 */
+	private int readLine() throws IOException {
+		if (mLine == null) mLine = new byte[64];
+		int len = 0;
+		while (true) {
+			int b = in.read();
+			if (b < 0) throw new EOFException("Stream ended inside chunk framing");
+			if (b == '\n') break;
+			if (len == mLine.length) {
+				if (len >= MAX_LINE_LENGTH) throw new ProtocolException("Chunk framing line too long");
+				byte[] grown = new byte[len * 2];
+				System.arraycopy(mLine, 0, grown, 0, len);
+				mLine = grown;
+			}
+			mLine[len++] = (byte)b;
+		}
+		if (len > 0 && mLine[len-1] == '\r') len--;
+		return len;
+	}
 
+	private static int hexValue(byte b) {
+		if (b>='0'&&b<='9') return b - '0';
+		if (b>='a'&&b<='f') return b - 'a' + 10;
+		if (b>='A'&&b<='F') return b - 'A' + 10;
+		return -1;
+	}
 
+}
@@ -3,6 +3,7 @@ package com.webs.graub.tinywebserver;
 import java.io.OutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.util.Map;
 
 /**
  * ChunkedEncodingOutputStream is a stream that converts any data into
@@ -10,19 +11,23 @@ import java.io.IOException;
  * is a HTTP standard where data is transmitted in chunks, and preceding each
  * chunk, size of the chunk is transmitted. End of data is marked with a chunk
  * of zero data size. <p>
- * 
+ *
  * The stream is used as a FilterOutputStream - by connecting it to another
  * OutputStream (possibly a socket OutputStream) and then you are ready to
  * write any data. Once all data has been written, you must terminate the
- * stream using transmitEof() method, for otherwise the receiving end expects
+ * stream using complete() method, for otherwise the receiving end expects
  * more data. <p>
- * 
- * Due to the nature of the encoding, The class provides a small buffering
- * feature automatically (the size of the chunk) but if you want additional
- * buffering, you can use the class together with BufferedOutputStream.
- * A chunk is automatically completed and transmitted on every flush(),
- * or when a pre-defined chunk maximum size is reached on buffer. <p>
- * 
+ *
+ * Small writes are collected into a chunk buffer. The buffer starts small
+ * and doubles, up to the maximum chunk size, every time it fills up, so a
+ * long body is sent in big chunks while a short one costs little memory.
+ * A write that is at least as big as the buffer is framed as a chunk of
+ * its own (together with what is buffered) and passed on without copying.
+ * A chunk is completed on every flush(), or when the buffer is full; only
+ * flush() also flushes the underlying stream. The buffers are leased
+ * from the BufferPool and given back by complete(), or by release() if
+ * the stream is abandoned. <p>
+ *
  * Example:
  * <pre>
  * ChunkedEncodingOutputStream out = new ChunkedEncodingOutputStream(
@@ -30,7 +35,8 @@ import java.io.IOException;
  * for(byte b: data) {
  *     out.write(b);
  * }
- * out.transmitEof();
+ * out.complete();
+ * out.flush();
  * </pre>
  *
  * @author Hannes R.
@@ -38,49 +44,69 @@ import java.io.IOException;
 public class ChunkedEncodingOutputStream extends FilterOutputStream {
 
 	// constants
-	static final int CHUNK_SIZE = 512;
+	static final int INITIAL_CHUNK_SIZE = 1024;
+	static final int DEFAULT_MAX_CHUNK_SIZE = 16384;
+	static final byte[] HEX_DIGITS = ResponseHead.ascii("0123456789abcdef");
+	static final byte[] LAST_CHUNK = ResponseHead.ascii("0\r\n");
 
 	// members
 	byte[] mChunk;
+	int mChunkSize;
 	int mChunkDataSize;
+	int mMaxChunkSize;
+	byte[] mSizeLine;
+	boolean mCompleted;
 
 	ChunkedEncodingOutputStream(OutputStream out) {
+		this(out, DEFAULT_MAX_CHUNK_SIZE);
+	}
+
+	/**
+	 * @param maxChunkSize largest chunk that is collected from small writes
+	 */
+	ChunkedEncodingOutputStream(OutputStream out, int maxChunkSize) {
 		super(out);
-		mChunk = new byte[CHUNK_SIZE];
+		mMaxChunkSize = Math.max(maxChunkSize, 1);
+		mChunkSize = Math.min(INITIAL_CHUNK_SIZE, mMaxChunkSize);
+		mChunk = BufferPool.lease(mChunkSize);
 		mChunkDataSize = 0;
+		mSizeLine = new byte[8 + Http.CRLF.length];
+		mCompleted = false;
 	}
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
-		int offset = off;
-		while(true) {
-			mChunkDataSize = Math.min(CHUNK_SIZE, off+len-offset);
-			if (mChunkDataSize==0) break;
-			System.arraycopy(b, offset, mChunk, 0, mChunkDataSize);
-			offset += mChunkDataSize;
-			flush();
+		checkOpen();
+		if (len >= mChunkSize) {
+			// big write: frame it directly, after the buffered data
+			writeSizeLine(mChunkDataSize + len);
+			if (mChunkDataSize > 0) out.write(mChunk, 0, mChunkDataSize);
+			out.write(b, off, len);
+			out.write(Http.CRLF);
+			mChunkDataSize = 0;
+			return;
+		}
+		while (len > 0) {
+			int n = Math.min(len, mChunkSize - mChunkDataSize);
+			System.arraycopy(b, off, mChunk, mChunkDataSize, n);
+			mChunkDataSize += n;
+			off += n;
+			len -= n;
+			if (mChunkDataSize >= mChunkSize) chunkFull();
 		}
 	}
 
 	@Override
 	public void write(int b) throws IOException {
+		checkOpen();
 		mChunk[mChunkDataSize++] = (byte)b;
-		if (mChunkDataSize>=CHUNK_SIZE) {
-			flush();
-		}
+		if (mChunkDataSize >= mChunkSize) chunkFull();
 	}
 
 	@Override
 	public void flush() throws IOException {
-		if (mChunkDataSize > 0) {
-			String chunk_size_row = Integer.toHexString(mChunkDataSize);
-			out.write(chunk_size_row.getBytes());
-			out.write(Http.CRLF);
-			out.write(mChunk, 0, mChunkDataSize);
-			out.write(Http.CRLF);
-			mChunkDataSize = 0;
-			out.flush();
-		}
+		writeChunk();
+		out.flush();
 	}
 
 	/**
@@ -91,10 +117,72 @@ public class ChunkedEncodingOutputStream extends FilterOutputStream {
 	 * the data chunks, using the same underlying stream.
 	 */
 	public void complete() throws IOException {
-		String chunk_size_row = Integer.toHexString(0);
-		out.write(chunk_size_row.getBytes());
-		out.write(Http.CRLF);
+		complete(null);
+	}
+
+	/**
+	 * Like complete(), but sends the given header fields as a trailer
+	 * after the last chunk.
+	 */
+	public void complete(Map<String, String> trailers) throws IOException {
+		checkOpen();
+		writeChunk();
+		out.write(LAST_CHUNK);
+		if (trailers != null) {
+			for (Map.Entry<String, String> e : trailers.entrySet()) {
+				out.write(ResponseHead.ascii(e.getKey() + ": " + e.getValue()));
+				out.write(Http.CRLF);
+			}
+		}
 		out.write(Http.CRLF);
+		release();
+	}
+
+	/**
+	 * Gives the chunk buffer back to the pool, without completing the
+	 * stream. Nothing can be written afterwards.
+	 */
+	void release() {
+		mCompleted = true;
+		BufferPool.release(mChunk);
+		mChunk = null;
+		mChunkDataSize = 0;
+	}
+
+	// sends the full buffer, and grows it since the body goes on
+	private void chunkFull() throws IOException {
+		writeChunk();
+		if (mChunkSize < mMaxChunkSize) {
+			mChunkSize = Math.min(mChunkSize * 2, mMaxChunkSize);
+			BufferPool.release(mChunk);
+			mChunk = BufferPool.lease(mChunkSize);
+		}
+	}
+
+	// passes the collected data on as one chunk, without flushing
+	private void writeChunk() throws IOException {
+		if (mChunkDataSize > 0) {
+			writeSizeLine(mChunkDataSize);
+			out.write(mChunk, 0, mChunkDataSize);
+			out.write(Http.CRLF);
+			mChunkDataSize = 0;
+		}
+	}
+
+	// hex digits of the size and CRLF, in one write
+	private void writeSizeLine(int size) throws IOException {
+		int digits = 1;
+		for (int v = size >>> 4; v != 0; v >>>= 4) digits++;
+		for (int i = digits-1, v = size; i >= 0; --i, v >>>= 4) {
+			mSizeLine[i] = HEX_DIGITS[v & 0xF];
+		}
+		mSizeLine[digits] = '\r';
+		mSizeLine[digits+1] = '\n';
+		out.write(mSizeLine, 0, digits+2);
+	}
+
+	private void checkOpen() throws IOException {
+		if (mCompleted) throw new IOException("Chunked stream already completed");
 	}
 
 }
@@ -0,0 +1,83 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses the data written into it with a Deflater that is given by
+ * the caller, so the same Deflater can be reset and used again for the
+ * next response. In gzip mode the Deflater must be created with nowrap,
+ * and the gzip header and trailer are written around its output. <p>
+ *
+ * finish() ends the compressed data; close() is never needed and would
+ * close the underlying stream as well. release() gives the Deflater back
+ * to the pool of Compression.
+ *
+ * @author Hannes R.
+ */
+class CompressingOutputStream extends DeflaterOutputStream {
+
+	// constants
+	static final int BUFFER_SIZE = 8192;
+	static final byte[] GZIP_HEADER = {
+		0x1f, (byte)0x8b, // magic
+		Deflater.DEFLATED, // compression method
+		0, // flags
+		0, 0, 0, 0, // modification time
+		0, // extra flags
+		(byte)0xff // operating system: unknown
+	};
+
+	// members
+	CRC32 mCrc;
+	boolean mFinished = false;
+
+	CompressingOutputStream(OutputStream out, Deflater deflater, boolean gzip)
+			throws IOException {
+		super(out, deflater, BUFFER_SIZE);
+		if (gzip) {
+			mCrc = new CRC32();
+			out.write(GZIP_HEADER);
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		super.write(b, off, len);
+		if (mCrc != null) mCrc.update(b, off, len);
+	}
+
+	@Override
+	public void finish() throws IOException {
+		if (mFinished) return;
+		mFinished = true;
+		super.finish();
+		if (mCrc != null) {
+			byte[] trailer = new byte[8];
+			writeInt(trailer, 0, (int)mCrc.getValue());
+			writeInt(trailer, 4, (int)def.getBytesRead());
+			out.write(trailer);
+		}
+	}
+
+	/**
+	 * Gives back the Deflater; the stream can not be used afterwards.
+	 */
+	void release() {
+		if (def == null) return;
+		Compression.release(def, mCrc != null);
+		def = null;
+	}
+
+	// little endian, as gzip wants it
+	private static void writeInt(byte[] b, int off, int v) {
+		b[off] = (byte)v;
+		b[off+1] = (byte)(v >> 8);
+		b[off+2] = (byte)(v >> 16);
+		b[off+3] = (byte)(v >> 24);
+	}
+
+}
@@ -0,0 +1,137 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Decides whether a response body is compressed, and with which content
+ * coding. Only types that are known to compress well are compressed, and
+ * only if the body is not too small to be worth it. <p>
+ *
+ * Deflaters are kept in a small pool shared by all threads and reset for
+ * every response, since creating one allocates native zlib state. A
+ * Deflater that the pool has no room for is ended, which frees that state
+ * right away instead of when the garbage collector gets to it.
+ *
+ * @author Hannes R.
+ */
+class Compression {
+
+	// constants
+	static final String GZIP = "gzip";
+	static final String DEFLATE = "deflate";
+	static final int MIN_SIZE = 256;
+	static final int LEVEL = Deflater.DEFAULT_COMPRESSION;
+	static final int MAX_POOLED = 16;
+	static final String[] COMPRESSIBLE_TYPES = {
+		"text/",
+		"application/javascript",
+		"application/json",
+		"application/xml",
+		"application/xhtml+xml",
+		"application/wasm",
+		"image/svg+xml",
+	};
+
+	// members
+	private static final ArrayDeque<Deflater> sGzipDeflaters = new ArrayDeque<Deflater>();
+	private static final ArrayDeque<Deflater> sZlibDeflaters = new ArrayDeque<Deflater>();
+
+	/**
+	 * @param size data size of the content, -1 if unknown
+	 * @return true if the content is of a type and size worth compressing;
+	 *         responses for such content vary by Accept-Encoding
+	 */
+	static boolean isCompressible(String mimetype, long size) {
+		if (mimetype == null) return false;
+		if (size >= 0 && size < MIN_SIZE) return false;
+		String type = mimetype.toLowerCase(Locale.US);
+		for (String prefix : COMPRESSIBLE_TYPES) {
+			if (type.startsWith(prefix)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Picks the coding with the highest q-value that is not zero from an
+	 * Accept-Encoding value, gzip winning ties.
+	 * @return GZIP, DEFLATE or null if neither is acceptable
+	 */
+	static String negotiate(String acceptEncoding) {
+		if (acceptEncoding == null) return null;
+		float gzip = -1, deflate = -1, any = -1;
+		for (String item : acceptEncoding.split(",")) {
+			int semi = item.indexOf(';');
+			String coding = (semi < 0 ? item : item.substring(0, semi)).trim().toLowerCase(Locale.US);
+			float q = semi < 0 ? 1 : qvalue(item.substring(semi+1));
+			if (coding.equals(GZIP) || coding.equals("x-gzip")) gzip = q;
+			else if (coding.equals(DEFLATE)) deflate = q;
+			else if (coding.equals("*")) any = q;
+		}
+		if (gzip < 0) gzip = any;
+		if (deflate < 0) deflate = any;
+		if (gzip > 0 && gzip >= deflate) return GZIP;
+		if (deflate > 0) return DEFLATE;
+		return null;
+	}
+
+	/**
+	 * @return stream that compresses into out; call finish() when done,
+	 *         and release() in any case
+	 */
+	static CompressingOutputStream stream(OutputStream out, String coding) throws IOException {
+		boolean gzip = GZIP.equals(coding);
+		Deflater deflater = lease(gzip);
+		try {
+			return new CompressingOutputStream(out, deflater, gzip);
+		} catch (IOException ex) {
+			release(deflater, gzip);
+			throw ex;
+		}
+	}
+
+	static Deflater lease(boolean gzip) {
+		ArrayDeque<Deflater> pool = (gzip ? sGzipDeflaters : sZlibDeflaters);
+		Deflater deflater;
+		synchronized (pool) {
+			deflater = pool.poll();
+		}
+		if (deflater == null) return new Deflater(LEVEL, gzip);
+		deflater.reset();
+		return deflater;
+	}
+
+	/**
+	 * Gives a Deflater back to the pool, or ends it if the pool is full.
+	 * It must not be used afterwards.
+	 */
+	static void release(Deflater deflater, boolean gzip) {
+		ArrayDeque<Deflater> pool = (gzip ? sGzipDeflaters : sZlibDeflaters);
+		synchronized (pool) {
+			if (pool.size() < MAX_POOLED) {
+				pool.push(deflater);
+				return;
+			}
+		}
+		deflater.end();
+	}
+
+	// value of the q parameter; a malformed one makes the coding unacceptable
+	private static float qvalue(String params) {
+		for (String param : params.split(";")) {
+			param = param.trim();
+			if (param.startsWith("q=") || param.startsWith("Q=")) {
+				try {
+					return Float.parseFloat(param.substring(2).trim());
+				} catch (NumberFormatException ex) {
+					return 0;
+				}
+			}
+		}
+		return 1;
+	}
+
+}
@@ -0,0 +1,173 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.FilterInputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffered input stream of a connection. Works like BufferedInputStream,
+ * but lets the RequestParser scan the buffered bytes in place, so that the
+ * request head is not read one byte at a time. Whatever follows the head
+ * (a request body, or the next pipelined request) stays in the buffer for
+ * the next reader. <p>
+ *
+ * Large reads are passed directly to the underlying stream once the
+ * buffer is empty. <p>
+ *
+ * Before the stream reads from the socket, and thereby possibly waits
+ * for the client, it flushes the output of the connection. Responses are
+ * thus not flushed one by one, but when there are no more requests to
+ * answer. <p>
+ *
+ * The buffer is leased from the BufferPool, and given back with release()
+ * when the connection ends.
+ *
+ * @author Hannes R.
+ */
+class ConnectionInputStream extends FilterInputStream {
+
+	// constants
+	static final int BUFFER_SIZE = 8192;
+
+	// members
+	byte[] mBuf;
+	int mPos;
+	int mCount;
+	Flushable mOutput;
+	Metrics mMetrics;
+	ConnectionManager.Tracker mTracker;
+
+	ConnectionInputStream(InputStream in) {
+		super(in);
+		this.mBuf = BufferPool.lease(BUFFER_SIZE);
+		this.mPos = 0;
+		this.mCount = 0;
+	}
+
+	/**
+	 * @param output flushed whenever the stream is about to read from the
+	 *        underlying stream
+	 */
+	void flushBeforeReading(Flushable output) {
+		this.mOutput = output;
+	}
+
+	/**
+	 * @param metrics where the bytes read are counted; null for nowhere
+	 */
+	void setMetrics(Metrics metrics) {
+		this.mMetrics = metrics;
+	}
+
+	/**
+	 * @param tracker told whenever data has arrived; null for nothing
+	 */
+	void setTracker(ConnectionManager.Tracker tracker) {
+		this.mTracker = tracker;
+	}
+
+	/**
+	 * @return number of bytes in the buffer, which can be read without
+	 *         waiting
+	 */
+	int buffered() {
+		return mCount - mPos;
+	}
+
+	/**
+	 * Puts bytes that were read from the underlying stream elsewhere into
+	 * the (empty) buffer, to be read before anything else.
+	 * @param data bytes in read mode; at most BUFFER_SIZE of them
+	 */
+	void prefill(ByteBuffer data) {
+		mPos = 0;
+		mCount = data.remaining();
+		data.get(mBuf, 0, mCount);
+	}
+
+	/**
+	 * Reads more data into the (empty) buffer.
+	 * @return number of bytes read, or -1 on EOF
+	 */
+	int fill() throws IOException {
+		beforeReading();
+		mPos = 0;
+		mCount = 0;
+		int n = in.read(mBuf, 0, mBuf.length);
+		if (n > 0) {
+			mCount = n;
+			received(n);
+		}
+		return n;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (mPos >= mCount && fill() <= 0) return -1;
+		return 0xFF & mBuf[mPos++];
+	}
+
+	@Override
+	public int read(byte b[], int off, int len) throws IOException {
+		if (len == 0) return 0;
+		if (mPos >= mCount) {
+			if (len >= mBuf.length) {
+				beforeReading();
+				int n = in.read(b, off, len);
+				if (n > 0) received(n);
+				return n;
+			}
+			if (fill() <= 0) return -1;
+		}
+		int n = Math.min(len, mCount - mPos);
+		System.arraycopy(mBuf, mPos, b, off, n);
+		mPos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		if (n <= 0) return 0;
+		if (mPos < mCount) {
+			int skipped = (int)Math.min(n, mCount - mPos);
+			mPos += skipped;
+			return skipped;
+		}
+		beforeReading();
+		long skipped = in.skip(n);
+		if (skipped > 0) received(skipped);
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (mCount - mPos) + in.available();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Returns the buffer to the pool. The stream can not be used afterwards.
+	 */
+	void release() {
+		BufferPool.release(mBuf);
+		mBuf = null;
+		mPos = 0;
+		mCount = 0;
+	}
+
+	private void beforeReading() throws IOException {
+		if (mOutput != null) mOutput.flush();
+	}
+
+	private void received(long n) {
+		if (mMetrics != null) mMetrics.received(n);
+		if (mTracker != null) mTracker.received(n);
+	}
+
+}
@@ -0,0 +1,359 @@
+package com.webs.graub.tinywebserver;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of the open connections of a Server, of both engines, and
+ * ends those that do not make progress: a connection may wait for its
+ * next request only for the idle timeout, the head of a request must
+ * arrive within the header timeout from its first byte, a request body
+ * must not stall for longer than the body timeout, and a write of the
+ * response must not wait for the client for longer than the write
+ * timeout. If a minimum data rate is set, a connection that receives a
+ * body or sends a response more slowly than that, over a grace period in
+ * which it waits for the client, is ended too. It also limits the number
+ * of connections, the number of requests on one connection, and the size
+ * of request heads. All timeouts are kept in one TimingWheel. <p>
+ *
+ * A connection reports its phase to its Tracker, which schedules the
+ * timeout of that phase, and the bytes it transfers. When a timeout
+ * expires, the connection is told to end: a Session closes its socket,
+ * which wakes up its blocked thread, and a NioConnection is closed by the
+ * engine's thread. A connection whose request head did not arrive in time
+ * is answered with "408 Request Timeout" first. <p>
+ *
+ * When the server stops, all connections are ended.
+ *
+ * @author Hannes R.
+ */
+class ConnectionManager {
+
+	// phases
+	static final int IDLE = 0;
+	static final int HEAD = 1;
+	static final int BODY = 2;
+	static final int BUSY = 3;
+
+	/**
+	 * A connection that can be ended from another thread.
+	 */
+	interface Managed {
+
+		/**
+		 * Ends the connection. Called by the timing wheel's thread or by
+		 * the thread that stops the server; must not block.
+		 */
+		void expire();
+
+	}
+
+	// members
+	final TimingWheel mWheel = new TimingWheel();
+	final Set<Tracker> mTrackers = Collections.newSetFromMap(new ConcurrentHashMap<Tracker, Boolean>());
+	final AtomicInteger mCount = new AtomicInteger();
+	long mIdleTimeout = Server.DEFAULT_IDLE_TIMEOUT_MS;
+	long mHeaderTimeout = Server.DEFAULT_HEADER_TIMEOUT_MS;
+	long mBodyTimeout = Server.DEFAULT_BODY_TIMEOUT_MS;
+	long mWriteTimeout = Server.DEFAULT_WRITE_TIMEOUT_MS;
+	long mMinDataRate = 0;
+	long mRateGrace = 0;
+	int mMaxRequests = 0;
+	int mMaxConnections = 0;
+	int mMaxHeadSize = RequestParser.DEFAULT_MAX_HEAD_SIZE;
+	int mMaxHeaders = RequestParser.DEFAULT_MAX_HEADERS;
+	volatile boolean mShutdown = false;
+
+	void start() {
+		if (mShutdown) return;
+		mWheel.start("TinyWebServer timeouts");
+	}
+
+	/**
+	 * Ends all connections, and stops the timing wheel. Connections that
+	 * open afterwards are refused.
+	 */
+	void shutdown() {
+		mShutdown = true;
+		mWheel.stop();
+		for (Tracker tracker : mTrackers) {
+			tracker.expireNow();
+		}
+	}
+
+	/**
+	 * Starts tracking a new connection.
+	 * @return tracker for the connection, or null if there are as many
+	 *         connections as allowed, and the connection is to be refused
+	 */
+	Tracker open() {
+		if (mShutdown) return null;
+		int count = mCount.incrementAndGet();
+		if (mMaxConnections > 0 && count > mMaxConnections) {
+			mCount.decrementAndGet();
+			return null;
+		}
+		Tracker tracker = new Tracker();
+		mTrackers.add(tracker);
+		return tracker;
+	}
+
+	/**
+	 * @return number of open connections
+	 */
+	int getCount() {
+		return mCount.get();
+	}
+
+	// time left of a limit, or Long.MAX_VALUE if there is no limit
+	private static long remaining(long limit, long spent) {
+		return (limit > 0 ? limit - spent : Long.MAX_VALUE);
+	}
+
+	/**
+	 * Timeout of one connection, rescheduled as the connection moves from
+	 * one phase to another. While a body is received or a response sent,
+	 * the timeout is a check that is repeated until the phase ends.
+	 */
+	class Tracker extends TimingWheel.Timeout {
+
+		// members
+		volatile Managed mTarget;
+		int mPhase = BUSY;
+		BodyInputStream mBody;
+		volatile long mActive;
+		volatile long mReceived;
+		volatile long mSent;
+		volatile long mWriteStart = -1; // tick a write started to wait, or -1
+		long mWindowStart; // tick and bytes where the rate is measured from
+		long mWindowBytes;
+		int mRequests = 0;
+		volatile boolean mExpired = false;
+		boolean mHeadTimedOut = false;
+		boolean mClosed = false;
+
+		/**
+		 * @param target what is told to end when the timeout expires
+		 */
+		void attach(Managed target) {
+			this.mTarget = target;
+		}
+
+		/**
+		 * The connection waits for the next request.
+		 */
+		void idle() {
+			phase(IDLE, mIdleTimeout);
+		}
+
+		/**
+		 * The head of a request has started to arrive. The deadline is
+		 * not moved if the head was started already.
+		 */
+		void head() {
+			if (mPhase == HEAD) return;
+			phase(HEAD, mHeaderTimeout);
+		}
+
+		/**
+		 * The request body is being read; the timeout expires when no data
+		 * has arrived for the body timeout, or the data arrives too slowly,
+		 * unless the body is complete.
+		 * @param body the body, or null for one that the connection skips
+		 *        by itself
+		 */
+		void body(BodyInputStream body) {
+			if (body != null && body.mEof) {
+				busy();
+				return;
+			}
+			mBody = body;
+			mActive = mWheel.getTicks();
+			phase(BODY, Math.min(remaining(mBodyTimeout, 0), grace()));
+		}
+
+		/**
+		 * The request is being served; the timeout expires only if a write
+		 * waits for the client for too long, or the response goes out too
+		 * slowly.
+		 */
+		void busy() {
+			if (mPhase == BUSY) return;
+			phase(BUSY, Math.min(remaining(mWriteTimeout, 0), grace()));
+		}
+
+		/**
+		 * Data has arrived. Only the body timeout and the data rate take
+		 * note; the others are deadlines.
+		 */
+		void received(long n) {
+			mActive = mWheel.getTicks();
+			mReceived += n;
+		}
+
+		/**
+		 * A write is about to wait for the client to take the data; the
+		 * time is counted from the first such write after sent().
+		 */
+		void writing() {
+			if (mWriteStart < 0) mWriteStart = mWheel.getTicks();
+		}
+
+		/**
+		 * Data has gone to the client; the write that was waiting is done.
+		 */
+		void sent(long n) {
+			if (n <= 0) return;
+			mSent += n;
+			mWriteStart = -1;
+		}
+
+		/**
+		 * @return a parser for the requests of the connection, keeping to
+		 *         the limits of request heads
+		 */
+		RequestParser newParser() {
+			return new RequestParser(mMaxHeadSize, mMaxHeaders);
+		}
+
+		/**
+		 * Counts a request, and makes it the last one of the connection if
+		 * the limit of requests is reached. The request is being served.
+		 */
+		void request(HttpRequest request) {
+			mRequests++;
+			if (mMaxRequests > 0 && mRequests >= mMaxRequests) {
+				request.setCloseConnection();
+			}
+			busy();
+		}
+
+		/**
+		 * @return true if the connection was ended by a timeout or by the
+		 *         server stopping
+		 */
+		boolean isExpired() {
+			return mExpired;
+		}
+
+		/**
+		 * @return true if the connection was ended because its request
+		 *         head did not arrive in time, and is to be answered with
+		 *         "408 Request Timeout"
+		 */
+		boolean isHeadTimedOut() {
+			synchronized (mWheel) {
+				return mHeadTimedOut;
+			}
+		}
+
+		/**
+		 * The connection has ended; it is no longer tracked.
+		 */
+		void close() {
+			synchronized (mWheel) {
+				if (mClosed) return;
+				mClosed = true;
+				mWheel.cancel(this);
+			}
+			mTrackers.remove(this);
+			mCount.decrementAndGet();
+		}
+
+		@Override
+		void expired() {
+			long now = mWheel.getTicks();
+			long next;
+			if (mPhase == BODY && mBody != null && mBody.mEof) {
+				// the body is complete, the request is being served
+				mPhase = BUSY;
+				window(mSent);
+			}
+			if (mPhase == BODY) {
+				long stalled = (now - mActive) * mWheel.mTickMs;
+				if (stalled >= remaining(mBodyTimeout, 0) || tooSlow(mReceived)) {
+					expireNow();
+					return;
+				}
+				// data has arrived since; wait for the rest of the time
+				next = remaining(mBodyTimeout, stalled);
+			} else if (mPhase == BUSY) {
+				long start = mWriteStart;
+				if (start < 0) {
+					// not waiting for the client, which is not to blame
+					window(mSent);
+					next = remaining(mWriteTimeout, 0);
+				} else {
+					long blocked = (now - start) * mWheel.mTickMs;
+					if (blocked >= remaining(mWriteTimeout, 0) || tooSlow(mSent)) {
+						expireNow();
+						return;
+					}
+					next = remaining(mWriteTimeout, blocked);
+				}
+			} else if (mPhase == HEAD && !mHeadTimedOut) {
+				// the connection answers "408 Request Timeout"; it is closed
+				// if that takes longer than a write may
+				mHeadTimedOut = true;
+				expireNow();
+				if (mWriteTimeout > 0) mWheel.schedule(this, mWriteTimeout);
+				return;
+			} else {
+				expireNow();
+				return;
+			}
+			next = Math.min(next, rateCheck());
+			if (next < Long.MAX_VALUE) mWheel.schedule(this, next);
+		}
+
+		void expireNow() {
+			mExpired = true;
+			Managed target = mTarget;
+			if (target != null) target.expire();
+		}
+
+		private void phase(int phase, long timeout) {
+			synchronized (mWheel) {
+				// an expired connection is ending already
+				if (mClosed || mExpired) return;
+				mPhase = phase;
+				window(phase == BODY ? mReceived : mSent);
+				mWheel.schedule(this, timeout < Long.MAX_VALUE ? timeout : 0);
+			}
+		}
+
+		// starts measuring the data rate from now
+		private void window(long bytes) {
+			mWindowStart = mWheel.getTicks();
+			mWindowBytes = bytes;
+		}
+
+		// time from the start of a phase until the data rate is checked
+		private long grace() {
+			return (mMinDataRate > 0 ? mRateGrace : Long.MAX_VALUE);
+		}
+
+		// time until the data rate is to be checked next
+		private long rateCheck() {
+			if (mMinDataRate <= 0) return Long.MAX_VALUE;
+			return mRateGrace - (mWheel.getTicks() - mWindowStart) * mWheel.mTickMs;
+		}
+
+		/**
+		 * Checks the data rate once the grace period has passed, and starts
+		 * the next period.
+		 * @param bytes received or sent so far
+		 */
+		private boolean tooSlow(long bytes) {
+			long elapsed = (mWheel.getTicks() - mWindowStart) * mWheel.mTickMs;
+			if (mMinDataRate <= 0 || elapsed < mRateGrace) return false;
+			boolean slow = (bytes - mWindowBytes) * 1000 < mMinDataRate * elapsed;
+			window(bytes);
+			return slow;
+		}
+
+	}
+
+}
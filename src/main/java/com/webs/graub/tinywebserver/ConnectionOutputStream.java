@@ -0,0 +1,142 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+/**
+ * Buffered output stream of a connection, used for all the responses of
+ * the connection. A response head and a small body end up in the buffer
+ * and go to the socket in one write when the stream is flushed. A write
+ * that does not fit in the buffer is sent together with the buffered
+ * bytes in one gathering write, if the socket has a channel. <p>
+ *
+ * The stream is flushed when the connection is about to wait for more
+ * input (see ConnectionInputStream), so the responses to pipelined
+ * requests that have already been received share one flush. The buffer
+ * is leased from the BufferPool, and given back with release(). <p>
+ *
+ * Every write to the socket is reported to the connection's
+ * ConnectionManager.Tracker, which ends the connection if a write waits
+ * for the client for too long.
+ *
+ * @author Hannes R.
+ */
+class ConnectionOutputStream extends FilterOutputStream {
+
+	// constants
+	static final int BUFFER_SIZE = 8192;
+
+	// members
+	byte[] mBuf;
+	int mCount;
+	GatheringByteChannel mChannel;
+	ByteBuffer[] mGather;
+	Metrics mMetrics;
+	ConnectionManager.Tracker mTracker;
+
+	/**
+	 * @param channel channel of the socket that out writes to; may be null
+	 */
+	ConnectionOutputStream(OutputStream out, GatheringByteChannel channel) {
+		super(out);
+		this.mBuf = BufferPool.lease(BUFFER_SIZE);
+		this.mCount = 0;
+		this.mChannel = channel;
+		this.mGather = new ByteBuffer[2];
+	}
+
+	/**
+	 * @param metrics where the bytes sent are counted; null for nowhere
+	 */
+	void setMetrics(Metrics metrics) {
+		this.mMetrics = metrics;
+	}
+
+	/**
+	 * @param tracker what is told about the writes to the socket; null
+	 *        for nothing
+	 */
+	void setTracker(ConnectionManager.Tracker tracker) {
+		this.mTracker = tracker;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (mCount >= mBuf.length) flushBuffer();
+		mBuf[mCount++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (len <= mBuf.length - mCount) {
+			System.arraycopy(b, off, mBuf, mCount, len);
+			mCount += len;
+		} else if (mChannel != null && mCount > 0) {
+			// buffered bytes and the new data in one system call
+			mGather[0] = ByteBuffer.wrap(mBuf, 0, mCount);
+			mGather[1] = ByteBuffer.wrap(b, off, len);
+			while (mGather[1].hasRemaining()) {
+				writing();
+				sent(mChannel.write(mGather));
+			}
+			mGather[0] = null;
+			mGather[1] = null;
+			mCount = 0;
+		} else {
+			flushBuffer();
+			if (len < mBuf.length) {
+				System.arraycopy(b, off, mBuf, 0, len);
+				mCount = len;
+			} else {
+				writing();
+				out.write(b, off, len);
+				sent(len);
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * @return number of bytes waiting for a flush
+	 */
+	int buffered() {
+		return mCount;
+	}
+
+	/**
+	 * Returns the buffer to the pool; whatever has not been flushed is
+	 * dropped. The stream can not be used afterwards.
+	 */
+	void release() {
+		BufferPool.release(mBuf);
+		mBuf = null;
+		mCount = 0;
+	}
+
+	private void flushBuffer() throws IOException {
+		if (mCount > 0) {
+			writing();
+			out.write(mBuf, 0, mCount);
+			sent(mCount);
+			mCount = 0;
+		}
+	}
+
+	private void writing() {
+		if (mTracker != null) mTracker.writing();
+	}
+
+	private void sent(long n) {
+		if (mMetrics != null) mMetrics.sent(n);
+		if (mTracker != null) mTracker.sent(n);
+	}
+
+}
@@ -0,0 +1,127 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * FileRegionContent for a whole file, or a part of it. <p>
+ *
+ * Example:
+ * <pre>
+ * public Content getContent(URI uri) {
+ *     return new FileRegion(new File(root, uri.getPath()), "video/mp4");
+ * }
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class FileRegion implements FileRegionContent, RandomAccessContent, ValidatedContent {
+
+	// constants
+	static final int COPY_BUFFER_SIZE = 8192;
+
+	// members
+	File mFile;
+	long mOffset;
+	long mLength;
+	String mMimetype;
+	long mLastModified = -1;
+
+	public FileRegion(File file, String mimetype) {
+		this(file, 0, file.length(), mimetype);
+	}
+
+	public FileRegion(File file, long offset, long length, String mimetype) {
+		this.mFile = file;
+		this.mOffset = offset;
+		this.mLength = length;
+		this.mMimetype = mimetype;
+	}
+
+	@Override
+	public String getMimetype() {
+		return mMimetype;
+	}
+
+	@Override
+	public int getDataSize() {
+		// lengths beyond int range are only told by getContentLength()
+		return mLength <= Integer.MAX_VALUE ? (int)mLength : 0;
+	}
+
+	@Override
+	public long getContentLength() {
+		return mLength;
+	}
+
+	@Override
+	public String getETag() {
+		long modified = getLastModified();
+		if (modified <= 0) return null;
+		return etag(modified, mOffset, mLength);
+	}
+
+	@Override
+	public long getLastModified() {
+		if (mLastModified < 0) mLastModified = mFile.lastModified();
+		return mLastModified;
+	}
+
+	@Override
+	public FileChannel getChannel() throws IOException {
+		return new FileInputStream(mFile).getChannel();
+	}
+
+	@Override
+	public long getOffset() {
+		return mOffset;
+	}
+
+	@Override
+	public long getLength() {
+		return mLength;
+	}
+
+	/**
+	 * @return strong entity tag built from the modification time and the
+	 *         position of the data in the file
+	 */
+	static String etag(long lastModified, long offset, long length) {
+		StringBuilder tag = new StringBuilder("\"").append(Long.toHexString(lastModified));
+		if (offset != 0) tag.append('-').append(Long.toHexString(offset));
+		return tag.append('-').append(Long.toHexString(length)).append('"').toString();
+	}
+
+	@Override
+	public void out(OutputStream stream) throws IOException {
+		out(stream, 0, mLength);
+	}
+
+	@Override
+	public void out(OutputStream stream, long offset, long length) throws IOException {
+		FileChannel channel = getChannel();
+		byte[] copy = BufferPool.lease(COPY_BUFFER_SIZE);
+		try {
+			ByteBuffer buf = ByteBuffer.wrap(copy);
+			long position = mOffset + offset;
+			long remaining = length;
+			while (remaining > 0) {
+				buf.clear();
+				if (remaining < buf.capacity()) buf.limit((int)remaining);
+				int n = channel.read(buf, position);
+				if (n < 0) break;
+				stream.write(buf.array(), 0, n);
+				position += n;
+				remaining -= n;
+			}
+		} finally {
+			channel.close();
+			BufferPool.release(copy);
+		}
+	}
+
+}
@@ -0,0 +1,31 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * OutContent whose data is a region of a file. Instead of calling out(),
+ * the server sends the region with FileChannel.transferTo(), which lets
+ * the operating system copy the data from the file to the socket without
+ * passing it through Java buffers. out() is still used where a transfer
+ * is not possible, e.g. when the data must be chunked.
+ */
+public interface FileRegionContent extends OutContent {
+
+	/**
+	 * Opens the file for reading. The server closes the channel once the
+	 * region has been sent.
+	 */
+	FileChannel getChannel() throws IOException;
+
+	/**
+	 * position of the first byte of the region in the file
+	 */
+	long getOffset();
+
+	/**
+	 * number of bytes in the region
+	 */
+	long getLength();
+
+}
@@ -17,14 +17,33 @@ public class Http {
 	public static final String OPTIONS = "OPTIONS";
 	public static final String TRACE = "TRACE";
 
-	// known HTTP headers
-	// TODO: The header name is not case-sensitive (though the value may be)
+	// known HTTP headers; the names are not case-sensitive (though the
+	// values may be), see RequestHeaders
+	static final String HOST = "Host";
+	static final String CONNECTION = "Connection";
 	static final String CONTENT_LENGTH = "Content-Length";
 	static final String CONTENT_TYPE = "Content-Type";
 	static final String TRANSFER_ENCODING = "Transfer-Encoding";
+	static final String RETRY_AFTER = "Retry-After";
+	static final String RANGE = "Range";
+	static final String IF_RANGE = "If-Range";
+	static final String ACCEPT_RANGES = "Accept-Ranges";
+	static final String CONTENT_RANGE = "Content-Range";
+	static final String ETAG = "ETag";
+	static final String LAST_MODIFIED = "Last-Modified";
+	static final String IF_MATCH = "If-Match";
+	static final String IF_NONE_MATCH = "If-None-Match";
+	static final String IF_MODIFIED_SINCE = "If-Modified-Since";
+	static final String IF_UNMODIFIED_SINCE = "If-Unmodified-Since";
+	static final String ACCEPT_ENCODING = "Accept-Encoding";
+	static final String CONTENT_ENCODING = "Content-Encoding";
+	static final String VARY = "Vary";
+	static final String EXPECT = "Expect";
 
 	// HTTP header known values
 	static final String CHUNKED = "chunked";
+	static final String CONTINUE = "100-continue";
+	static final String MULTIPART_BYTERANGES = "multipart/byteranges";
 
 	// HTTP version strings
 	public static String versionString(Version v) {
@@ -0,0 +1,97 @@
+package com.webs.graub.tinywebserver;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TimeZone;
+
+/**
+ * Keeps the "Date:" response header line ready as bytes. A background
+ * timer renders it again once per second, so responses only need to copy
+ * the current array instead of formatting a date each time. Other dates,
+ * such as Last-Modified, are formatted and parsed with per-thread
+ * formatters.
+ *
+ * @author Hannes R.
+ */
+class HttpDate {
+
+	// constants
+	static final String FORMAT = "EEE, dd MMM yyyy HH:mm:ss z";
+	// obsolete formats that recipients must still accept
+	static final String RFC850_FORMAT = "EEEE, dd-MMM-yy HH:mm:ss z";
+	static final String ASCTIME_FORMAT = "EEE MMM d HH:mm:ss yyyy";
+	static final ThreadLocal<SimpleDateFormat[]> sFormats = new ThreadLocal<SimpleDateFormat[]>() {
+		@Override
+		protected SimpleDateFormat[] initialValue() {
+			return new SimpleDateFormat[] {
+					formatter(FORMAT), formatter(RFC850_FORMAT), formatter(ASCTIME_FORMAT)};
+		}
+	};
+
+	// members
+	private static volatile byte[] sDateLine;
+	private static Timer sTicker;
+
+	/**
+	 * @return "Date: ..." header line including CRLF
+	 */
+	static byte[] dateLine() {
+		byte[] line = sDateLine;
+		if (line == null) {
+			start();
+			line = sDateLine;
+		}
+		return line;
+	}
+
+	/**
+	 * @return the time as an HTTP date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+	 */
+	static String format(long millis) {
+		return sFormats.get()[0].format(new Date(millis));
+	}
+
+	/**
+	 * @return milliseconds since the epoch, or -1 if the value is null or
+	 *         not a valid HTTP date
+	 */
+	static long parse(String value) {
+		if (value == null) return -1;
+		value = value.trim();
+		for (SimpleDateFormat f : sFormats.get()) {
+			ParsePosition pos = new ParsePosition(0);
+			Date date = f.parse(value, pos);
+			if (date != null && pos.getIndex() == value.length()) return date.getTime();
+		}
+		return -1;
+	}
+
+	private static SimpleDateFormat formatter(String pattern) {
+		SimpleDateFormat f = new SimpleDateFormat(pattern, Locale.US);
+		f.setTimeZone(TimeZone.getTimeZone("GMT"));
+		f.setLenient(false);
+		return f;
+	}
+
+	private static synchronized void start() {
+		if (sTicker != null) return;
+		final SimpleDateFormat dateFormat = formatter(FORMAT);
+		TimerTask tick = new TimerTask() {
+			@Override
+			public void run() {
+				String line = "Date: " + dateFormat.format(new Date()) + "\r\n";
+				sDateLine = line.getBytes(RequestParser.ISO_8859_1);
+			}
+		};
+		tick.run();
+		sTicker = new Timer("TinyWebServer-date", true);
+		// align ticks with the start of each second
+		long delay = 1000 - System.currentTimeMillis() % 1000;
+		sTicker.scheduleAtFixedRate(tick, delay, 1000);
+	}
+
+}
@@ -1,15 +1,11 @@
 package com.webs.graub.tinywebserver;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.HashMap;
-import java.util.Map;
 
 
 /**
- * Represents a HTTP request that 
+ * Represents a HTTP request that has been read from a client. The
+ * request line and headers are set by the RequestParser.
  * @author rompphan
  *
  */
@@ -19,91 +15,35 @@ class HttpRequest {
 	private URI mUri;
 	private String mVersion;
 	private Http.Version mVersionMode;
-	private HashMap<String,String> mHeaders;
+	private RequestHeaders mHeaders;
 	private HttpStatus mStatus;
+	private boolean mForceClose;
+	private BodyInputStream mBody;
+	private long mParseTime;
 
 	HttpRequest() {
 		mCommand = null;
-		mUri = URI.create("/");
+		mUri = RequestParser.ROOT;
 		mVersion = "";
 		mVersionMode = Http.Version.HTTP1_1;
-		mHeaders = new HashMap<String,String>();
+		mHeaders = null;
 		mStatus = null;
+		mForceClose = false;
 	}
 
-	void readRequestLine(InputStream in) throws IOException {
-		// read and set request line parameters
-		String requestline[] = Util.readLine(in).split("[\\s]+", 3);
-		if (requestline.length==3) {
-			mCommand = recogniseCommand(requestline[0]);
-			mUri = recogniseUri(requestline[1]);
-			mVersion = requestline[2];
-			mVersionMode = recogniseVersionMode(requestline[2]);
-		} else {
-			setStatus(new HttpStatus(HttpStatus.BAD_REQUEST));
-		}
-
-	}
-
-
-	private String recogniseCommand(String cmd) {
-		if (cmd.equals(Http.GET) || cmd.equals(Http.HEAD) ||
-			cmd.equals(Http.POST) || cmd.equals(Http.PUT) ||
-			cmd.equals(Http.DELETE)|| cmd.equals(Http.OPTIONS)||
-			cmd.equals(Http.TRACE)) {
-			return cmd;
-		} else {
-			setStatus(new HttpStatus(HttpStatus.BAD_REQUEST));
-			return "";
-		}
-	}
-
-	private URI recogniseUri(String uri) {
-		try {
-			return new URI(uri);
-		} catch (URISyntaxException e) {
-			mStatus = new HttpStatus(HttpStatus.BAD_REQUEST);
-			return URI.create("/");
-		}
-	}
-
-	private Http.Version recogniseVersionMode(String versionString) {
-		int p=versionString.indexOf("/");
-		String protocolPart = versionString.substring(0, p).trim();
-		if (!protocolPart.equals("HTTP")) {
-			mStatus = new HttpStatus(HttpStatus.BAD_REQUEST);
-			return Http.Version.HTTP1_0;
-		}
-		String versionPart = versionString.substring(p+1).trim();
-		if (versionPart.equals("1.0")) {
-			return Http.Version.HTTP1_0;
-		} else if (versionPart.equals("1.1")) {
-			return Http.Version.HTTP1_1;
-		} else if (versionPart.substring(0,2).equals("1.")) {
-			// Client version is HTTP/1.X -> serve it as HTTP/1.1
-			return Http.Version.HTTP1_1;
-		} else {
-			mStatus = new HttpStatus(HttpStatus.BAD_REQUEST);
-			return Http.Version.HTTP1_0;
-		}
-	}
-
-
-	void readHeaders(InputStream in) throws IOException {
-		// read header section
-		if (!Util.readHeaders(in, mHeaders)) {
-			setStatus(new HttpStatus(HttpStatus.BAD_REQUEST));
-		}
-
-		// validate headers
-		validate();
+	void setRequestLine(String command, URI uri, String version,
+			Http.Version versionMode) {
+		mCommand = command;
+		mUri = uri;
+		mVersion = version;
+		mVersionMode = versionMode;
 	}
 
-	private void validate() {
+	void validate() {
 		if (mStatus != null)
 			return; // already bad
 
-		if (getVersionMode()==Http.Version.HTTP1_1 && !mHeaders.containsKey("Host"))
+		if (getVersionMode()==Http.Version.HTTP1_1 && !getHeaders().contains(RequestHeaders.HOST))
 			setStatus(new HttpStatus(HttpStatus.BAD_REQUEST));
 
 		// add more validation here if needed
@@ -126,21 +66,59 @@ class HttpRequest {
 		return mVersionMode;
 	}
 
-	Map<String,String> getHeaders() {
+	/**
+	 * @return headers of the request; empty ones for a request that was
+	 *         not parsed
+	 */
+	RequestHeaders getHeaders() {
+		if (mHeaders == null) mHeaders = new RequestHeaders();
 		return mHeaders;
 	}
 
+	void setHeaders(RequestHeaders headers) {
+		mHeaders = headers;
+	}
+
 	HttpStatus getStatus() {
 		return mStatus;
 	}
+
+	/**
+	 * @return the request body, or null if it can not be read
+	 */
+	BodyInputStream getBody() {
+		return mBody;
+	}
+
+	void setBody(BodyInputStream body) {
+		mBody = body;
+	}
+
+	/**
+	 * @return nanoseconds the parser spent on the request head
+	 */
+	long getParseTime() {
+		return mParseTime;
+	}
+
+	void setParseTime(long nanos) {
+		mParseTime = nanos;
+	}
 	
-	private void setStatus(HttpStatus status) {
+	void setStatus(HttpStatus status) {
 		// can not double-set
 		if (mStatus == null)
 			mStatus = status;
 	}
 
+	void setCloseConnection() {
+		mForceClose = true;
+	}
+
 	boolean shouldCloseConnection() {
+		// the server may have decided to close the connection
+		if (mForceClose)
+			return true;
 		// if there is a severe error, force close
 		if (mStatus!=null)
 			if (mStatus.isSevereError())
@@ -150,9 +128,9 @@ class HttpRequest {
 		if (mVersionMode != Http.Version.HTTP1_1)
 			return true;
 		// if "Connection: close" header sent, connection will be closed.
-		if (mHeaders.containsKey("Connection"))
-			if (mHeaders.get("Connection").toLowerCase().equals("close"))
-				return true;
+		String connection = getHeaders().get(RequestHeaders.CONNECTION);
+		if (connection != null && connection.equalsIgnoreCase("close"))
+			return true;
 		// otherwise connection can be kept alive
 		return false;
 	}
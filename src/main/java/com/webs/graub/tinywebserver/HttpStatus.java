@@ -11,13 +11,25 @@ public class HttpStatus extends RuntimeException {
 	// most commonly used status codes
 	public static final String CONTINUE = "100";
 	public static final String OK = "200";
+	public static final String NO_CONTENT = "204";
+	public static final String PARTIAL_CONTENT = "206";
+	public static final String NOT_MODIFIED = "304";
 	public static final String BAD_REQUEST = "400";
 	public static final String FORBIDDEN = "403";
 	public static final String NOT_FOUND = "404";
 	public static final String METHOD_NOT_ALLOWED = "405";
+	public static final String REQUEST_TIMEOUT = "408";
 	public static final String LENGTH_REQUIRED = "411";
+	public static final String PRECONDITION_FAILED = "412";
+	public static final String PAYLOAD_TOO_LARGE = "413";
+	public static final String URI_TOO_LONG = "414";
+	public static final String UNSUPPORTED_MEDIA_TYPE = "415";
+	public static final String RANGE_NOT_SATISFIABLE = "416";
+	public static final String EXPECTATION_FAILED = "417";
+	public static final String REQUEST_HEADER_FIELDS_TOO_LARGE = "431";
 	public static final String INTERNAL_SERVER_ERROR = "500";
 	public static final String NOT_IMPLEMENTED = "501";
+	public static final String SERVICE_UNAVAILABLE = "503";
 	public static final String HTTP_VERSION_NOT_SUPPORTED = "505";
 
 	public static final String SUBRANGE_SEPARATOR = ".";
@@ -25,13 +37,25 @@ public class HttpStatus extends RuntimeException {
 	public static String message(String code) {
 		if 		(code.equals(CONTINUE)) return "Continue";
 		else if (code.equals(OK)) return "OK";
+		else if (code.equals(NO_CONTENT)) return "No Content";
+		else if (code.equals(PARTIAL_CONTENT)) return "Partial Content";
+		else if (code.equals(NOT_MODIFIED)) return "Not Modified";
 		else if (code.equals(FORBIDDEN)) return "Forbidden";
 		else if (code.equals(BAD_REQUEST)) return "Bad Request";
 		else if (code.equals(NOT_FOUND)) return "Not Found";
 		else if (code.equals(METHOD_NOT_ALLOWED)) return "Method Not Allowed";
+		else if (code.equals(REQUEST_TIMEOUT)) return "Request Timeout";
 		else if (code.equals(LENGTH_REQUIRED)) return "Length Required";
+		else if (code.equals(PRECONDITION_FAILED)) return "Precondition Failed";
+		else if (code.equals(PAYLOAD_TOO_LARGE)) return "Payload Too Large";
+		else if (code.equals(URI_TOO_LONG)) return "URI Too Long";
+		else if (code.equals(UNSUPPORTED_MEDIA_TYPE)) return "Unsupported Media Type";
+		else if (code.equals(RANGE_NOT_SATISFIABLE)) return "Range Not Satisfiable";
+		else if (code.equals(EXPECTATION_FAILED)) return "Expectation Failed";
+		else if (code.equals(REQUEST_HEADER_FIELDS_TOO_LARGE)) return "Request Header Fields Too Large";
 		else if (code.equals(INTERNAL_SERVER_ERROR)) return "Internal Server Error";
 		else if (code.equals(NOT_IMPLEMENTED)) return "Not Implemented";
+		else if (code.equals(SERVICE_UNAVAILABLE)) return "Service Unavailable";
 		else if (code.equals(HTTP_VERSION_NOT_SUPPORTED)) return "HTTP Version Not Supported";
 		else {
 			// cut off the sub-status specifier, if such exists
@@ -52,6 +76,7 @@ public class HttpStatus extends RuntimeException {
 	private static final long serialVersionUID = -5756041809584820369L;
 	String mCode;
 	String mMessage;
+	transient byte[] mStatusLine;
 
 	public HttpStatus(String code) {
 		this(code, message(code));
@@ -82,6 +107,28 @@ public class HttpStatus extends RuntimeException {
 		return mMessage;
 	}
 
+	/**
+	 * @return true if the message is the one that the code has by default
+	 */
+	boolean isStandardMessage() {
+		try {
+			return mMessage.equals(message(mCode));
+		} catch (RuntimeException ex) {
+			// not a code that has one
+			return false;
+		}
+	}
+
+	/**
+	 * @return the status part of a response status line, encoded and
+	 *         including CRLF; rendered once per HttpStatus object
+	 */
+	byte[] statusLine() {
+		if (mStatusLine == null)
+			mStatusLine = ResponseHead.ascii(" " + toString() + "\r\n");
+		return mStatusLine;
+	}
+
 	@Override
 	public String toString() {
 		return mCode + " " + mMessage;
@@ -3,6 +3,16 @@ package com.webs.graub.tinywebserver;
 import java.io.IOException;
 import java.io.InputStream;
 
+/**
+ * Content that receives the body of POST and PUT requests. The body is
+ * streamed from the connection as it arrives, so it is never held in
+ * memory as a whole. <p>
+ *
+ * If the content also implements OutContent, it provides the body of the
+ * response once in() has returned; otherwise the response is
+ * "204 No Content". The in() method may throw an HttpStatus to refuse the
+ * request.
+ */
 public interface InContent extends Content{
 
 	/**
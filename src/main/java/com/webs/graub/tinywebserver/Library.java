@@ -16,5 +16,14 @@ public interface Library {
 	 * as a HTTP error code.
 	 */
 	Content getContent(URI uri) throws HttpStatus;
+
+	/**
+	 * Like getContent(URI), for libraries that answer differently by the
+	 * request method (GET, HEAD, POST or PUT). The server calls this
+	 * method; by default it ignores the method.
+	 */
+	default Content getContent(String method, URI uri) throws HttpStatus {
+		return getContent(uri);
+	}
 	
 }
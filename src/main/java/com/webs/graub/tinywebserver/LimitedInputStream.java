@@ -21,9 +21,9 @@ import java.io.InputStream;
  */
 public class LimitedInputStream extends FilterInputStream {
 
-	int mLimit;
+	long mLimit;
 
-	public LimitedInputStream(InputStream in, int limit) {
+	public LimitedInputStream(InputStream in, long limit) {
 		super(in);
 		this.mLimit = limit;
 	}
@@ -38,7 +38,7 @@ public class LimitedInputStream extends FilterInputStream {
 	@Override
 	public int read(byte b[], int off, int len) throws IOException {
 		if (mLimit<=0) return -1;
-		int toRead = Math.min(len, mLimit);
+		int toRead = (int)Math.min(len, mLimit);
 		toRead = in.read(b, off, toRead);
 		mLimit = (toRead<0 ? toRead : mLimit-toRead);
 		return toRead;
@@ -46,7 +46,7 @@ public class LimitedInputStream extends FilterInputStream {
 
 	@Override
 	public int available() {
-		return mLimit;
+		return (int)Math.min(mLimit, Integer.MAX_VALUE);
 	}
 
 
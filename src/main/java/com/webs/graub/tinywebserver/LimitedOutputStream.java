@@ -7,16 +7,19 @@ import java.util.Arrays;
 
 public class LimitedOutputStream extends FilterOutputStream {
 
-	int mLimit;
+	// constants
+	static final int PADDING_SIZE = 4096;
 
-	public LimitedOutputStream(OutputStream out, int limit) {
+	long mLimit;
+
+	public LimitedOutputStream(OutputStream out, long limit) {
 		super(out);
 		this.mLimit = limit;
 	}
 
 	@Override
 	public void write(byte[] b, int off, int len) throws IOException {
-		int bytesToWrite = Math.min(len, Math.max(mLimit,0));
+		int bytesToWrite = (int)Math.min(len, Math.max(mLimit,0));
 		out.write(b,off,bytesToWrite);
 		mLimit -= len;
 		if (mLimit < 0) {
@@ -42,9 +45,11 @@ public class LimitedOutputStream extends FilterOutputStream {
 		if (mLimit > 0) {
 			System.out.println("WARNING: LimitedOutputStream is writing "+
 					mLimit+" dummy bytes");
-			byte[] dummy = new byte[mLimit];
+			byte[] dummy = new byte[(int)Math.min(mLimit, PADDING_SIZE)];
 			Arrays.fill(dummy, (byte)0);
-			write(dummy,0,dummy.length);
+			while (mLimit > 0) {
+				write(dummy,0,(int)Math.min(mLimit, dummy.length));
+			}
 			assert(mLimit==0);
 		}
 	}
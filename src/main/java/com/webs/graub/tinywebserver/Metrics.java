@@ -0,0 +1,410 @@
+package com.webs.graub.tinywebserver;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a server: requests by method,
+ * responses by status, open and idle connections, bytes received and
+ * sent, and the time spent parsing request heads, getting content from
+ * the library, writing response bodies, and on requests in total. <p>
+ *
+ * Every server records into its own Metrics, unless it is given one to
+ * share with setMetrics(). Recording only increments LongAdders, so the
+ * threads serving requests do not contend for the counters. A connection
+ * is idle while it is open but none of its requests is being answered.
+ * <p>
+ *
+ * The metrics can be read in the Prometheus text format, which the
+ * MetricsLibrary serves, and through JMX once registered as an MBean.
+ * <p>
+ *
+ * Example:
+ * <pre>
+ * Metrics metrics = new Metrics();
+ * Server server = new Server(new MetricsLibrary(new MyLibrary(), metrics), 8080);
+ * server.setMetrics(metrics);
+ * metrics.registerMBean("8080");
+ * server.start();
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class Metrics implements MetricsMBean {
+
+	// constants
+	static final String PREFIX = "tinywebserver_";
+	static final String OTHER_METHOD = "other";
+	static final int MAX_STATUS = 600;
+	public static final String MBEAN_DOMAIN = "com.webs.graub.tinywebserver";
+
+	// members
+	final LongAdder[] mRequests = adders(RequestParser.METHODS.length + 1);
+	final LongAdder[] mResponses = adders(MAX_STATUS);
+	final LongAdder mOpened = new LongAdder();
+	final LongAdder mClosed = new LongAdder();
+	final LongAdder mBusy = new LongAdder();
+	final LongAdder mBytesIn = new LongAdder();
+	final LongAdder mBytesOut = new LongAdder();
+	final Histogram mParseTime = new Histogram();
+	final Histogram mContentTime = new Histogram();
+	final Histogram mOutputTime = new Histogram();
+	final Histogram mRequestTime = new Histogram();
+
+	/**
+	 * Registers the metrics with the platform MBeanServer, under the name
+	 * "com.webs.graub.tinywebserver:type=Metrics,name=" + name.
+	 * @return the name, for unregistering
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName(MBEAN_DOMAIN + ":type=Metrics,name="
+				+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	// recording, by the connections and the RequestHandler
+
+	void connectionOpened() {
+		mOpened.increment();
+	}
+
+	void connectionClosed() {
+		mClosed.increment();
+	}
+
+	void requestStarted(String method) {
+		mRequests[methodIndex(method)].increment();
+		mBusy.increment();
+	}
+
+	/**
+	 * @param status status code of the response, 0 if none was started
+	 * @param nanos time from the start of parsing to the end of the
+	 *        response
+	 */
+	void requestFinished(int status, long nanos) {
+		mBusy.decrement();
+		if (status > 0) responded(status);
+		mRequestTime.recordNanos(nanos);
+	}
+
+	void responded(int status) {
+		if (status > 0 && status < MAX_STATUS) mResponses[status].increment();
+	}
+
+	void received(long bytes) {
+		mBytesIn.add(bytes);
+	}
+
+	void sent(long bytes) {
+		mBytesOut.add(bytes);
+	}
+
+	// reading
+
+	/**
+	 * @return number of requests with the given method; other methods are
+	 *         counted together
+	 */
+	public long getRequests(String method) {
+		return mRequests[methodIndex(method)].sum();
+	}
+
+	/**
+	 * @return number of responses with the given status code
+	 */
+	public long getResponses(int status) {
+		if (status <= 0 || status >= MAX_STATUS) return 0;
+		return mResponses[status].sum();
+	}
+
+	@Override
+	public long getRequests() {
+		return sum(mRequests, 0, mRequests.length);
+	}
+
+	@Override
+	public long getClientErrors() {
+		return sum(mResponses, 400, 500);
+	}
+
+	@Override
+	public long getServerErrors() {
+		return sum(mResponses, 500, MAX_STATUS);
+	}
+
+	@Override
+	public long getConnections() {
+		return mOpened.sum();
+	}
+
+	@Override
+	public long getActiveConnections() {
+		return Math.max(mOpened.sum() - mClosed.sum(), 0);
+	}
+
+	@Override
+	public long getIdleConnections() {
+		return Math.max(getActiveConnections() - mBusy.sum(), 0);
+	}
+
+	@Override
+	public long getBytesReceived() {
+		return mBytesIn.sum();
+	}
+
+	@Override
+	public long getBytesSent() {
+		return mBytesOut.sum();
+	}
+
+	/**
+	 * @return time from the start of parsing a request head to the end of
+	 *         its response; for the non-blocking engine, until the
+	 *         response is buffered
+	 */
+	public Histogram getRequestTime() {
+		return mRequestTime;
+	}
+
+	/**
+	 * @return time spent parsing request heads, without waiting for them
+	 */
+	public Histogram getParseTime() {
+		return mParseTime;
+	}
+
+	/**
+	 * @return time the library takes to give the content
+	 */
+	public Histogram getContentTime() {
+		return mContentTime;
+	}
+
+	/**
+	 * @return time spent writing response bodies
+	 */
+	public Histogram getOutputTime() {
+		return mOutputTime;
+	}
+
+	@Override
+	public long getRequestTime50th() {
+		return mRequestTime.getPercentile(50);
+	}
+
+	@Override
+	public long getRequestTime99th() {
+		return mRequestTime.getPercentile(99);
+	}
+
+	@Override
+	public long getRequestTime999th() {
+		return mRequestTime.getPercentile(99.9);
+	}
+
+	@Override
+	public long getRequestTimeMax() {
+		return mRequestTime.getMax();
+	}
+
+	@Override
+	public long getParseTime99th() {
+		return mParseTime.getPercentile(99);
+	}
+
+	@Override
+	public long getContentTime99th() {
+		return mContentTime.getPercentile(99);
+	}
+
+	@Override
+	public long getOutputTime99th() {
+		return mOutputTime.getPercentile(99);
+	}
+
+	/**
+	 * @return the metrics in the Prometheus text exposition format
+	 */
+	public String toPrometheusText() {
+		StringBuilder out = new StringBuilder(4096);
+		type(out, "requests_total", "counter", "Requests received, by method.");
+		for (int i = 0; i < mRequests.length; ++i) {
+			String method = i < RequestParser.METHODS.length ? RequestParser.METHODS[i] : OTHER_METHOD;
+			out.append(PREFIX).append("requests_total{method=\"").append(method).append("\"} ")
+				.append(mRequests[i].sum()).append('\n');
+		}
+		type(out, "responses_total", "counter", "Responses sent, by status code.");
+		for (int status = 0; status < MAX_STATUS; ++status) {
+			long n = mResponses[status].sum();
+			if (n == 0) continue;
+			out.append(PREFIX).append("responses_total{status=\"").append(status).append("\"} ")
+				.append(n).append('\n');
+		}
+		value(out, "connections_total", "counter", "Connections accepted.", getConnections());
+		value(out, "connections_active", "gauge", "Connections open.", getActiveConnections());
+		value(out, "connections_idle", "gauge", "Open connections without a request being answered.",
+				getIdleConnections());
+		value(out, "received_bytes_total", "counter", "Bytes received from clients.", getBytesReceived());
+		value(out, "sent_bytes_total", "counter", "Bytes sent to clients.", getBytesSent());
+		mParseTime.writePrometheus(out, "parse_seconds", "Time spent parsing request heads.");
+		mContentTime.writePrometheus(out, "content_seconds", "Time the library takes to give content.");
+		mOutputTime.writePrometheus(out, "output_seconds", "Time spent writing response bodies.");
+		mRequestTime.writePrometheus(out, "request_seconds", "Time from parsing a request to its response.");
+		return out.toString();
+	}
+
+	private static void type(StringBuilder out, String name, String type, String help) {
+		out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+		out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+	}
+
+	private static void value(StringBuilder out, String name, String type, String help, long value) {
+		type(out, name, type, help);
+		out.append(PREFIX).append(name).append(' ').append(value).append('\n');
+	}
+
+	private static int methodIndex(String method) {
+		String[] methods = RequestParser.METHODS;
+		for (int i = 0; i < methods.length; ++i) {
+			// the parser gives the constant strings of known methods
+			if (methods[i] == method || methods[i].equals(method)) return i;
+		}
+		return methods.length;
+	}
+
+	private static LongAdder[] adders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; ++i) adders[i] = new LongAdder();
+		return adders;
+	}
+
+	private static long sum(LongAdder[] adders, int from, int to) {
+		long sum = 0;
+		for (int i = from; i < to; ++i) sum += adders[i].sum();
+		return sum;
+	}
+
+	/**
+	 * Histogram of times in microseconds, in the manner of HdrHistogram:
+	 * every power of two is divided into eight buckets, so a recorded
+	 * value is known to within 12.5%, from one microsecond to many hours,
+	 * with a fixed number of buckets. Each bucket is a LongAdder.
+	 */
+	public static class Histogram {
+
+		// constants
+		static final int SUB_BITS = 3;
+		static final int SUB_BUCKETS = 1 << SUB_BITS;
+		static final int MAX_EXPONENT = 36;
+		static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+		static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BITS + 1) * SUB_BUCKETS;
+		// bounds of the buckets exported to Prometheus: 2^4 to 2^26 microseconds
+		static final int MIN_EXPORT_EXPONENT = 4;
+		static final int MAX_EXPORT_EXPONENT = 26;
+
+		// members
+		final LongAdder[] mBuckets = adders(BUCKETS);
+		final LongAdder mSum = new LongAdder();
+
+		public void record(long micros) {
+			if (micros < 0) micros = 0;
+			if (micros > MAX_VALUE) micros = MAX_VALUE;
+			mBuckets[bucketOf(micros)].increment();
+			mSum.add(micros);
+		}
+
+		void recordNanos(long nanos) {
+			record(nanos / 1000);
+		}
+
+		public long getCount() {
+			return sum(mBuckets, 0, BUCKETS);
+		}
+
+		/**
+		 * @return sum of the recorded values, in microseconds
+		 */
+		public long getSum() {
+			return mSum.sum();
+		}
+
+		/**
+		 * @param percent 0 to 100
+		 * @return the value below which the given percentage of the
+		 *         recorded values are, as the highest value of its bucket;
+		 *         0 if nothing has been recorded
+		 */
+		public long getPercentile(double percent) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				counts[i] = mBuckets[i].sum();
+				total += counts[i];
+			}
+			if (total == 0) return 0;
+			long rank = Math.max((long)Math.ceil(total * percent / 100), 1);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; ++i) {
+				seen += counts[i];
+				if (seen >= rank) return highestOf(i);
+			}
+			return highestOf(BUCKETS - 1);
+		}
+
+		/**
+		 * @return the highest value of the highest bucket that has values
+		 */
+		public long getMax() {
+			for (int i = BUCKETS - 1; i >= 0; --i) {
+				if (mBuckets[i].sum() > 0) return highestOf(i);
+			}
+			return 0;
+		}
+
+		/**
+		 * Writes the histogram in seconds, with power-of-two bucket bounds;
+		 * a bucket counts the values below its bound.
+		 */
+		void writePrometheus(StringBuilder out, String name, String help) {
+			type(out, name, "histogram", help);
+			long cumulative = 0;
+			int i = 0;
+			for (int e = MIN_EXPORT_EXPONENT; e <= MAX_EXPORT_EXPONENT; ++e) {
+				long bound = 1L << e;
+				for (; highestOf(i) < bound; ++i) cumulative += mBuckets[i].sum();
+				out.append(PREFIX).append(name).append("_bucket{le=\"").append(bound / 1e6).append("\"} ")
+					.append(cumulative).append('\n');
+			}
+			for (; i < BUCKETS; ++i) cumulative += mBuckets[i].sum();
+			out.append(PREFIX).append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+			out.append(PREFIX).append(name).append("_sum ").append(getSum() / 1e6).append('\n');
+			out.append(PREFIX).append(name).append("_count ").append(cumulative).append('\n');
+		}
+
+		static int bucketOf(long value) {
+			if (value < SUB_BUCKETS) return (int)value;
+			int exponent = 63 - Long.numberOfLeadingZeros(value);
+			int shift = exponent - SUB_BITS;
+			return SUB_BUCKETS + shift * SUB_BUCKETS + (int)(value >>> shift) - SUB_BUCKETS;
+		}
+
+		static long lowestOf(int bucket) {
+			if (bucket < SUB_BUCKETS) return bucket;
+			int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+			int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+			return (long)(SUB_BUCKETS + sub) << shift;
+		}
+
+		static long highestOf(int bucket) {
+			if (bucket < SUB_BUCKETS) return bucket;
+			int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+			return lowestOf(bucket) + (1L << shift) - 1;
+		}
+	}
+
+}
@@ -0,0 +1,81 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.charset.Charset;
+
+/**
+ * Library that serves Metrics in the Prometheus text format at one path,
+ * "/metrics" by default, and passes all other requests to another
+ * library. The text is rendered anew for every request. <p>
+ *
+ * Example:
+ * <pre>
+ * Metrics metrics = new Metrics();
+ * Server server = new Server(new MetricsLibrary(new MyLibrary(), metrics), 8080);
+ * server.setMetrics(metrics);
+ * server.start();
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class MetricsLibrary implements Library {
+
+	// constants
+	public static final String DEFAULT_PATH = "/metrics";
+	static final String MIMETYPE = "text/plain; version=0.0.4; charset=utf-8";
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	// members
+	Library mLibrary;
+	Metrics mMetrics;
+	String mPath;
+
+	public MetricsLibrary(Library library, Metrics metrics) {
+		this(library, metrics, DEFAULT_PATH);
+	}
+
+	/**
+	 * @param library library that serves everything else
+	 * @param path path of the metrics
+	 */
+	public MetricsLibrary(Library library, Metrics metrics, String path) {
+		this.mLibrary = library;
+		this.mMetrics = metrics;
+		this.mPath = path;
+	}
+
+	@Override
+	public Content getContent(URI uri) throws HttpStatus {
+		return getContent(Http.GET, uri);
+	}
+
+	@Override
+	public Content getContent(String method, URI uri) throws HttpStatus {
+		if (!mPath.equals(uri.getPath())) {
+			return mLibrary.getContent(method, uri);
+		}
+		if (!Http.GET.equals(method) && !Http.HEAD.equals(method)) {
+			throw new HttpStatus(HttpStatus.METHOD_NOT_ALLOWED);
+		}
+		final byte[] text = mMetrics.toPrometheusText().getBytes(UTF_8);
+		return new OutContent() {
+			@Override
+			public int getDataSize() {
+				return text.length;
+			}
+
+			@Override
+			public String getMimetype() {
+				return MIMETYPE;
+			}
+
+			@Override
+			public void out(OutputStream stream) throws IOException {
+				stream.write(text);
+			}
+		};
+	}
+
+}
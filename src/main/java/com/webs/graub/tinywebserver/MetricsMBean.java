@@ -0,0 +1,41 @@
+package com.webs.graub.tinywebserver;
+
+/**
+ * Management interface of Metrics, as seen through JMX. Times are in
+ * microseconds.
+ *
+ * @author Hannes R.
+ */
+public interface MetricsMBean {
+
+	long getRequests();
+
+	long getClientErrors();
+
+	long getServerErrors();
+
+	long getConnections();
+
+	long getActiveConnections();
+
+	long getIdleConnections();
+
+	long getBytesReceived();
+
+	long getBytesSent();
+
+	long getRequestTime50th();
+
+	long getRequestTime99th();
+
+	long getRequestTime999th();
+
+	long getRequestTimeMax();
+
+	long getParseTime99th();
+
+	long getContentTime99th();
+
+	long getOutputTime99th();
+
+}
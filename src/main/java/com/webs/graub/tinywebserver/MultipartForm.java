@@ -0,0 +1,511 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Decoder for multipart/form-data request bodies, as sent by HTML forms
+ * that upload files. The body is read as a stream, in one pass: small
+ * parts are kept in memory, while a part that grows over the threshold is
+ * written to a temporary file as it arrives. The memory used by a form is
+ * limited as a whole, too, so uploading files of any size or number costs
+ * a bounded amount of heap. <p>
+ *
+ * The boundaries are searched with a precomputed matcher that looks at
+ * every byte of the body only once, carrying a partial match over from one
+ * read to the next. <p>
+ *
+ * Temporary files are removed by delete(), which the content must call
+ * once it is done with the parts. <p>
+ *
+ * Example:
+ * <pre>
+ * public void in(InputStream in) throws IOException {
+ *     MultipartForm form = MultipartForm.parse(in);
+ *     try {
+ *         Part file = form.getPart("file");
+ *         ...
+ *     } finally {
+ *         form.delete();
+ *     }
+ * }
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class MultipartForm {
+
+	// constants
+	public static final String MULTIPART_FORM_DATA = "multipart/form-data";
+	public static final int DEFAULT_MEMORY_THRESHOLD = 64 * 1024;
+	public static final long DEFAULT_MAX_MEMORY = 1024 * 1024;
+	static final int BUFFER_SIZE = 8192;
+	static final int INITIAL_PART_SIZE = 256;
+	static final int MAX_HEADER_SIZE = 8192;
+	static final int MAX_PARTS = 1000;
+	static final int MAX_BOUNDARY_LENGTH = 70;
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+	static final String TEMP_PREFIX = "tinywebserver-";
+	static final String TEMP_SUFFIX = ".part";
+
+	// members
+	int mMemoryThreshold = DEFAULT_MEMORY_THRESHOLD;
+	long mMaxMemory = DEFAULT_MAX_MEMORY;
+	File mTempDirectory;
+	long mMemoryUsed;
+	List<Part> mParts = new ArrayList<Part>();
+	// reading state
+	InputStream mIn;
+	byte[] mBuf;
+	int mPos;
+	int mEnd;
+	byte[] mDelimiter;
+	int[] mFallback;
+	int mMatched;
+
+	/**
+	 * Reads a form with the default limits.
+	 * @param in request body, as given to InContent.in()
+	 * @throws HttpStatus "415 Unsupported Media Type" if the body is not a
+	 *         form, or "400 Bad Request" if it is malformed
+	 */
+	public static MultipartForm parse(InputStream in) throws IOException {
+		MultipartForm form = new MultipartForm();
+		form.read(in);
+		return form;
+	}
+
+	/**
+	 * Parts larger than this are written to a temporary file.
+	 */
+	public void setMemoryThreshold(int bytes) {
+		mMemoryThreshold = bytes;
+	}
+
+	/**
+	 * The parts of a form keep at most this many bytes in memory
+	 * altogether; the parts that do not fit go to temporary files.
+	 */
+	public void setMaxMemory(long bytes) {
+		mMaxMemory = bytes;
+	}
+
+	/**
+	 * Directory for the temporary files; by default the one of the JVM.
+	 */
+	public void setTempDirectory(File dir) {
+		mTempDirectory = dir;
+	}
+
+	/**
+	 * Reads the parts of a request body, which must be a BodyInputStream
+	 * so that its Content-Type is known.
+	 */
+	public void read(InputStream in) throws IOException {
+		if (!(in instanceof BodyInputStream)) {
+			throw new HttpStatus(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+		}
+		read(in, ((BodyInputStream)in).getContentType());
+	}
+
+	/**
+	 * Reads the parts of a body that has the given Content-Type. If the body
+	 * can not be read, the parts read so far are deleted.
+	 */
+	public void read(InputStream in, String contentType) throws IOException {
+		String boundary = boundary(contentType);
+		mIn = in;
+		mBuf = BufferPool.lease(BUFFER_SIZE);
+		mPos = 0;
+		mEnd = 0;
+		mDelimiter = ResponseHead.ascii("\r\n--" + boundary);
+		mFallback = fallbacks(mDelimiter);
+		boolean done = false;
+		try {
+			// the first delimiter has no line end before it
+			mMatched = 2;
+			if (!scan(null)) throw malformed();
+			while (!readDelimiterEnd()) {
+				if (mParts.size() >= MAX_PARTS) throw malformed();
+				Part part = new Part(readHeaders());
+				mParts.add(part);
+				mMatched = 0;
+				boolean found = scan(part);
+				part.finish();
+				if (!found) throw malformed();
+			}
+			done = true;
+		} finally {
+			mIn = null;
+			BufferPool.release(mBuf);
+			mBuf = null;
+			if (!done) delete();
+		}
+	}
+
+	/**
+	 * @return the parts in the order they were sent
+	 */
+	public List<Part> getParts() {
+		return Collections.unmodifiableList(mParts);
+	}
+
+	/**
+	 * @return the first part with the given field name, or null
+	 */
+	public Part getPart(String name) {
+		for (Part part : mParts) {
+			if (name.equals(part.getName())) return part;
+		}
+		return null;
+	}
+
+	/**
+	 * Deletes the temporary files of all parts.
+	 */
+	public void delete() {
+		for (Part part : mParts) {
+			part.delete();
+		}
+	}
+
+	/**
+	 * @return the boundary parameter of a multipart/form-data type
+	 */
+	static String boundary(String contentType) {
+		if (contentType == null) throw new HttpStatus(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+		int semicolon = contentType.indexOf(';');
+		String type = semicolon < 0 ? contentType : contentType.substring(0, semicolon);
+		if (!type.trim().equalsIgnoreCase(MULTIPART_FORM_DATA)) {
+			throw new HttpStatus(HttpStatus.UNSUPPORTED_MEDIA_TYPE);
+		}
+		String boundary = semicolon < 0 ? null
+				: parameters(contentType.substring(semicolon + 1)).get("boundary");
+		if (boundary == null || boundary.isEmpty() || boundary.length() > MAX_BOUNDARY_LENGTH) {
+			throw malformed();
+		}
+		return boundary;
+	}
+
+	/**
+	 * Moves data to the part, or drops it if part is null, until the
+	 * delimiter has been read.
+	 * @return false if the body ended before the delimiter
+	 */
+	private boolean scan(Part part) throws IOException {
+		byte[] delimiter = mDelimiter;
+		byte first = delimiter[0];
+		while (true) {
+			if (mPos >= mEnd && !fill()) return false;
+			byte[] buf = mBuf;
+			int end = mEnd;
+			int run = mPos; // start of the data that is not part of a match
+			for (int i = mPos; i < end; ++i) {
+				byte b = buf[i];
+				if (mMatched == 0) {
+					if (b != first) continue;
+					// a match may start here; the data before it is done
+					if (part != null && i > run) part.write(buf, run, i - run);
+					mMatched = 1;
+				} else {
+					while (mMatched > 0 && b != delimiter[mMatched]) {
+						// the bytes held back turn out to be data, as far as
+						// they are not the start of another match
+						int kept = mFallback[mMatched - 1];
+						if (part != null) part.write(delimiter, 0, mMatched - kept);
+						mMatched = kept;
+					}
+					if (b == delimiter[mMatched]) {
+						mMatched++;
+					} else {
+						run = i; // this byte starts new data
+						continue;
+					}
+				}
+				if (mMatched == delimiter.length) {
+					mPos = i + 1;
+					return true;
+				}
+			}
+			if (part != null && mMatched == 0 && end > run) part.write(buf, run, end - run);
+			mPos = end;
+		}
+	}
+
+	/**
+	 * Reads the rest of a delimiter line.
+	 * @return true if it was the closing delimiter
+	 */
+	private boolean readDelimiterEnd() throws IOException {
+		int b = readByte();
+		if (b == '-') {
+			if (readByte() != '-') throw malformed();
+			// the epilogue after the closing delimiter is ignored
+			return true;
+		}
+		// transport padding may precede the line end
+		while (b == ' ' || b == '\t') b = readByte();
+		if (b == '\r') b = readByte();
+		if (b != '\n') throw malformed();
+		return false;
+	}
+
+	private Map<String, String> readHeaders() throws IOException {
+		Map<String, String> headers = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		byte[] line = new byte[MAX_HEADER_SIZE];
+		int total = 0;
+		while (true) {
+			int len = 0;
+			for (int b = readByte(); b != '\n'; b = readByte()) {
+				if (total++ >= MAX_HEADER_SIZE) throw malformed();
+				line[len++] = (byte)b;
+			}
+			if (len > 0 && line[len-1] == '\r') len--;
+			if (len == 0) return headers;
+			String field = new String(line, 0, len, UTF_8);
+			int colon = field.indexOf(':');
+			if (colon <= 0) throw malformed();
+			headers.put(field.substring(0, colon).trim(), field.substring(colon + 1).trim());
+		}
+	}
+
+	private int readByte() throws IOException {
+		if (mPos >= mEnd && !fill()) throw malformed();
+		return 0xFF & mBuf[mPos++];
+	}
+
+	private boolean fill() throws IOException {
+		int n = mIn.read(mBuf, 0, mBuf.length);
+		if (n < 0) return false;
+		mPos = 0;
+		mEnd = n;
+		return true;
+	}
+
+	/**
+	 * @return for every prefix of the pattern, the length of the longest
+	 *         proper prefix that is also its suffix
+	 */
+	static int[] fallbacks(byte[] pattern) {
+		int[] fallback = new int[pattern.length];
+		int k = 0;
+		for (int i = 1; i < pattern.length; ++i) {
+			while (k > 0 && pattern[i] != pattern[k]) k = fallback[k - 1];
+			if (pattern[i] == pattern[k]) k++;
+			fallback[i] = k;
+		}
+		return fallback;
+	}
+
+	/**
+	 * Parses "; name=value; name2="quoted value"" parameters.
+	 */
+	static Map<String, String> parameters(String s) {
+		Map<String, String> params = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+		int i = 0;
+		int n = s.length();
+		while (i < n) {
+			int eq = s.indexOf('=', i);
+			int semicolon = s.indexOf(';', i);
+			if (eq < 0 || (semicolon >= 0 && semicolon < eq)) {
+				// a parameter without a value
+				if (semicolon < 0) break;
+				i = semicolon + 1;
+				continue;
+			}
+			String name = s.substring(i, eq).trim();
+			i = eq + 1;
+			while (i < n && s.charAt(i) == ' ') i++;
+			StringBuilder value = new StringBuilder();
+			if (i < n && s.charAt(i) == '"') {
+				for (i++; i < n && s.charAt(i) != '"'; i++) {
+					if (s.charAt(i) == '\\' && i + 1 < n) i++;
+					value.append(s.charAt(i));
+				}
+				i = s.indexOf(';', i);
+				if (i < 0) i = n; else i++;
+			} else {
+				int end = s.indexOf(';', i);
+				if (end < 0) end = n;
+				value.append(s.substring(i, end).trim());
+				i = end + 1;
+			}
+			params.put(name, value.toString());
+		}
+		return params;
+	}
+
+	private static HttpStatus malformed() {
+		return new HttpStatus(HttpStatus.BAD_REQUEST);
+	}
+
+	/**
+	 * One field of a form: its headers and data. The data is either in
+	 * memory or in a temporary file.
+	 */
+	public class Part {
+
+		// members
+		Map<String, String> mHeaders;
+		Map<String, String> mDisposition;
+		byte[] mData;
+		long mSize;
+		File mFile;
+		FileChannel mChannel;
+
+		Part(Map<String, String> headers) {
+			mHeaders = headers;
+			String disposition = headers.get("Content-Disposition");
+			int semicolon = disposition == null ? -1 : disposition.indexOf(';');
+			mDisposition = semicolon < 0 ? Collections.<String, String>emptyMap()
+					: parameters(disposition.substring(semicolon + 1));
+		}
+
+		/**
+		 * @return field name of the part
+		 */
+		public String getName() {
+			return mDisposition.get("name");
+		}
+
+		/**
+		 * @return name of the uploaded file, or null if the part is not a file
+		 */
+		public String getFilename() {
+			return mDisposition.get("filename");
+		}
+
+		public String getContentType() {
+			String type = mHeaders.get(Http.CONTENT_TYPE);
+			return type != null ? type : "text/plain";
+		}
+
+		/**
+		 * @return headers of the part; names are not case-sensitive
+		 */
+		public Map<String, String> getHeaders() {
+			return Collections.unmodifiableMap(mHeaders);
+		}
+
+		public long getSize() {
+			return mSize;
+		}
+
+		public boolean isInMemory() {
+			return mFile == null;
+		}
+
+		/**
+		 * @return the temporary file of the data, or null if it is in memory
+		 */
+		public File getFile() {
+			return mFile;
+		}
+
+		public InputStream getInputStream() throws IOException {
+			if (mFile != null) return new FileInputStream(mFile);
+			return new ByteArrayInputStream(mData != null ? mData : new byte[0], 0, (int)mSize);
+		}
+
+		/**
+		 * @return the data as text, decoded as UTF-8; for small parts only
+		 */
+		public String getString() throws IOException {
+			if (mFile == null) return new String(mData != null ? mData : new byte[0], 0, (int)mSize, UTF_8);
+			if (mSize > Integer.MAX_VALUE) throw new IOException("Part too large for a String");
+			byte[] data = new byte[(int)mSize];
+			InputStream in = getInputStream();
+			try {
+				int pos = 0;
+				while (pos < data.length) {
+					int n = in.read(data, pos, data.length - pos);
+					if (n < 0) break;
+					pos += n;
+				}
+			} finally {
+				in.close();
+			}
+			return new String(data, UTF_8);
+		}
+
+		/**
+		 * Deletes the temporary file, if there is one.
+		 */
+		public void delete() {
+			closeChannel();
+			if (mFile != null) mFile.delete();
+		}
+
+		void write(byte[] b, int off, int len) throws IOException {
+			if (mChannel == null) {
+				if (mSize + len <= mMemoryThreshold && reserve(mSize + len)) {
+					System.arraycopy(b, off, mData, (int)mSize, len);
+					mSize += len;
+					return;
+				}
+				spill();
+			}
+			ByteBuffer data = ByteBuffer.wrap(b, off, len);
+			while (data.hasRemaining()) mChannel.write(data);
+			mSize += len;
+		}
+
+		void finish() {
+			closeChannel();
+		}
+
+		/**
+		 * Makes room for the given size in memory, if the form can afford it.
+		 * The memory of the form counts the arrays, not just the data.
+		 */
+		private boolean reserve(long size) {
+			int old = mData == null ? 0 : mData.length;
+			if (size <= old) return true;
+			long capacity = old == 0 ? INITIAL_PART_SIZE : old * 2L;
+			while (capacity < size) capacity *= 2;
+			capacity = Math.min(capacity, mMemoryThreshold);
+			if (mMemoryUsed + capacity - old > mMaxMemory) return false;
+			byte[] grown = new byte[(int)capacity];
+			if (mData != null) System.arraycopy(mData, 0, grown, 0, (int)mSize);
+			mData = grown;
+			mMemoryUsed += capacity - old;
+			return true;
+		}
+
+		// moves what is in memory to a new temporary file
+		private void spill() throws IOException {
+			mFile = File.createTempFile(TEMP_PREFIX, TEMP_SUFFIX, mTempDirectory);
+			mChannel = FileChannel.open(mFile.toPath(), StandardOpenOption.WRITE);
+			if (mSize > 0) {
+				ByteBuffer data = ByteBuffer.wrap(mData, 0, (int)mSize);
+				while (data.hasRemaining()) mChannel.write(data);
+			}
+			if (mData != null) mMemoryUsed -= mData.length;
+			mData = null;
+		}
+
+		private void closeChannel() {
+			if (mChannel == null) return;
+			try {
+				mChannel.close();
+			} catch (IOException e) {
+				// do nothing
+			}
+			mChannel = null;
+		}
+
+	}
+
+}
@@ -0,0 +1,274 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * State of one connection served by the NioEngine. Incoming bytes are
+ * fed to a RequestParser until a complete request head has arrived, the
+ * request is handed to a RequestHandler and the response is collected in a
+ * ResponseBuffer, which is then drained to the channel whenever the
+ * channel is writable. <p>
+ *
+ * Several pipelined requests that arrive in the same read are served in
+ * one go, their responses leaving in a single write. Reading is paused
+ * while the client does not consume its responses. File regions are
+ * transferred from the file to the channel as it becomes writable. <p>
+ *
+ * A POST or PUT request that has a body is not served here: the content
+ * reads the body as a blocking stream, so once the earlier responses have
+ * been sent, the connection is handed over to a blocking Session for the
+ * rest of its life. Bodies of other requests are skipped if they have a
+ * Content-Length; chunked ones get "411 Length Required" and the
+ * connection is closed. <p>
+ *
+ * A response body too big for the ResponseBuffer, other than a file, is
+ * not written on the event loop either: once the head has been sent, the
+ * Session that takes over writes the body, blocking only its own thread
+ * while the client is slow. <p>
+ *
+ * The buffers of the connection are leased from the BufferPool, and given
+ * back when the connection is closed or handed over. <p>
+ *
+ * After every event, the connection tells its ConnectionManager.Tracker
+ * whether it waits for a request, has part of one, or is busy, and while
+ * output waits for the channel to become writable; a Session that takes
+ * over the connection takes over the tracker as well.
+ *
+ * @author Hannes R.
+ */
+class NioConnection {
+
+	// constants
+	static final int READ_BUFFER_SIZE = 8192;
+	static final int MAX_PENDING_OUTPUT = 65536;
+
+	// members
+	SocketChannel mChannel;
+	SelectionKey mKey;
+	ByteBuffer mIn;
+	RequestParser mParser;
+	ResponseBuffer mOut;
+	RequestHandler mHandler;
+	long mDiscard;
+	long mMaxBodySize;
+	boolean mClosing;
+	HttpRequest mHandoff;
+	RequestHandler.Body mDeferred;
+	Metrics mMetrics;
+	ConnectionManager.Tracker mTracker;
+
+	NioConnection(Library library, SocketChannel channel, SelectionKey key, long maxBodySize,
+			Metrics metrics, ConnectionManager.Tracker tracker) {
+		this.mChannel = channel;
+		this.mKey = key;
+		this.mIn = ByteBuffer.wrap(BufferPool.lease(READ_BUFFER_SIZE));
+		this.mParser = tracker.newParser();
+		this.mOut = new ResponseBuffer();
+		this.mHandler = new RequestHandler(library, mOut);
+		this.mHandler.setMaxBuffered(ResponseBuffer.MAX_SIZE);
+		this.mHandler.setMetrics(metrics);
+		this.mOut.setMetrics(metrics);
+		this.mOut.setTracker(tracker);
+		this.mMetrics = metrics;
+		this.mTracker = tracker;
+		this.mDiscard = 0;
+		this.mMaxBodySize = maxBodySize;
+		this.mClosing = false;
+	}
+
+	/**
+	 * Called by the engine when the channel is readable or writable.
+	 */
+	void onReady() throws IOException {
+		ready();
+		if (mIn == null) return; // closed
+		if (mHandoff != null || (mKey.interestOps() & SelectionKey.OP_WRITE) != 0) {
+			mTracker.busy();
+		} else if (mDiscard > 0) {
+			mTracker.body(null);
+		} else if (mIn.position() > 0 || !mParser.isEmpty()) {
+			mTracker.head();
+		} else {
+			mTracker.idle();
+		}
+	}
+
+	private void ready() throws IOException {
+		if (mKey.isReadable()) {
+			int n = mChannel.read(mIn);
+			if (n < 0) {
+				// client has closed the connection
+				close();
+				return;
+			}
+			if (mMetrics != null) mMetrics.received(n);
+			if (n > 0) mTracker.received(n);
+		}
+		boolean more;
+		do {
+			more = serveRequests();
+			if (!mOut.drainTo(mChannel)) {
+				// client is slow; continue when the channel is writable again
+				mKey.interestOps(SelectionKey.OP_WRITE);
+				mTracker.writing();
+				return;
+			}
+			if (mClosing) {
+				close();
+				return;
+			}
+		} while (more);
+		if (mHandoff != null) return; // the engine takes over
+		mKey.interestOps(SelectionKey.OP_READ);
+	}
+
+	/**
+	 * @return request whose body is to be read, or whose response body is
+	 *         to be written, by a blocking Session, once all earlier
+	 *         output has been sent; otherwise null
+	 */
+	HttpRequest handoffRequest() {
+		if (mOut.size() > 0 || mOut.hasAppended()) return null;
+		return mHandoff;
+	}
+
+	/**
+	 * Gives up the connection to the Session that continues it. The buffers
+	 * go back to the pool, except for the received bytes, whose buffer
+	 * goes to the session.
+	 * @return bytes received after the request head, in read mode
+	 */
+	ByteBuffer handOver() {
+		ByteBuffer received = mIn;
+		mIn = null;
+		mTracker = null;
+		received.flip();
+		mParser.release();
+		mOut.dispose();
+		return received;
+	}
+
+	/**
+	 * Serves all complete requests found in the input buffer.
+	 * @return true if serving stopped only because enough output is
+	 *         pending, and more requests may be waiting in the buffer
+	 */
+	private boolean serveRequests() throws IOException {
+		while (!mClosing && mHandoff == null) {
+			if (mOut.size() >= MAX_PENDING_OUTPUT || mOut.hasAppended()) return true;
+			if (!skipBody()) return false;
+			// parse as much of the request head as has arrived
+			consume(mParser.parse(mIn.array(), 0, mIn.position()));
+			if (!mParser.isComplete()) return false;
+			HttpRequest request = new HttpRequest();
+			mParser.fill(request);
+			mParser.reset();
+			mTracker.request(request);
+			prepareBody(request);
+			if (mHandoff != null) return false;
+
+			mHandler.handle(request);
+			mDeferred = mHandler.takeDeferred();
+			if (mDeferred != null) {
+				// the Session skips the request body, if there is one
+				mDiscard = 0;
+				mHandoff = request;
+				return false;
+			}
+			if (request.shouldCloseConnection()) {
+				mClosing = true;
+			}
+		}
+		return false;
+	}
+
+	private void prepareBody(HttpRequest request) {
+		String encoding = request.getHeaders().get(RequestHeaders.TRANSFER_ENCODING);
+		String length = request.getHeaders().get(RequestHeaders.CONTENT_LENGTH);
+		boolean upload = Http.POST.equals(request.getCommand())
+				|| Http.PUT.equals(request.getCommand());
+		if (upload && request.getStatus() == null && (encoding != null
+				|| (length != null && !length.trim().equals("0")))) {
+			// the Session checks the framing and the size
+			mHandoff = request;
+		} else if (encoding != null && encoding.equals(Http.CHUNKED)) {
+			request.setStatus(new HttpStatus(HttpStatus.LENGTH_REQUIRED));
+			request.setCloseConnection();
+		} else if (length != null) {
+			try {
+				mDiscard = Long.parseLong(length.trim());
+			} catch (NumberFormatException ex) {
+				mDiscard = -1;
+			}
+			if (mDiscard < 0) {
+				// the end of the body is not known, as in the Session
+				mDiscard = 0;
+				request.setStatus(new HttpStatus(HttpStatus.BAD_REQUEST));
+				request.setCloseConnection();
+			} else if (mDiscard > mMaxBodySize) {
+				// not worth reading through; the connection ends here
+				mDiscard = 0;
+				request.setStatus(new HttpStatus(HttpStatus.PAYLOAD_TOO_LARGE));
+				request.setCloseConnection();
+			}
+		}
+	}
+
+	private boolean skipBody() {
+		if (mDiscard <= 0) return true;
+		int skip = (int)Math.min(mDiscard, mIn.position());
+		consume(skip);
+		mDiscard -= skip;
+		return mDiscard <= 0;
+	}
+
+	// drops n bytes from the beginning of the input buffer
+	private void consume(int n) {
+		mIn.flip();
+		mIn.position(n);
+		mIn.compact();
+	}
+
+	/**
+	 * Ends the connection after its timeout has expired. If its request
+	 * head did not arrive in time, it is answered with "408 Request
+	 * Timeout", as far as the channel takes the answer right away.
+	 */
+	void expire() {
+		if (mIn == null) return; // closed or handed over in the meantime
+		if (mTracker.isHeadTimedOut() && mOut.isEmpty()) {
+			HttpRequest request = new HttpRequest();
+			request.setStatus(new HttpStatus(HttpStatus.REQUEST_TIMEOUT));
+			request.setCloseConnection();
+			try {
+				mHandler.handle(request);
+				mOut.drainTo(mChannel);
+				mChannel.shutdownOutput();
+			} catch (IOException ex) {
+				// client is gone already
+			}
+		}
+		close();
+	}
+
+	void close() {
+		if (mIn != null) {
+			BufferPool.release(mIn.array());
+			mIn = null;
+			mParser.release();
+			mOut.dispose();
+			mTracker.close();
+		}
+		mKey.cancel();
+		if (mMetrics != null && mChannel.isOpen()) mMetrics.connectionClosed();
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+
+}
@@ -0,0 +1,176 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single-threaded event loop that serves all connections with one
+ * Selector, instead of one thread per connection. Idle keep-alive
+ * connections then cost only their buffers. <p>
+ *
+ * The Library and its Content objects are called from the event loop
+ * thread, so slow content will delay other connections. Request bodies
+ * and big response bodies are the exception: a connection that has one
+ * is handed over to a blocking Session, see NioConnection. <p>
+ *
+ * Connections whose timeout expires are closed by the event loop; the
+ * timing wheel only queues them and wakes the selector up.
+ *
+ * @author Hannes R.
+ */
+class NioEngine {
+
+	// members
+	Server mServer;
+	ServerSocketChannel mListener;
+	Selector mSelector;
+	List<NioConnection> mHandoffs;
+	Queue<NioConnection> mExpired = new ConcurrentLinkedQueue<NioConnection>();
+
+	NioEngine(Server server, ServerSocketChannel listener) throws IOException {
+		this.mServer = server;
+		this.mListener = listener;
+		this.mSelector = Selector.open();
+		this.mHandoffs = new ArrayList<NioConnection>();
+		listener.configureBlocking(false);
+		listener.register(mSelector, SelectionKey.OP_ACCEPT);
+	}
+
+	void run() {
+		try {
+			while (mServer.running) {
+				closeExpired();
+				if (mHandoffs.isEmpty()) {
+					mSelector.select();
+				} else {
+					handOff();
+				}
+				Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) continue;
+					if (key.isAcceptable()) {
+						accept();
+					} else {
+						serve((NioConnection)key.attachment());
+					}
+				}
+			}
+		} catch (IOException ex) {
+			if (mServer.running) {
+				ex.printStackTrace();
+				mServer.running = false;
+			}
+		} finally {
+			closeAll();
+		}
+	}
+
+	void wakeup() {
+		mSelector.wakeup();
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel = mListener.accept();
+		if (channel == null) return;
+		mServer.mMetrics.connectionOpened();
+		ConnectionManager.Tracker tracker = mServer.mConnections.open();
+		if (tracker == null) {
+			// too many connections; the channel is still blocking, and the
+			// short answer fits in the socket's buffer
+			new Session(mServer.mLibrary, channel.socket(), mServer.mMaxBodySize,
+					mServer.mMetrics, null).reject(Server.OVERLOAD_RETRY_AFTER);
+			return;
+		}
+		channel.configureBlocking(false);
+		// responses are buffered whole; a small last write must not wait
+		channel.socket().setTcpNoDelay(true);
+		SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+		final NioConnection connection = new NioConnection(mServer.mLibrary, channel, key,
+				mServer.mMaxBodySize, mServer.mMetrics, tracker);
+		key.attach(connection);
+		tracker.attach(new ConnectionManager.Managed() {
+			@Override
+			public void expire() {
+				mExpired.add(connection);
+				mSelector.wakeup();
+			}
+		});
+		tracker.idle();
+	}
+
+	// closes the connections whose timeout has expired, unless they have
+	// been closed or handed over in the meantime
+	private void closeExpired() {
+		NioConnection connection;
+		while ((connection = mExpired.poll()) != null) {
+			connection.expire();
+		}
+	}
+
+	private void serve(NioConnection connection) {
+		try {
+			connection.onReady();
+			if (connection.handoffRequest() != null) {
+				mHandoffs.add(connection);
+			}
+		} catch (Exception ex) {
+			// should not be here.
+			ex.printStackTrace();
+			connection.close();
+		}
+	}
+
+	/**
+	 * Starts blocking Sessions for the connections that are to be handed
+	 * over. A channel has to leave the selector before it can block, which
+	 * happens on the next selection; selectNow() is that selection.
+	 */
+	private void handOff() throws IOException {
+		for (NioConnection connection : mHandoffs) {
+			connection.mKey.cancel();
+		}
+		mSelector.selectNow();
+		for (NioConnection connection : mHandoffs) {
+			Session session = new Session(mServer.mLibrary, connection.mChannel.socket(),
+					mServer.mMaxBodySize, mServer.mMetrics, connection.mTracker);
+			session.resume(connection.mHandoff, connection.mDeferred, connection.handOver());
+			try {
+				connection.mChannel.configureBlocking(true);
+				mServer.startSession(session);
+			} catch (IOException ex) {
+				session.close();
+			}
+		}
+		mHandoffs.clear();
+	}
+
+	private void closeAll() {
+		for (SelectionKey key : mSelector.keys()) {
+			if (key.attachment() instanceof NioConnection) {
+				((NioConnection)key.attachment()).close();
+				continue;
+			}
+			try {
+				key.channel().close();
+			} catch (IOException e) {
+				// do nothing
+			}
+		}
+		try {
+			mSelector.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+	}
+
+}
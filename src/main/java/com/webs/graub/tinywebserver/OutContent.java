@@ -18,6 +18,18 @@ public interface OutContent extends Content {
 	 */
 	public int getDataSize();
 
+	/**
+	 * data size of this content, for content that may be larger than
+	 * getDataSize() can tell (2 GB and more), or empty. The server only
+	 * calls this method; by default it returns getDataSize(), or -1 if
+	 * that is zero.
+	 * return -1 if you don't know (will use chunked encoding)
+	 */
+	default long getContentLength() {
+		int size = getDataSize();
+		return size > 0 ? size : -1;
+	}
+
 	/**
 	 * requests the content to be written out the given stream.
 	 * This method is called on GET and HEAD requests, but only if
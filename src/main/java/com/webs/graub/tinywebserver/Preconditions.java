@@ -0,0 +1,106 @@
+package com.webs.graub.tinywebserver;
+
+/**
+ * Evaluates the conditional request headers against the validators of
+ * the content, in the order given by RFC 9110 section 13.2.2.
+ *
+ * @author Hannes R.
+ */
+class Preconditions {
+
+	// constants
+	static final String ANY = "*";
+	static final String WEAK_PREFIX = "W/";
+
+	/**
+	 * @return null if the request is to be served normally, otherwise
+	 *         HttpStatus.NOT_MODIFIED or HttpStatus.PRECONDITION_FAILED
+	 */
+	static String evaluate(HttpRequest request, ValidatedContent content) {
+		RequestHeaders headers = request.getHeaders();
+		String etag = content.getETag();
+		long modified = seconds(content.getLastModified());
+
+		String ifMatch = headers.get(RequestHeaders.IF_MATCH);
+		if (ifMatch != null) {
+			if (!matches(ifMatch, etag, true)) return HttpStatus.PRECONDITION_FAILED;
+		} else if (modified > 0) {
+			long since = HttpDate.parse(headers.get(RequestHeaders.IF_UNMODIFIED_SINCE));
+			if (since >= 0 && modified > seconds(since)) return HttpStatus.PRECONDITION_FAILED;
+		}
+
+		String ifNoneMatch = headers.get(RequestHeaders.IF_NONE_MATCH);
+		if (ifNoneMatch != null) {
+			if (matches(ifNoneMatch, etag, false)) {
+				return isSafe(request) ? HttpStatus.NOT_MODIFIED : HttpStatus.PRECONDITION_FAILED;
+			}
+		} else if (modified > 0 && isSafe(request)) {
+			long since = HttpDate.parse(headers.get(RequestHeaders.IF_MODIFIED_SINCE));
+			if (since >= 0 && modified <= seconds(since)) return HttpStatus.NOT_MODIFIED;
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if the If-Range value names the current representation,
+	 *         so that a Range header is to be honoured
+	 */
+	static boolean ifRangeMatches(String ifRange, ValidatedContent content) {
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith(WEAK_PREFIX)) {
+			String etag = content.getETag();
+			return etag != null && strongEquals(ifRange, etag);
+		}
+		long date = HttpDate.parse(ifRange);
+		long modified = content.getLastModified();
+		return date >= 0 && modified > 0 && seconds(modified) == seconds(date);
+	}
+
+	/**
+	 * Checks if the entity tag is in the comma separated list of tags. "*"
+	 * matches any content that exists, with or without an entity tag.
+	 */
+	static boolean matches(String list, String etag, boolean strong) {
+		if (list.trim().equals(ANY)) return true;
+		if (etag == null) return false;
+		int i = 0, len = list.length();
+		while (i < len) {
+			char c = list.charAt(i);
+			if (c == ' ' || c == '\t' || c == ',') {
+				i++;
+				continue;
+			}
+			int start = i;
+			if (list.startsWith(WEAK_PREFIX, i)) i += WEAK_PREFIX.length();
+			if (i >= len || list.charAt(i) != '"') return false; // malformed list
+			int end = list.indexOf('"', i+1);
+			if (end < 0) return false;
+			String tag = list.substring(start, end+1);
+			if (strong ? strongEquals(tag, etag) : weakEquals(tag, etag)) return true;
+			i = end + 1;
+		}
+		return false;
+	}
+
+	private static boolean strongEquals(String a, String b) {
+		return !a.startsWith(WEAK_PREFIX) && !b.startsWith(WEAK_PREFIX) && a.equals(b);
+	}
+
+	private static boolean weakEquals(String a, String b) {
+		return opaque(a).equals(opaque(b));
+	}
+
+	private static String opaque(String tag) {
+		return tag.startsWith(WEAK_PREFIX) ? tag.substring(WEAK_PREFIX.length()) : tag;
+	}
+
+	private static boolean isSafe(HttpRequest request) {
+		return Http.GET.equals(request.getCommand()) || Http.HEAD.equals(request.getCommand());
+	}
+
+	// HTTP dates have a resolution of one second
+	private static long seconds(long millis) {
+		return millis / 1000;
+	}
+
+}
@@ -0,0 +1,22 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * OutContent that can write any part of its data without producing the
+ * parts before it. The server uses this to answer Range requests with
+ * just the requested bytes. Content that is a FileRegionContent can be
+ * sent in parts without this interface, but only one part per response.
+ */
+public interface RandomAccessContent extends OutContent {
+
+	/**
+	 * Writes the given part of the data to the stream.
+	 * @param offset position of the first byte, counted from the start
+	 *        of this content
+	 * @param length number of bytes to write
+	 */
+	void out(OutputStream stream, long offset, long length) throws IOException;
+
+}
@@ -0,0 +1,661 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Produces the response for one parsed request. The handler does not
+ * care how the connection is driven: the blocking Session and the
+ * non-blocking NioEngine both hand it requests together with the
+ * stream where the response is to be written. The handler does not flush
+ * that stream; the connection decides when its output goes out. <p>
+ *
+ * If the handler has Metrics, it records every request it handles: the
+ * method, the status, and how long the parsing, the library, the body and
+ * the whole request took. <p>
+ *
+ * A handler may be told the largest body it writes to its stream. A
+ * bigger body, or one of unknown length, is left for takeDeferred() once
+ * the head has been written, so that the connection can have it written
+ * where a slow client does not hold others up.
+ *
+ * @author Hannes R.
+ */
+class RequestHandler {
+
+	// constants and enums
+	static final String errorTemplate = "<html><head><title>Error</title></head>"
+			+ "<body><h1>resultLine</h1></body></html>";
+	static final String ERROR_MIMETYPE = "text/html";
+	static final HttpStatus STATUS_OK = new HttpStatus(HttpStatus.OK);
+	static final HttpStatus STATUS_NO_CONTENT = new HttpStatus(HttpStatus.NO_CONTENT);
+	static final HttpStatus STATUS_PARTIAL_CONTENT = new HttpStatus(HttpStatus.PARTIAL_CONTENT);
+	static final HttpStatus STATUS_NOT_MODIFIED = new HttpStatus(HttpStatus.NOT_MODIFIED);
+	static final Random sBoundaries = new Random();
+	static final ConcurrentHashMap<String, byte[]> sErrorPages =
+			new ConcurrentHashMap<String, byte[]>();
+
+	/**
+	 * Body of a response whose head has been written, still to be written
+	 * by the handler of the connection that continues the response.
+	 */
+	interface Body {
+		void write(RequestHandler handler) throws IOException;
+	}
+
+	// members
+	Library mLibrary;
+	OutputStream mOut;
+	WritableByteChannel mChannel;
+	ResponseHead mHead;
+	long mLastModified = -1;
+	String mLastModifiedText;
+	Metrics mMetrics;
+	ConnectionManager.Tracker mTracker;
+	long mMaxBuffered = 0;
+	Body mDeferred;
+
+	RequestHandler(Library library, OutputStream out) {
+		this(library, out, null);
+	}
+
+	/**
+	 * @param channel channel of the same socket as out, used for sending
+	 *        files with transferTo(); may be null
+	 */
+	RequestHandler(Library library, OutputStream out, WritableByteChannel channel) {
+		this.mLibrary = library;
+		this.mOut = out;
+		this.mChannel = channel;
+		this.mHead = new ResponseHead();
+	}
+
+	/**
+	 * @param metrics where the requests are recorded; null for none
+	 */
+	void setMetrics(Metrics metrics) {
+		this.mMetrics = metrics;
+	}
+
+	/**
+	 * @param tracker what is told about files sent straight to the
+	 *        channel; null for nothing
+	 */
+	void setTracker(ConnectionManager.Tracker tracker) {
+		this.mTracker = tracker;
+	}
+
+	/**
+	 * @param max largest body written to the stream; 0, the default, for
+	 *        no limit
+	 */
+	void setMaxBuffered(long max) {
+		this.mMaxBuffered = max;
+	}
+
+	/**
+	 * @return body of the last response that was left unwritten, or null
+	 */
+	Body takeDeferred() {
+		Body body = mDeferred;
+		mDeferred = null;
+		return body;
+	}
+
+	void handle(HttpRequest request) throws IOException {
+		if (mMetrics == null) {
+			respond(request);
+			return;
+		}
+		long start = System.nanoTime();
+		mMetrics.requestStarted(request.getCommand());
+		mMetrics.mParseTime.recordNanos(request.getParseTime());
+		mHead.mStatusCode = 0;
+		try {
+			respond(request);
+		} finally {
+			mMetrics.requestFinished(mHead.mStatusCode,
+					request.getParseTime() + System.nanoTime() - start);
+		}
+	}
+
+	private void respond(HttpRequest request) throws IOException {
+		if (request.getStatus() != null) {
+			errorResponse(request, request.getStatus());
+		} else if (request.getCommand().equals(Http.GET)
+				|| request.getCommand().equals(Http.HEAD)) {
+			doGet(request);
+		} else if (request.getCommand().equals(Http.POST)
+				|| request.getCommand().equals(Http.PUT)) {
+			doPost(request);
+		} else if (request.getCommand().equals(Http.DELETE)
+				|| request.getCommand().equals(Http.OPTIONS)
+				|| request.getCommand().equals(Http.TRACE)) {
+			errorResponse(request, new HttpStatus(HttpStatus.NOT_IMPLEMENTED));
+		} else {
+			errorResponse(request, new HttpStatus(HttpStatus.BAD_REQUEST));
+		}
+	}
+
+	private void doGet(HttpRequest request) throws IOException {
+
+		// content = object that will provide the message body
+		OutContent content = findContentOrSendError(request, OutContent.class);
+		if (content==null) return;
+
+		// conditional requests are answered without producing the content
+		if (content instanceof ValidatedContent) {
+			String precondition = Preconditions.evaluate(request, (ValidatedContent)content);
+			if (HttpStatus.NOT_MODIFIED.equals(precondition)) {
+				notModified(request, (ValidatedContent)content);
+				return;
+			}
+			if (precondition != null) {
+				errorResponse(request, new HttpStatus(precondition));
+				return;
+			}
+		}
+
+		long size = content.getContentLength();
+
+		// answer with only the requested parts, if the content can do that
+		boolean rangeable = size > 0 && (content instanceof RandomAccessContent
+				|| content instanceof FileRegionContent);
+		if (rangeable && request.getCommand().equals(Http.GET)) {
+			List<ByteRange> ranges = requestedRanges(request, content, size);
+			if (ranges != null && ranges.isEmpty()) {
+				errorResponse(request, new HttpStatus(HttpStatus.RANGE_NOT_SATISFIABLE),
+						Collections.singletonMap(Http.CONTENT_RANGE, ByteRange.BYTES_UNIT + " */" + size));
+				return;
+			}
+			if (ranges != null) {
+				sendRanges(request, content, size, ranges);
+				return;
+			}
+		}
+
+		sendContent(request, content, size, rangeable);
+	}
+
+	/**
+	 * Sends "200 OK" with the whole content as the body, compressed if the
+	 * client accepts it.
+	 */
+	private void sendContent(HttpRequest request, OutContent content, long size,
+			boolean rangeable) throws IOException {
+		if (size < 0 && request.getVersionMode()!=Http.Version.HTTP1_1) {
+			// HTTP 1.0 does not support chunked encoding!!!
+			errorResponse(request, new HttpStatus(HttpStatus.INTERNAL_SERVER_ERROR));
+			return;
+		}
+
+		// compress if the content is worth it and the client accepts it;
+		// the compressed length is not known in advance, so it goes chunked
+		boolean compressible = Compression.isCompressible(content.getMimetype(), size);
+		String coding = coding(request, compressible);
+
+		// create headers
+		mHead.start(request.getVersionString(), STATUS_OK);
+		if (request.shouldCloseConnection()) {
+			mHead.line(ResponseHead.CONNECTION_CLOSE_LINE);
+		}
+		if (rangeable) {
+			mHead.line(ResponseHead.ACCEPT_RANGES_LINE);
+		}
+		if (compressible) {
+			mHead.line(ResponseHead.VARY_ACCEPT_ENCODING_LINE);
+		}
+		validatorHeaders(content, coding != null);
+		if (content.getMimetype() != null) {
+			mHead.header(ResponseHead.CONTENT_TYPE, content.getMimetype());
+		}
+		if (coding != null) {
+			mHead.header(ResponseHead.CONTENT_ENCODING, coding);
+			mHead.line(ResponseHead.CHUNKED_LINE);
+		} else if (size >= 0) {
+			mHead.header(ResponseHead.CONTENT_LENGTH, size);
+		} else {
+			mHead.line(ResponseHead.CHUNKED_LINE);
+		}
+		mHead.end();
+
+		// write headers to the connection's buffer; the body follows in the
+		// same buffer, and the connection flushes when the response is done
+		mHead.writeTo(mOut);
+
+		// if this was a HEAD request, exit at this point
+		if (request.getCommand().equals(Http.HEAD)) {
+			return;
+		}
+
+		// files and cached data are sent as the socket takes them, other
+		// big bodies later
+		if (!(size > 0 && (content instanceof FileRegionContent
+				|| content instanceof StaticFileLibrary.CachedFile)) && defers(size)) {
+			final OutContent deferred = content;
+			final long length = size;
+			final String deferredCoding = coding;
+			mDeferred = new Body() {
+				@Override
+				public void write(RequestHandler handler) throws IOException {
+					handler.sendBody(deferred, length, deferredCoding);
+				}
+			};
+			return;
+		}
+		sendBody(content, size, coding);
+	}
+
+	/**
+	 * Writes the whole content as the body of a response.
+	 * @param coding compression of the body, or null for none
+	 */
+	private void sendBody(OutContent content, long size, String coding) throws IOException {
+		long start = System.nanoTime();
+		if (coding != null) {
+			ChunkedEncodingOutputStream chunker = new ChunkedEncodingOutputStream(mOut);
+			CompressingOutputStream compressor = null;
+			try {
+				compressor = Compression.stream(chunker, coding);
+				content.out(compressor);
+				compressor.finish();
+				chunker.complete();
+			} finally {
+				if (compressor != null) compressor.release();
+				chunker.release();
+			}
+		} else if (size > 0 && content instanceof FileRegionContent) {
+			sendFile((FileRegionContent)content, 0, size);
+		} else if (size > 0 && content instanceof StaticFileLibrary.CachedFile) {
+			sendBuffer(((StaticFileLibrary.CachedFile)content).slice(0, size));
+		} else if (size >= 0) {
+			LimitedOutputStream limiter = new LimitedOutputStream(mOut, size);
+			content.out(limiter);
+			limiter.complete();
+		} else {
+			ChunkedEncodingOutputStream chunker = new ChunkedEncodingOutputStream(mOut);
+			try {
+				content.out(chunker);
+				chunker.complete();
+			} finally {
+				chunker.release();
+			}
+		}
+		if (mMetrics != null) mMetrics.mOutputTime.recordNanos(System.nanoTime() - start);
+	}
+
+	/**
+	 * @return the ranges asked for with the Range header, an empty list if
+	 *         none of them can be satisfied, or null if the whole content
+	 *         is to be sent
+	 */
+	private List<ByteRange> requestedRanges(HttpRequest request, OutContent content, long size) {
+		String header = request.getHeaders().get(RequestHeaders.RANGE);
+		if (header == null) return null;
+		// the client only wants the parts if its copy is still current
+		String ifRange = request.getHeaders().get(RequestHeaders.IF_RANGE);
+		if (ifRange != null && !(content instanceof ValidatedContent
+				&& Preconditions.ifRangeMatches(ifRange, (ValidatedContent)content))) {
+			return null;
+		}
+		List<ByteRange> ranges = ByteRange.parse(header, size);
+		// several parts in one response need random access
+		if (ranges != null && ranges.size() > 1 && !(content instanceof RandomAccessContent)) {
+			return null;
+		}
+		return ranges;
+	}
+
+	/**
+	 * Sends "206 Partial Content" with one range as the body, or several
+	 * as a multipart/byteranges body.
+	 */
+	private void sendRanges(HttpRequest request, OutContent content, long size,
+			List<ByteRange> ranges) throws IOException {
+		mHead.start(request.getVersionString(), STATUS_PARTIAL_CONTENT);
+		if (request.shouldCloseConnection()) {
+			mHead.line(ResponseHead.CONNECTION_CLOSE_LINE);
+		}
+		mHead.line(ResponseHead.ACCEPT_RANGES_LINE);
+		if (Compression.isCompressible(content.getMimetype(), size)) {
+			mHead.line(ResponseHead.VARY_ACCEPT_ENCODING_LINE);
+		}
+		validatorHeaders(content, false);
+
+		if (ranges.size() == 1) {
+			ByteRange range = ranges.get(0);
+			if (content.getMimetype() != null) {
+				mHead.header(ResponseHead.CONTENT_TYPE, content.getMimetype());
+			}
+			mHead.header(ResponseHead.CONTENT_RANGE, range.contentRange(size));
+			mHead.header(ResponseHead.CONTENT_LENGTH, range.length());
+			mHead.end();
+			mHead.writeTo(mOut);
+			if (content instanceof FileRegionContent) {
+				long start = System.nanoTime();
+				sendFile((FileRegionContent)content, range.mFirst, range.length());
+				if (mMetrics != null) mMetrics.mOutputTime.recordNanos(System.nanoTime() - start);
+			} else if (content instanceof StaticFileLibrary.CachedFile) {
+				long start = System.nanoTime();
+				sendBuffer(((StaticFileLibrary.CachedFile)content).slice(range.mFirst, range.length()));
+				if (mMetrics != null) mMetrics.mOutputTime.recordNanos(System.nanoTime() - start);
+			} else {
+				sendParts((RandomAccessContent)content, null, ranges, null);
+			}
+			return;
+		}
+
+		// every part has its own small head; the total length is known in advance
+		String boundary = Long.toHexString(sBoundaries.nextLong());
+		byte[][] partHeads = new byte[ranges.size()][];
+		long length = 0;
+		for (int i=0; i<partHeads.length; ++i) {
+			ByteRange range = ranges.get(i);
+			StringBuilder partHead = new StringBuilder("\r\n--").append(boundary).append("\r\n");
+			if (content.getMimetype() != null) {
+				partHead.append(Http.CONTENT_TYPE).append(": ").append(content.getMimetype()).append("\r\n");
+			}
+			partHead.append(Http.CONTENT_RANGE).append(": ").append(range.contentRange(size)).append("\r\n\r\n");
+			partHeads[i] = ResponseHead.ascii(partHead.toString());
+			length += partHeads[i].length + range.length();
+		}
+		byte[] tail = ResponseHead.ascii("\r\n--" + boundary + "--\r\n");
+		length += tail.length;
+
+		mHead.header(ResponseHead.CONTENT_TYPE, Http.MULTIPART_BYTERANGES + "; boundary=" + boundary);
+		mHead.header(ResponseHead.CONTENT_LENGTH, length);
+		mHead.end();
+		mHead.writeTo(mOut);
+		sendParts((RandomAccessContent)content, partHeads, ranges, tail);
+	}
+
+	/**
+	 * Writes the ranges of the content, each after its part head and the
+	 * last one followed by the tail, now or later if they are too many
+	 * bytes to write now.
+	 * @param partHeads heads of the parts, or null for a single range
+	 * @param tail end of the parts, or null for a single range
+	 */
+	private void sendParts(final RandomAccessContent content, final byte[][] partHeads,
+			final List<ByteRange> ranges, final byte[] tail) throws IOException {
+		long length = (tail != null ? tail.length : 0);
+		for (int i=0; i<ranges.size(); ++i) {
+			length += ranges.get(i).length() + (partHeads != null ? partHeads[i].length : 0);
+		}
+		if (defers(length)) {
+			mDeferred = new Body() {
+				@Override
+				public void write(RequestHandler handler) throws IOException {
+					handler.sendParts(content, partHeads, ranges, tail);
+				}
+			};
+			return;
+		}
+		long start = System.nanoTime();
+		for (int i=0; i<ranges.size(); ++i) {
+			if (partHeads != null) mOut.write(partHeads[i]);
+			sendPart(content, ranges.get(i));
+		}
+		if (tail != null) mOut.write(tail);
+		if (mMetrics != null) mMetrics.mOutputTime.recordNanos(System.nanoTime() - start);
+	}
+
+	// true if a body of the given length, -1 if not known, is left for later
+	private boolean defers(long length) {
+		return mMaxBuffered > 0 && (length < 0 || length > mMaxBuffered);
+	}
+
+	/**
+	 * Sends "304 Not Modified", which has no body
+	 */
+	private void notModified(HttpRequest request, ValidatedContent content) throws IOException {
+		mHead.start(request.getVersionString(), STATUS_NOT_MODIFIED);
+		if (request.shouldCloseConnection()) {
+			mHead.line(ResponseHead.CONNECTION_CLOSE_LINE);
+		}
+		// the same validator as "200 OK" would have
+		boolean compressible = Compression.isCompressible(content.getMimetype(),
+				content.getContentLength());
+		if (compressible) {
+			mHead.line(ResponseHead.VARY_ACCEPT_ENCODING_LINE);
+		}
+		validatorHeaders(content, coding(request, compressible) != null);
+		mHead.end();
+		mHead.writeTo(mOut);
+	}
+
+	/**
+	 * @return content coding of the body, or null if it is not compressed
+	 */
+	private String coding(HttpRequest request, boolean compressible) {
+		if (!compressible || request.getVersionMode() != Http.Version.HTTP1_1) return null;
+		return Compression.negotiate(request.getHeaders().get(RequestHeaders.ACCEPT_ENCODING));
+	}
+
+	/**
+	 * @param encoded true if the body is compressed; the bytes then differ
+	 *        from the content's, so a strong tag is sent as a weak one
+	 */
+	private void validatorHeaders(OutContent content, boolean encoded) {
+		if (!(content instanceof ValidatedContent)) return;
+		ValidatedContent validated = (ValidatedContent)content;
+		String etag = validated.getETag();
+		if (etag != null) {
+			if (encoded && !etag.startsWith(Preconditions.WEAK_PREFIX)) {
+				etag = Preconditions.WEAK_PREFIX + etag;
+			}
+			mHead.header(ResponseHead.ETAG, etag);
+		}
+		long modified = validated.getLastModified();
+		if (modified > 0) {
+			// the same file tends to be asked for repeatedly
+			if (modified != mLastModified) {
+				mLastModifiedText = HttpDate.format(modified);
+				mLastModified = modified;
+			}
+			mHead.header(ResponseHead.LAST_MODIFIED, mLastModifiedText);
+		}
+	}
+
+	private void sendPart(RandomAccessContent content, ByteRange range) throws IOException {
+		LimitedOutputStream limiter = new LimitedOutputStream(mOut, range.length());
+		content.out(limiter, range.mFirst, range.length());
+		limiter.complete();
+	}
+
+	/**
+	 * Sends a file region with transferTo(), so that the data goes from
+	 * the file to the socket without being copied through the heap.
+	 * @param offset position of the first byte to send within the region
+	 */
+	private void sendFile(FileRegionContent content, long offset, long size) throws IOException {
+		FileChannel file = content.getChannel();
+		long position = content.getOffset() + offset;
+		if (mOut instanceof ResponseBuffer) {
+			// non-blocking engine sends the file when the socket is writable
+			((ResponseBuffer)mOut).appendFile(file, position, size);
+			return;
+		}
+		try {
+			// the head must be out before the file data
+			mOut.flush();
+			WritableByteChannel target = (mChannel != null ? mChannel : Channels.newChannel(mOut));
+			long remaining = size;
+			while (remaining > 0) {
+				if (mTracker != null && mChannel != null) mTracker.writing();
+				long n = file.transferTo(position, remaining, target);
+				if (n <= 0) throw new EOFException("File ended before "+size+" bytes were sent");
+				// the channel is passed the connection's stream, which counts the rest
+				if (mMetrics != null && mChannel != null) mMetrics.sent(n);
+				if (mTracker != null && mChannel != null) mTracker.sent(n);
+				position += n;
+				remaining -= n;
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Sends cached data straight from its buffer, which may be mapped from
+	 * a file, without copying it through a chunk of the heap.
+	 */
+	private void sendBuffer(ByteBuffer data) throws IOException {
+		if (mOut instanceof ResponseBuffer) {
+			// non-blocking engine sends the data when the socket is writable
+			((ResponseBuffer)mOut).appendBuffer(data);
+			return;
+		}
+		// the head must be out before the data
+		mOut.flush();
+		WritableByteChannel target = (mChannel != null ? mChannel : Channels.newChannel(mOut));
+		while (data.hasRemaining()) {
+			if (mTracker != null && mChannel != null) mTracker.writing();
+			int n = target.write(data);
+			// the channel is passed the connection's stream, which counts the rest
+			if (mMetrics != null && mChannel != null) mMetrics.sent(n);
+			if (mTracker != null && mChannel != null) mTracker.sent(n);
+		}
+	}
+
+	/**
+	 * Handles POST and PUT: the request body is streamed to the content.
+	 * If the content is also an OutContent, it provides the response body
+	 * once it has read the request; otherwise "204 No Content" is sent.
+	 */
+	private void doPost(HttpRequest request) throws IOException {
+
+		// the only expectation there is: send the body once it is wanted
+		boolean expectContinue = false;
+		String expect = request.getHeaders().get(RequestHeaders.EXPECT);
+		if (expect != null && request.getVersionMode() == Http.Version.HTTP1_1) {
+			if (!expect.trim().equalsIgnoreCase(Http.CONTINUE)) {
+				request.setCloseConnection();
+				errorResponse(request, new HttpStatus(HttpStatus.EXPECTATION_FAILED));
+				return;
+			}
+			expectContinue = true;
+		}
+
+		// content = object that will consume the message body
+		InContent content;
+		try {
+			content = findContent(request, InContent.class);
+		} catch (HttpStatus ex) {
+			// the client may be holding the body back; it is not wanted
+			if (expectContinue) request.setCloseConnection();
+			errorResponse(request, ex);
+			return;
+		}
+
+		BodyInputStream body = request.getBody();
+		if (body == null) body = BodyInputStream.empty();
+		if (expectContinue) body.continueOnRead(mOut);
+		try {
+			content.in(body);
+		} catch (HttpStatus ex) {
+			// the rest of the body is not worth reading
+			request.setCloseConnection();
+			errorResponse(request, ex);
+			return;
+		}
+
+		if (content instanceof OutContent) {
+			OutContent out = (OutContent)content;
+			sendContent(request, out, out.getContentLength(), false);
+		} else {
+			mHead.start(request.getVersionString(), STATUS_NO_CONTENT);
+			if (request.shouldCloseConnection()) {
+				mHead.line(ResponseHead.CONNECTION_CLOSE_LINE);
+			}
+			mHead.end();
+			mHead.writeTo(mOut);
+		}
+	}
+
+	private <T> T findContentOrSendError(HttpRequest request, Class<T> clz) throws IOException {
+		try {
+			return findContent(request, clz);
+		} catch (HttpStatus ex) {
+			errorResponse(request, ex);
+			return null;
+		}
+	}
+
+	/**
+	 * @return content for the request, of the given type
+	 * @throws HttpStatus if the library has no such content
+	 */
+	private <T> T findContent(HttpRequest request, Class<T> clz) throws HttpStatus {
+		T content = null;
+		long start = System.nanoTime();
+		try {
+			content = clz.cast(mLibrary.getContent(request.getCommand(), request.getUri()));
+		} catch (ClassCastException ex) {
+			throw new HttpStatus(HttpStatus.METHOD_NOT_ALLOWED);
+		} finally {
+			if (mMetrics != null) mMetrics.mContentTime.recordNanos(System.nanoTime() - start);
+		}
+		if (content == null) {
+			throw new HttpStatus(HttpStatus.NOT_FOUND);
+		}
+		return content;
+	}
+
+	void errorResponse(HttpRequest request, HttpStatus status)
+			throws IOException {
+		errorResponse(request, status, null);
+	}
+
+	void errorResponse(HttpRequest request, HttpStatus status,
+			Map<String, String> extraHeaders) throws IOException {
+		byte[] page = errorPage(status);
+
+		// create headers
+		mHead.start(Http.versionString(request.getVersionMode()), status);
+		if (request.shouldCloseConnection()) {
+			mHead.line(ResponseHead.CONNECTION_CLOSE_LINE);
+		}
+		if (extraHeaders != null) {
+			for (Map.Entry<String, String> e : extraHeaders.entrySet()) {
+				mHead.header(e.getKey(), e.getValue());
+			}
+		}
+		mHead.header(ResponseHead.CONTENT_TYPE, ERROR_MIMETYPE);
+		mHead.header(ResponseHead.CONTENT_LENGTH, page.length);
+		mHead.end();
+
+		// error content goes in the same write as the headers
+		if (!Http.HEAD.equals(request.getCommand())) {
+			mHead.append(page);
+		}
+		mHead.writeTo(mOut);
+	}
+
+	/**
+	 * @return the error page for the status; the page of a plain status
+	 *         code with its usual message is rendered once and then taken
+	 *         from the cache, others every time, as libraries may give any
+	 *         number of messages
+	 */
+	static byte[] errorPage(HttpStatus status) {
+		boolean cached = status.getCode().length() == 3 && status.isStandardMessage();
+		byte[] page = (cached ? sErrorPages.get(status.getCode()) : null);
+		if (page == null) {
+			page = ResponseHead.ascii(errorTemplate.replace("resultLine", status.toString()) + "\r\n");
+			if (cached) sErrorPages.put(status.getCode(), page);
+		}
+		return page;
+	}
+
+}
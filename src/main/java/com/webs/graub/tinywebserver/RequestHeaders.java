@@ -0,0 +1,263 @@
+package com.webs.graub.tinywebserver;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Headers of a request. Header names are not case-sensitive, so "host"
+ * and "HOST" are both found as Http.HOST. <p>
+ *
+ * The bytes of the request head are copied into an array owned by the
+ * headers, and each header is kept as the offsets of its name and value
+ * in it. The well-known headers that the server itself looks at have a
+ * small number, and are found by that number in a flat array; others are
+ * found through an open-addressed table, hashed without regard to ASCII
+ * case. A value becomes a String only when it is asked for. <p>
+ *
+ * The RequestParser of a connection fills the same headers for every
+ * request, so their arrays are allocated only when the connection starts
+ * or a bigger head arrives. If a header is given more than once, the last
+ * one counts.
+ *
+ * @author Hannes R.
+ */
+class RequestHeaders {
+
+	// constants
+	static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	static final int INITIAL_HEADERS = 16;
+
+	// well-known headers
+	static final int HOST = 0;
+	static final int CONNECTION = 1;
+	static final int CONTENT_LENGTH = 2;
+	static final int CONTENT_TYPE = 3;
+	static final int TRANSFER_ENCODING = 4;
+	static final int EXPECT = 5;
+	static final int ACCEPT_ENCODING = 6;
+	static final int RANGE = 7;
+	static final int IF_RANGE = 8;
+	static final int IF_MATCH = 9;
+	static final int IF_NONE_MATCH = 10;
+	static final int IF_MODIFIED_SINCE = 11;
+	static final int IF_UNMODIFIED_SINCE = 12;
+	static final int ACCEPT = 13;
+	static final int USER_AGENT = 14;
+	static final String[] NAMES = {
+		Http.HOST, Http.CONNECTION, Http.CONTENT_LENGTH, Http.CONTENT_TYPE,
+		Http.TRANSFER_ENCODING, Http.EXPECT, Http.ACCEPT_ENCODING, Http.RANGE,
+		Http.IF_RANGE, Http.IF_MATCH, Http.IF_NONE_MATCH, Http.IF_MODIFIED_SINCE,
+		Http.IF_UNMODIFIED_SINCE, "Accept", "User-Agent" };
+	static final byte[][] NAME_BYTES = new byte[NAMES.length][];
+	// well-known number + 1 by hash of the name; 0 for an empty slot
+	static final int[] KNOWN = new int[64];
+	static {
+		for (int id=0; id<NAMES.length; ++id) {
+			NAME_BYTES[id] = NAMES[id].getBytes(ISO_8859_1);
+			int slot = hash(NAME_BYTES[id], 0, NAME_BYTES[id].length) & (KNOWN.length-1);
+			while (KNOWN[slot] != 0) slot = (slot+1) & (KNOWN.length-1);
+			KNOWN[slot] = id + 1;
+		}
+	}
+
+	// members
+	byte[] mHead = new byte[0];
+	int mLength;
+	// header offsets: name start, name end, value start, value end
+	int[] mOffsets = new int[INITIAL_HEADERS * 4];
+	String[] mValues = new String[INITIAL_HEADERS];
+	int mCount;
+	// header index + 1 by well-known number
+	int[] mKnown = new int[NAMES.length];
+	// header index + 1 by hash of the name, for the others
+	int[] mTable = new int[INITIAL_HEADERS * 2];
+	int mOthers;
+
+	/**
+	 * Removes all headers, keeping the arrays for the next request.
+	 */
+	void clear() {
+		Arrays.fill(mValues, 0, mCount, null);
+		Arrays.fill(mKnown, 0);
+		if (mOthers > 0) Arrays.fill(mTable, 0);
+		mLength = 0;
+		mCount = 0;
+		mOthers = 0;
+	}
+
+	/**
+	 * Removes all headers, and copies the head of the next request, whose
+	 * headers are then added by their offsets in it.
+	 */
+	void clear(byte[] head, int length) {
+		clear();
+		ensureHead(length);
+		System.arraycopy(head, 0, mHead, 0, length);
+		mLength = length;
+	}
+
+	/**
+	 * Adds a header found in the head given to clear().
+	 */
+	void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+		if (mCount*4 >= mOffsets.length) {
+			mOffsets = Arrays.copyOf(mOffsets, mOffsets.length*2);
+			mValues = Arrays.copyOf(mValues, mValues.length*2);
+		}
+		int h = mCount++;
+		int p = h*4;
+		mOffsets[p] = nameStart;
+		mOffsets[p+1] = nameEnd;
+		mOffsets[p+2] = valueStart;
+		mOffsets[p+3] = valueEnd;
+		int hash = hash(mHead, nameStart, nameEnd);
+		int id = known(mHead, nameStart, nameEnd, hash);
+		if (id >= 0) {
+			mKnown[id] = h + 1;
+		} else {
+			if ((mOthers+1)*2 > mTable.length) grow();
+			mOthers += insert(h, hash);
+		}
+	}
+
+	/**
+	 * Adds a header that did not come from a request head.
+	 */
+	void put(String name, String value) {
+		String line = name + ": " + value;
+		ensureHead(mLength + line.length());
+		int start = mLength;
+		for (int i=0; i<line.length(); ++i) {
+			mHead[mLength++] = (byte)line.charAt(i);
+		}
+		add(start, start + name.length(), mLength - value.length(), mLength);
+		mValues[mCount-1] = value;
+	}
+
+	/**
+	 * @param id well-known number of the header, like HOST
+	 * @return value of the header, or null if the request does not have it
+	 */
+	String get(int id) {
+		return value(mKnown[id] - 1);
+	}
+
+	/**
+	 * @return value of the header with the given name, in whatever case,
+	 *         or null if the request does not have it
+	 */
+	String get(String name) {
+		return value(find(name));
+	}
+
+	boolean contains(int id) {
+		return mKnown[id] != 0;
+	}
+
+	boolean contains(String name) {
+		return find(name) >= 0;
+	}
+
+	/**
+	 * @return number of headers, not counting those given more than once
+	 */
+	int size() {
+		int size = mOthers;
+		for (int id=0; id<mKnown.length; ++id) {
+			if (mKnown[id] != 0) size++;
+		}
+		return size;
+	}
+
+	private String value(int h) {
+		if (h < 0) return null;
+		String value = mValues[h];
+		if (value == null) {
+			int p = h*4;
+			value = new String(mHead, mOffsets[p+2], mOffsets[p+3]-mOffsets[p+2], ISO_8859_1);
+			mValues[h] = value;
+		}
+		return value;
+	}
+
+	// index of the header with the given name, or -1
+	private int find(String name) {
+		byte[] bytes = name.getBytes(ISO_8859_1);
+		int hash = hash(bytes, 0, bytes.length);
+		int id = known(bytes, 0, bytes.length, hash);
+		if (id >= 0) return mKnown[id] - 1;
+		if (mOthers == 0) return -1;
+		int mask = mTable.length - 1;
+		for (int slot = hash & mask; mTable[slot] != 0; slot = (slot+1) & mask) {
+			int p = (mTable[slot]-1) * 4;
+			if (equalsIgnoreCase(bytes, 0, bytes.length, mHead, mOffsets[p], mOffsets[p+1])) {
+				return mTable[slot] - 1;
+			}
+		}
+		return -1;
+	}
+
+	// puts a header in the table; returns 0 if it replaced one of its name
+	private int insert(int h, int hash) {
+		int mask = mTable.length - 1;
+		int s = mOffsets[h*4];
+		int e = mOffsets[h*4+1];
+		int slot = hash & mask;
+		for (; mTable[slot] != 0; slot = (slot+1) & mask) {
+			int p = (mTable[slot]-1) * 4;
+			if (equalsIgnoreCase(mHead, s, e, mHead, mOffsets[p], mOffsets[p+1])) {
+				mTable[slot] = h + 1;
+				return 0;
+			}
+		}
+		mTable[slot] = h + 1;
+		return 1;
+	}
+
+	private void grow() {
+		int[] old = mTable;
+		mTable = new int[old.length*2];
+		for (int slot=0; slot<old.length; ++slot) {
+			if (old[slot] == 0) continue;
+			int p = (old[slot]-1) * 4;
+			insert(old[slot]-1, hash(mHead, mOffsets[p], mOffsets[p+1]));
+		}
+	}
+
+	private void ensureHead(int length) {
+		if (length > mHead.length) {
+			mHead = Arrays.copyOf(mHead, Math.max(length, mHead.length*2));
+		}
+	}
+
+	// well-known number of the name, or -1
+	private static int known(byte[] b, int s, int e, int hash) {
+		int mask = KNOWN.length - 1;
+		for (int slot = hash & mask; KNOWN[slot] != 0; slot = (slot+1) & mask) {
+			byte[] name = NAME_BYTES[KNOWN[slot]-1];
+			if (equalsIgnoreCase(name, 0, name.length, b, s, e)) return KNOWN[slot] - 1;
+		}
+		return -1;
+	}
+
+	private static int hash(byte[] b, int s, int e) {
+		int h = 0;
+		for (int i=s; i<e; ++i) {
+			h = 31*h + lower(b[i]);
+		}
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equalsIgnoreCase(byte[] a, int as, int ae, byte[] b, int bs, int be) {
+		if (ae - as != be - bs) return false;
+		for (int i=0; i<ae-as; ++i) {
+			if (lower(a[as+i]) != lower(b[bs+i])) return false;
+		}
+		return true;
+	}
+
+	private static int lower(byte b) {
+		return (b >= 'A' && b <= 'Z' ? b + ('a'-'A') : b);
+	}
+
+}
@@ -0,0 +1,371 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+
+/**
+ * Incremental parser for the HTTP request head (request line and headers).
+ * Bytes are fed to parse() as they arrive, in as many pieces as needed;
+ * the blocking Session feeds it from its ConnectionInputStream buffer and
+ * the NioConnection from its ByteBuffer. <p>
+ *
+ * The head is copied into a buffer owned by the parser, and for each line
+ * only the start and end offsets of its tokens are recorded. Methods and
+ * HTTP versions are recognised by comparing bytes, so their constant
+ * strings are used; the URI is created when the request is filled in.
+ * The headers go to RequestHeaders, which the parser keeps, and gives to
+ * each request it fills. The parser is reset and reused for every request
+ * of a connection, and its buffer, leased from the BufferPool, is given
+ * back with release(). <p>
+ *
+ * Lines may end in CRLF or in LF only. Empty lines before the request line
+ * are ignored. Folded header lines are rejected. <p>
+ *
+ * The size of the head and the number of headers are limited. A head
+ * that does not fit is answered with "414 URI Too Long" if it is the
+ * request line that is too long, otherwise with "431 Request Header
+ * Fields Too Large"; as the rest of such a head is not read, the
+ * connection is closed. Too many headers also get 431.
+ *
+ * @author Hannes R.
+ */
+class RequestParser {
+
+	// constants
+	static final int DEFAULT_MAX_HEAD_SIZE = 8192;
+	static final int DEFAULT_MAX_HEADERS = 100;
+	static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	static final URI ROOT = URI.create("/");
+
+	static final String[] METHODS = {
+		Http.GET, Http.HEAD, Http.POST, Http.PUT,
+		Http.DELETE, Http.OPTIONS, Http.TRACE };
+	static final byte[][] METHOD_BYTES = ascii(METHODS);
+
+	static final String HTTP1_0 = "HTTP/1.0";
+	static final String HTTP1_1 = "HTTP/1.1";
+	static final byte[] HTTP1_0_BYTES = HTTP1_0.getBytes(ISO_8859_1);
+	static final byte[] HTTP1_1_BYTES = HTTP1_1.getBytes(ISO_8859_1);
+	static final byte[] HTTP1_X_BYTES = "HTTP/1.".getBytes(ISO_8859_1);
+
+	enum State {REQUEST_LINE, HEADERS, DONE};
+
+	// members
+	final int mMaxHeadSize;
+	final int mMaxHeaders;
+	byte[] mHead;
+	int mLength;
+	int mLineStart;
+	State mState;
+	HttpStatus mStatus;
+	boolean mTruncated; // the head did not fit, and was not read to its end
+	// request line token offsets: start and end of method, uri, version
+	int[] mRequestLine = new int[6];
+	// header offsets: name start, name end, value start, value end
+	int[] mHeaders;
+	int mHeaderCount;
+	// the headers of the request filled in last
+	RequestHeaders mFields = new RequestHeaders();
+	long mParseTime; // nanoseconds spent on the current head
+
+	RequestParser() {
+		this(DEFAULT_MAX_HEAD_SIZE, DEFAULT_MAX_HEADERS);
+	}
+
+	/**
+	 * @param maxHeadSize largest request head accepted, in bytes
+	 * @param maxHeaders largest number of header lines accepted
+	 */
+	RequestParser(int maxHeadSize, int maxHeaders) {
+		this.mMaxHeadSize = maxHeadSize;
+		this.mMaxHeaders = maxHeaders;
+		this.mHead = BufferPool.lease(maxHeadSize);
+		this.mHeaders = new int[maxHeaders * 4];
+		reset();
+	}
+
+	/**
+	 * Prepares the parser for the next request.
+	 */
+	void reset() {
+		mLength = 0;
+		mLineStart = 0;
+		mState = State.REQUEST_LINE;
+		mStatus = null;
+		mTruncated = false;
+		mHeaderCount = 0;
+		mParseTime = 0;
+		mRequestLine[0] = 0;
+		mRequestLine[1] = 0;
+	}
+
+	/**
+	 * Returns the buffer to the pool. The parser can not be used afterwards.
+	 */
+	void release() {
+		BufferPool.release(mHead);
+		mHead = null;
+	}
+
+	boolean isComplete() {
+		return mState == State.DONE;
+	}
+
+	/**
+	 * @return true if no byte of a request has been seen yet
+	 */
+	boolean isEmpty() {
+		return mState == State.REQUEST_LINE && mLength == 0;
+	}
+
+	/**
+	 * Consumes bytes of the request head from the given array. Parsing
+	 * stops at the end of the head; bytes after it are not consumed.
+	 * @return number of bytes consumed
+	 */
+	int parse(byte[] data, int off, int end) {
+		long start = System.nanoTime();
+		try {
+			return parseLines(data, off, end);
+		} finally {
+			mParseTime += System.nanoTime() - start;
+		}
+	}
+
+	private int parseLines(byte[] data, int off, int end) {
+		int i = off;
+		while (i < end && mState != State.DONE) {
+			int nl = i;
+			while (nl < end && data[nl] != '\n') nl++;
+			int stop = (nl < end ? nl+1 : end);
+			int n = stop - i;
+			if (mLength + n > mMaxHeadSize) {
+				// request head too big for the buffer
+				fail(mState == State.REQUEST_LINE ? HttpStatus.URI_TOO_LONG
+						: HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE);
+				mTruncated = true;
+				mState = State.DONE;
+				return stop - off;
+			}
+			System.arraycopy(data, i, mHead, mLength, n);
+			mLength += n;
+			i = stop;
+			if (nl < end) endOfLine();
+		}
+		return i - off;
+	}
+
+	/**
+	 * Reads the request head from the stream, scanning its buffer in place.
+	 * @return false if the stream ended before any byte of a request
+	 */
+	boolean parse(ConnectionInputStream in) throws IOException {
+		while (mState != State.DONE) {
+			if (in.mPos >= in.mCount && in.fill() < 0) {
+				if (isEmpty()) return false;
+				finish();
+				break;
+			}
+			in.mPos += parse(in.mBuf, in.mPos, in.mCount);
+		}
+		return true;
+	}
+
+	/**
+	 * Ends parsing at end of stream; an unterminated line is taken as is.
+	 */
+	void finish() {
+		if (mState == State.DONE) return;
+		if (mLineStart < mLength) endOfLine();
+		if (mState == State.REQUEST_LINE) fail(HttpStatus.BAD_REQUEST);
+		mState = State.DONE;
+	}
+
+	/**
+	 * Sets the parsed request line and headers to the request. The
+	 * headers are reused for the next request, so the request must have
+	 * been served by then.
+	 */
+	void fill(HttpRequest request) {
+		long start = System.nanoTime();
+		if (mRequestLine[1] > mRequestLine[0]) {
+			String method = method();
+			URI uri = uri();
+			Http.Version versionMode = versionMode();
+			request.setRequestLine(method, uri, version(), versionMode);
+		}
+		mFields.clear(mHead, mLength);
+		for (int h=0; h<mHeaderCount; ++h) {
+			int[] o = mHeaders;
+			int p = h*4;
+			mFields.add(o[p], o[p+1], o[p+2], o[p+3]);
+		}
+		request.setHeaders(mFields);
+		if (mStatus != null) request.setStatus(mStatus);
+		// what follows a truncated head can not be told from a request
+		if (mTruncated) request.setCloseConnection();
+		request.validate();
+		request.setParseTime(mParseTime + System.nanoTime() - start);
+	}
+
+	private void endOfLine() {
+		int start = mLineStart;
+		int end = mLength;
+		if (end > start && mHead[end-1] == '\n') end--;
+		if (end > start && mHead[end-1] == '\r') end--;
+		mLineStart = mLength;
+
+		if (mState == State.REQUEST_LINE) {
+			if (end == start) {
+				// ignore empty lines before the request line
+				mLength = 0;
+				mLineStart = 0;
+				return;
+			}
+			requestLine(start, end);
+			mState = State.HEADERS;
+		} else if (end == start) {
+			mState = State.DONE;
+		} else {
+			headerLine(start, end);
+		}
+	}
+
+	private void requestLine(int start, int end) {
+		int[] t = mRequestLine;
+		int p = skipSpace(start, end);
+		t[0] = p;
+		p = skipToken(p, end);
+		t[1] = p;
+		p = skipSpace(p, end);
+		t[2] = p;
+		p = skipToken(p, end);
+		t[3] = p;
+		p = skipSpace(p, end);
+		t[4] = p;
+		t[5] = trimEnd(p, end);
+		if (t[1] == t[0] || t[3] == t[2] || t[5] == t[4]) {
+			// not all three parts given
+			t[0] = t[1] = 0;
+			fail(HttpStatus.BAD_REQUEST);
+		}
+	}
+
+	private void headerLine(int start, int end) {
+		if (mStatus != null) return; // already bad
+		if (isSpace(mHead[start])) {
+			// folded header line
+			fail(HttpStatus.BAD_REQUEST);
+			return;
+		}
+		int colon = start;
+		while (colon < end && mHead[colon] != ':') colon++;
+		int nameEnd = trimEnd(start, colon);
+		int valueStart = skipSpace(colon+1, end);
+		int valueEnd = trimEnd(valueStart, end);
+		if (colon == end || nameEnd == start || valueEnd == valueStart) {
+			fail(HttpStatus.BAD_REQUEST);
+			return;
+		}
+		if (mHeaderCount >= mMaxHeaders) {
+			fail(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE);
+			return;
+		}
+		int p = mHeaderCount*4;
+		mHeaders[p] = start;
+		mHeaders[p+1] = nameEnd;
+		mHeaders[p+2] = valueStart;
+		mHeaders[p+3] = valueEnd;
+		mHeaderCount++;
+	}
+
+	private String method() {
+		int s = mRequestLine[0];
+		int e = mRequestLine[1];
+		for (int m=0; m<METHOD_BYTES.length; ++m) {
+			if (equals(METHOD_BYTES[m], s, e)) return METHODS[m];
+		}
+		fail(HttpStatus.BAD_REQUEST);
+		return "";
+	}
+
+	private URI uri() {
+		int s = mRequestLine[2];
+		int e = mRequestLine[3];
+		if (e - s == 1 && mHead[s] == '/') return ROOT;
+		try {
+			return new URI(new String(mHead, s, e-s, ISO_8859_1));
+		} catch (URISyntaxException ex) {
+			fail(HttpStatus.BAD_REQUEST);
+			return ROOT;
+		}
+	}
+
+	private String version() {
+		int s = mRequestLine[4];
+		int e = mRequestLine[5];
+		if (equals(HTTP1_1_BYTES, s, e)) return HTTP1_1;
+		if (equals(HTTP1_0_BYTES, s, e)) return HTTP1_0;
+		return new String(mHead, s, e-s, ISO_8859_1);
+	}
+
+	private Http.Version versionMode() {
+		int s = mRequestLine[4];
+		int e = mRequestLine[5];
+		if (equals(HTTP1_1_BYTES, s, e)) return Http.Version.HTTP1_1;
+		if (equals(HTTP1_0_BYTES, s, e)) return Http.Version.HTTP1_0;
+		if (e - s > HTTP1_X_BYTES.length && startsWith(HTTP1_X_BYTES, s, e)) {
+			// Client version is HTTP/1.X -> serve it as HTTP/1.1
+			return Http.Version.HTTP1_1;
+		}
+		fail(HttpStatus.BAD_REQUEST);
+		return Http.Version.HTTP1_0;
+	}
+
+	private void fail(String code) {
+		if (mStatus == null)
+			mStatus = new HttpStatus(code);
+	}
+
+	private boolean equals(byte[] expected, int s, int e) {
+		return e - s == expected.length && startsWith(expected, s, e);
+	}
+
+	private boolean startsWith(byte[] expected, int s, int e) {
+		if (e - s < expected.length) return false;
+		for (int i=0; i<expected.length; ++i) {
+			if (mHead[s+i] != expected[i]) return false;
+		}
+		return true;
+	}
+
+	private int skipSpace(int p, int end) {
+		while (p < end && isSpace(mHead[p])) p++;
+		return p;
+	}
+
+	private int skipToken(int p, int end) {
+		while (p < end && !isSpace(mHead[p])) p++;
+		return p;
+	}
+
+	private int trimEnd(int start, int end) {
+		while (end > start && isSpace(mHead[end-1])) end--;
+		return end;
+	}
+
+	private static boolean isSpace(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private static byte[][] ascii(String[] strings) {
+		byte[][] bytes = new byte[strings.length][];
+		for (int i=0; i<strings.length; ++i) {
+			bytes[i] = strings[i].getBytes(ISO_8859_1);
+		}
+		return bytes;
+	}
+
+}
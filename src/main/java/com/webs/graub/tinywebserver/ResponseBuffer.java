@@ -0,0 +1,194 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * An OutputStream that collects response bytes in memory, so that they
+ * can later be drained to a non-blocking channel in as many steps as the
+ * channel needs. Written data is appended at the end, drained data is
+ * consumed from the beginning; once everything has been drained the
+ * buffer is rewound and reused for the next response. The buffer is
+ * leased from the BufferPool, and given back with dispose(). <p>
+ *
+ * A body of more than MAX_SIZE bytes is not written here; see
+ * RequestHandler.setMaxBuffered(). <p>
+ *
+ * @author Hannes R.
+ */
+class ResponseBuffer extends OutputStream {
+
+	// constants
+	static final int INITIAL_SIZE = 8192;
+	static final int MAX_SIZE = 262144;
+
+	// members
+	byte[] mData;
+	int mCount;
+	int mPosition;
+	FileChannel mFile;
+	long mFilePosition;
+	long mFileRemaining;
+	ByteBuffer mBuffer;
+	Metrics mMetrics;
+	ConnectionManager.Tracker mTracker;
+
+	ResponseBuffer() {
+		mData = BufferPool.lease(INITIAL_SIZE);
+		mCount = 0;
+		mPosition = 0;
+	}
+
+	/**
+	 * @param metrics where the bytes drained are counted; null for nowhere
+	 */
+	void setMetrics(Metrics metrics) {
+		this.mMetrics = metrics;
+	}
+
+	/**
+	 * @param tracker what is told about the bytes drained; null for nothing
+	 */
+	void setTracker(ConnectionManager.Tracker tracker) {
+		this.mTracker = tracker;
+	}
+
+	@Override
+	public void write(int b) {
+		ensureCapacity(1);
+		mData[mCount++] = (byte)b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		ensureCapacity(len);
+		System.arraycopy(b, off, mData, mCount, len);
+		mCount += len;
+	}
+
+	/**
+	 * Queues a file region to be sent after the bytes written so far. The
+	 * file is transferred directly to the channel and closed when done.
+	 * Nothing may be written after the file until it has been drained.
+	 */
+	void appendFile(FileChannel file, long position, long length) {
+		mFile = file;
+		mFilePosition = position;
+		mFileRemaining = length;
+	}
+
+	/**
+	 * Queues data to be sent after the bytes written so far, straight from
+	 * the given buffer. Nothing may be written after the buffer until it
+	 * has been drained.
+	 */
+	void appendBuffer(ByteBuffer data) {
+		mBuffer = data;
+	}
+
+	/**
+	 * Writes as much of the pending data to the channel as the channel
+	 * accepts without blocking.
+	 * @return true if all pending data has been written
+	 */
+	boolean drainTo(WritableByteChannel channel) throws IOException {
+		if (mPosition < mCount) {
+			ByteBuffer pending = ByteBuffer.wrap(mData, mPosition, mCount-mPosition);
+			int n = channel.write(pending);
+			mPosition += n;
+			sent(n);
+		}
+		if (mPosition < mCount) {
+			return false;
+		}
+		mPosition = 0;
+		mCount = 0;
+		if (mBuffer != null) {
+			sent(channel.write(mBuffer));
+			if (mBuffer.hasRemaining()) return false;
+			mBuffer = null;
+		}
+		if (mFile != null) {
+			long n = mFile.transferTo(mFilePosition, mFileRemaining, channel);
+			if (n < 0 || (n == 0 && mFilePosition >= mFile.size())) {
+				release();
+				throw new EOFException("File ended before its length was sent");
+			}
+			mFilePosition += n;
+			mFileRemaining -= n;
+			sent(n);
+			if (mFileRemaining > 0) return false;
+			release();
+		}
+		return true;
+	}
+
+	boolean isEmpty() {
+		return mPosition >= mCount && mFile == null && mBuffer == null;
+	}
+
+	/**
+	 * @return true if a file or a buffer waits to be sent
+	 */
+	boolean hasAppended() {
+		return mFile != null || mBuffer != null;
+	}
+
+	/**
+	 * Closes a file that has not been sent completely, and forgets a buffer
+	 */
+	void release() {
+		mBuffer = null;
+		if (mFile == null) return;
+		try {
+			mFile.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+		mFile = null;
+	}
+
+	/**
+	 * Closes the file and returns the buffer to the pool. The buffer can
+	 * not be used afterwards.
+	 */
+	void dispose() {
+		release();
+		BufferPool.release(mData);
+		mData = null;
+		mCount = 0;
+		mPosition = 0;
+	}
+
+	/**
+	 * @return number of bytes waiting to be drained
+	 */
+	int size() {
+		return mCount - mPosition;
+	}
+
+	private void sent(long n) {
+		if (mMetrics != null) mMetrics.sent(n);
+		if (mTracker != null) mTracker.sent(n);
+	}
+
+	private void ensureCapacity(int len) {
+		if (mCount + len <= mData.length) return;
+		// compact away the already drained part before growing
+		if (mPosition > 0) {
+			System.arraycopy(mData, mPosition, mData, 0, mCount-mPosition);
+			mCount -= mPosition;
+			mPosition = 0;
+			if (mCount + len <= mData.length) return;
+		}
+		byte[] grown = BufferPool.lease(Math.max(mData.length*2, mCount+len));
+		System.arraycopy(mData, 0, grown, 0, mCount);
+		BufferPool.release(mData);
+		mData = grown;
+	}
+
+}
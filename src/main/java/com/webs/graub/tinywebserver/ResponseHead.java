@@ -0,0 +1,138 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Renders a response head (status line and headers) into a byte buffer
+ * that is reused for every response of a connection. Fixed lines such as
+ * the Server header and common header names are kept pre-encoded, status
+ * lines are cached in HttpStatus and the Date line comes from HttpDate,
+ * so writing a head copies bytes instead of building strings.
+ *
+ * @author Hannes R.
+ */
+class ResponseHead {
+
+	// constants
+	static final int INITIAL_SIZE = 512;
+	static final byte[] SERVER_LINE = ascii("Server: TinyWebServer (graub.webs.com)\r\n");
+	static final byte[] CHUNKED_LINE = ascii(Http.TRANSFER_ENCODING + ": " + Http.CHUNKED + "\r\n");
+	static final byte[] CONNECTION_CLOSE_LINE = ascii(Http.CONNECTION + ": close\r\n");
+	static final byte[] CONTENT_TYPE = ascii(Http.CONTENT_TYPE + ": ");
+	static final byte[] CONTENT_LENGTH = ascii(Http.CONTENT_LENGTH + ": ");
+	static final byte[] CONTENT_RANGE = ascii(Http.CONTENT_RANGE + ": ");
+	static final byte[] ETAG = ascii(Http.ETAG + ": ");
+	static final byte[] LAST_MODIFIED = ascii(Http.LAST_MODIFIED + ": ");
+	static final byte[] CONTENT_ENCODING = ascii(Http.CONTENT_ENCODING + ": ");
+	static final byte[] VARY_ACCEPT_ENCODING_LINE = ascii(Http.VARY + ": " + Http.ACCEPT_ENCODING + "\r\n");
+	static final byte[] ACCEPT_RANGES_LINE = ascii(Http.ACCEPT_RANGES + ": " + ByteRange.BYTES_UNIT + "\r\n");
+	static final byte[] HTTP1_0 = ascii(RequestParser.HTTP1_0);
+	static final byte[] HTTP1_1 = ascii(RequestParser.HTTP1_1);
+	static final byte[] SEPARATOR = ascii(": ");
+	static final byte[] CONTINUE_RESPONSE = ascii(RequestParser.HTTP1_1 + " 100 Continue\r\n\r\n");
+
+	// members
+	byte[] mBuf;
+	int mCount;
+	int mStatusCode; // of the last head started
+
+	ResponseHead() {
+		mBuf = new byte[INITIAL_SIZE];
+		mCount = 0;
+	}
+
+	/**
+	 * Starts the head with the status line, followed by the Server and
+	 * Date headers that every response has.
+	 */
+	void start(String version, HttpStatus status) {
+		mCount = 0;
+		mStatusCode = status.getStatusCode();
+		if (version == RequestParser.HTTP1_1) append(HTTP1_1);
+		else if (version == RequestParser.HTTP1_0) append(HTTP1_0);
+		else append(version);
+		append(status.statusLine());
+		append(SERVER_LINE);
+		append(HttpDate.dateLine());
+	}
+
+	/**
+	 * Appends a complete pre-encoded line
+	 */
+	void line(byte[] line) {
+		append(line);
+	}
+
+	void header(byte[] name, String value) {
+		append(name);
+		append(value);
+		append(Http.CRLF);
+	}
+
+	void header(byte[] name, long value) {
+		append(name);
+		append(value);
+		append(Http.CRLF);
+	}
+
+	void header(String name, String value) {
+		append(name);
+		append(SEPARATOR);
+		append(value);
+		append(Http.CRLF);
+	}
+
+	/**
+	 * Ends the header section with an empty line
+	 */
+	void end() {
+		append(Http.CRLF);
+	}
+
+	void append(byte[] bytes) {
+		ensureCapacity(bytes.length);
+		System.arraycopy(bytes, 0, mBuf, mCount, bytes.length);
+		mCount += bytes.length;
+	}
+
+	void writeTo(OutputStream out) throws IOException {
+		out.write(mBuf, 0, mCount);
+	}
+
+	private void append(String s) {
+		int len = s.length();
+		ensureCapacity(len);
+		for (int i=0; i<len; ++i) {
+			char c = s.charAt(i);
+			mBuf[mCount++] = (byte)(c < 0x100 ? c : '?');
+		}
+	}
+
+	private void append(long value) {
+		if (value < 0) {
+			append("-");
+			value = -value;
+		}
+		int digits = 1;
+		for (long v = value; v >= 10; v /= 10) digits++;
+		ensureCapacity(digits);
+		for (int i = mCount + digits - 1; i >= mCount; --i) {
+			mBuf[i] = (byte)('0' + value % 10);
+			value /= 10;
+		}
+		mCount += digits;
+	}
+
+	private void ensureCapacity(int len) {
+		if (mCount + len <= mBuf.length) return;
+		byte[] grown = new byte[Math.max(mBuf.length*2, mCount+len)];
+		System.arraycopy(mBuf, 0, grown, 0, mCount);
+		mBuf = grown;
+	}
+
+	static byte[] ascii(String s) {
+		return s.getBytes(RequestParser.ISO_8859_1);
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.webs.graub.tinywebserver;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Library that dispatches requests by path to the content factories that
+ * have been registered for them. The routes are compiled into a tree of
+ * path segments, so finding the route of a request takes one step per
+ * segment of the path, however many routes there are. <p>
+ *
+ * A route pattern consists of segments separated by slashes. A segment is
+ * either static text, a parameter "{name}" that matches any one segment,
+ * or, as the last segment, a wildcard "*" that matches the rest of the
+ * path (possibly nothing). The matched values are given to the factory,
+ * the wildcard under the name "*". Static segments are preferred over
+ * parameters, and parameters over wildcards: if the static branch of a
+ * path leads to no route, the parameter branch is tried, and if that
+ * leads nowhere either, the nearest wildcard on the way matches it. <p>
+ *
+ * Routes are registered by method: the factory of a GET route (which also
+ * serves HEAD) creates OutContent, the factory of a POST or PUT route
+ * creates InContent. A path that has routes, but not for the method of the
+ * request, is answered with "405 Method Not Allowed". Routes must be
+ * registered before the server is started. <p>
+ *
+ * Example:
+ * <pre>
+ * Router router = new Router()
+ *     .get("/", indexFactory)
+ *     .get("/users/{id}", userFactory)
+ *     .put("/users/{id}", userUploadFactory)
+ *     .get("/static/*", staticFactory);
+ * new Server(router, 8080).start();
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class Router implements Library {
+
+	/**
+	 * Creates the content for a request that matched a route.
+	 */
+	public interface ContentFactory {
+
+		/**
+		 * @param params values of the parameters and the wildcard of the
+		 *        route, by name
+		 * @return the content, or null for "404 Not Found"
+		 */
+		Content create(URI uri, Map<String, String> params) throws HttpStatus;
+
+	}
+
+	// constants
+	static final String WILDCARD = "*";
+
+	// members
+	Node mRoot = new Node();
+
+	public Router get(String pattern, ContentFactory factory) {
+		return add(Http.GET, pattern, factory);
+	}
+
+	public Router post(String pattern, ContentFactory factory) {
+		return add(Http.POST, pattern, factory);
+	}
+
+	public Router put(String pattern, ContentFactory factory) {
+		return add(Http.PUT, pattern, factory);
+	}
+
+	/**
+	 * Registers a route.
+	 * @throws IllegalArgumentException if the pattern is malformed or its
+	 *         parameter names conflict with those of another route
+	 */
+	public Router add(String method, String pattern, ContentFactory factory) {
+		Node node = mRoot;
+		String[] segments = pattern.split("/");
+		for (int i = 0; i < segments.length; ++i) {
+			String segment = segments[i];
+			if (segment.isEmpty()) continue;
+			if (segment.equals(WILDCARD)) {
+				if (i != segments.length - 1) {
+					throw new IllegalArgumentException("Wildcard must be the last segment: " + pattern);
+				}
+				if (node.mWildcard == null) node.mWildcard = new Node();
+				node = node.mWildcard;
+			} else if (segment.startsWith("{") && segment.endsWith("}")) {
+				String name = segment.substring(1, segment.length() - 1);
+				if (name.isEmpty()) throw new IllegalArgumentException("Unnamed parameter: " + pattern);
+				if (node.mParam == null) {
+					node.mParam = new Node();
+					node.mParamName = name;
+				} else if (!node.mParamName.equals(name)) {
+					throw new IllegalArgumentException("Parameter {" + name + "} conflicts with {"
+							+ node.mParamName + "}: " + pattern);
+				}
+				node = node.mParam;
+			} else {
+				Node child = node.mStatic.get(segment);
+				if (child == null) {
+					child = new Node();
+					node.mStatic.put(segment, child);
+				}
+				node = child;
+			}
+		}
+		node.mFactories.put(method, factory);
+		return this;
+	}
+
+	@Override
+	public Content getContent(URI uri) throws HttpStatus {
+		return getContent(Http.GET, uri);
+	}
+
+	@Override
+	public Content getContent(String method, URI uri) throws HttpStatus {
+		String path = uri.getPath();
+		if (path == null) return null;
+		List<String> params = new ArrayList<String>(); // names and values
+		Node node = find(path, params);
+		if (node == null || node.mFactories.isEmpty()) return null;
+		ContentFactory factory = node.mFactories.get(Http.HEAD.equals(method) ? Http.GET : method);
+		if (factory == null) throw new HttpStatus(HttpStatus.METHOD_NOT_ALLOWED);
+		return factory.create(uri, toMap(params));
+	}
+
+	/**
+	 * Walks the tree along the path, one segment at a time. Where both a
+	 * static segment and a parameter match, the static branch is tried
+	 * first, and the parameter if that leads to no route; then the
+	 * wildcard of the node.
+	 * @param params receives the names and values of the matched parameters
+	 * @return the node of the route, or null if none matches
+	 */
+	private Node find(String path, List<String> params) {
+		return find(mRoot, path, 0, params);
+	}
+
+	private Node find(Node node, String path, int pos, List<String> params) {
+		int length = path.length();
+		while (pos < length && path.charAt(pos) == '/') pos++;
+		if (pos >= length) {
+			if (!node.mFactories.isEmpty()) return node;
+		} else {
+			int end = path.indexOf('/', pos);
+			if (end < 0) end = length;
+			String segment = path.substring(pos, end);
+			Node next = node.mStatic.get(segment);
+			if (next != null) {
+				Node found = find(next, path, end, params);
+				if (found != null) return found;
+			}
+			if (node.mParam != null) {
+				int mark = params.size();
+				params.add(node.mParamName);
+				params.add(segment);
+				Node found = find(node.mParam, path, end, params);
+				if (found != null) return found;
+				params.subList(mark, params.size()).clear();
+			}
+		}
+		if (node.mWildcard == null) return null;
+		params.add(WILDCARD);
+		params.add(path.substring(pos));
+		return node.mWildcard;
+	}
+
+	private static Map<String, String> toMap(List<String> params) {
+		if (params.isEmpty()) return Collections.emptyMap();
+		Map<String, String> map = new HashMap<String, String>();
+		for (int i = 0; i < params.size(); i += 2) {
+			map.put(params.get(i), params.get(i + 1));
+		}
+		return map;
+	}
+
+	/**
+	 * A segment of the route tree, with the factories of the route that
+	 * ends here.
+	 */
+	static class Node {
+		HashMap<String, Node> mStatic = new HashMap<String, Node>();
+		Node mParam;
+		String mParamName;
+		Node mWildcard;
+		HashMap<String, ContentFactory> mFactories = new HashMap<String, ContentFactory>();
+	}
+
+}
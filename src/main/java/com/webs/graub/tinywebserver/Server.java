@@ -1,33 +1,230 @@
 package com.webs.graub.tinywebserver;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Tiny web server.
- * 
+ *
  * @author Hannes R.
  */
 public class Server extends Thread {
 
+	/**
+	 * How connections are served: BLOCKING uses one thread per connection,
+	 * NIO serves all connections from one selector thread.
+	 */
+	public enum Engine {BLOCKING, NIO};
+
 	// constants
 	public static final int DEFAULT_PORT = 8080;
+	public static final long DEFAULT_MAX_BODY_SIZE = 16L * 1024 * 1024;
+	public static final long DEFAULT_IDLE_TIMEOUT_MS = 60000;
+	public static final long DEFAULT_HEADER_TIMEOUT_MS = 30000;
+	public static final long DEFAULT_BODY_TIMEOUT_MS = 60000;
+	public static final long DEFAULT_WRITE_TIMEOUT_MS = 60000;
+	static final int OVERLOAD_RETRY_AFTER = 1;
+	// connections waiting to be accepted; the default of 50 drops the
+	// SYNs of a burst of clients, which then wait a second or more to retry
+	static final int ACCEPT_BACKLOG = 1024;
 
 	// members
 	ServerSocket mListenerSocket;
 	Library mLibrary;
-	boolean running = true;
+	Engine mEngine;
+	NioEngine mNioEngine;
+	Executor mExecutor;
+	long mMaxBodySize = DEFAULT_MAX_BODY_SIZE;
+	Metrics mMetrics = new Metrics();
+	ConnectionManager mConnections = new ConnectionManager();
+	volatile boolean running = true;
 
 	public Server(Library library) throws IOException {
 		this(library, DEFAULT_PORT);
 	}
 
 	public Server(Library library, int port) throws IOException {
+		this(library, port, Engine.BLOCKING);
+	}
+
+	public Server(Library library, int port, Engine engine) throws IOException {
 		this.mLibrary = library;
-		this.mListenerSocket = new ServerSocket(port);
+		this.mEngine = engine;
+		// sockets accepted through a channel have channels themselves,
+		// which lets files be sent with transferTo() in both engines
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.socket().setReuseAddress(true);
+		channel.socket().bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+		this.mListenerSocket = channel.socket();
+		if (engine == Engine.NIO) {
+			this.mNioEngine = new NioEngine(this, channel);
+		}
+	}
+
+	/**
+	 * Sets the Executor that runs the sessions of the BLOCKING engine.
+	 * By default every connection gets a new platform thread. Must be
+	 * called before the server is started. The executor is not shut
+	 * down when the server stops. If the executor rejects a session,
+	 * the client gets "503 Service Unavailable".
+	 * @see #newVirtualThreadExecutor()
+	 * @see WorkerPool
+	 */
+	public void setExecutor(Executor executor) {
+		this.mExecutor = executor;
+	}
+
+	/**
+	 * Sets the largest request body that is accepted; bigger ones are
+	 * answered with "413 Payload Too Large". Must be called before the
+	 * server is started.
+	 */
+	public void setMaxBodySize(long bytes) {
+		this.mMaxBodySize = bytes;
+	}
+
+	/**
+	 * Sets how long a keep-alive connection may wait for its next request
+	 * before it is closed; 0 for no limit. Must be called before the
+	 * server is started.
+	 */
+	public void setIdleTimeout(long millis) {
+		this.mConnections.mIdleTimeout = millis;
+	}
+
+	/**
+	 * Sets how long the head of a request may take to arrive, from its
+	 * first byte; 0 for no limit. Must be called before the server is
+	 * started.
+	 */
+	public void setHeaderTimeout(long millis) {
+		this.mConnections.mHeaderTimeout = millis;
+	}
+
+	/**
+	 * Sets how long the reading of a request body may wait for more data;
+	 * 0 for no limit. Must be called before the server is started.
+	 */
+	public void setBodyTimeout(long millis) {
+		this.mConnections.mBodyTimeout = millis;
+	}
+
+	/**
+	 * Sets how long a write of a response may wait for the client to take
+	 * the data; a client that does not read its responses is then
+	 * disconnected. 0 for no limit. Must be called before the server is
+	 * started.
+	 */
+	public void setWriteTimeout(long millis) {
+		this.mConnections.mWriteTimeout = millis;
+	}
+
+	/**
+	 * Sets the slowest rate at which a request body may arrive, and a
+	 * response be taken by the client. The rate is checked over every
+	 * grace period in which the connection waits for the client; a
+	 * connection that falls below it is closed. Must be called before the
+	 * server is started.
+	 * @param bytesPerSecond slowest rate allowed; 0 for no limit
+	 * @param graceMillis time over which the rate is measured
+	 */
+	public void setMinDataRate(long bytesPerSecond, long graceMillis) {
+		this.mConnections.mMinDataRate = bytesPerSecond;
+		this.mConnections.mRateGrace = graceMillis;
+	}
+
+	/**
+	 * Sets the largest request head, request line and headers together,
+	 * that is accepted; a bigger one is answered with "431 Request Header
+	 * Fields Too Large", or "414 URI Too Long" if the request line alone
+	 * does not fit, and the connection is closed. Must be called before
+	 * the server is started.
+	 */
+	public void setMaxHeaderSize(int bytes) {
+		this.mConnections.mMaxHeadSize = bytes;
+	}
+
+	/**
+	 * Sets how many header lines a request may have; one with more is
+	 * answered with "431 Request Header Fields Too Large". Must be called
+	 * before the server is started.
+	 */
+	public void setMaxHeaderCount(int headers) {
+		this.mConnections.mMaxHeaders = headers;
 	}
 
+	/**
+	 * Sets how many requests are served on one connection, the last one
+	 * answered with "Connection: close"; 0 for no limit. Must be called
+	 * before the server is started.
+	 */
+	public void setMaxRequestsPerConnection(int requests) {
+		this.mConnections.mMaxRequests = requests;
+	}
+
+	/**
+	 * Sets how many connections may be open at the same time, in both
+	 * engines; 0 for no limit. A connection over the limit is answered
+	 * with "503 Service Unavailable" and closed. Must be called before
+	 * the server is started.
+	 */
+	public void setMaxConnections(int connections) {
+		this.mConnections.mMaxConnections = connections;
+	}
+
+	/**
+	 * @return number of connections that are open
+	 */
+	public int getConnectionCount() {
+		return mConnections.getCount();
+	}
+
+	/**
+	 * Sets the Metrics that the server records into, for example one
+	 * that a MetricsLibrary serves, or one shared by several servers.
+	 * Must be called before the server is started.
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.mMetrics = metrics;
+	}
+
+	/**
+	 * @return what the server has recorded about its connections and
+	 *         requests
+	 */
+	public Metrics getMetrics() {
+		return mMetrics;
+	}
+
+	/**
+	 * Creates an executor that starts a new virtual thread for every
+	 * session, so that idle keep-alive connections do not each hold a
+	 * platform thread.
+	 * @throws UnsupportedOperationException if the JVM does not have
+	 *         virtual threads (Java 21 or later is needed)
+	 */
+	public static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)factory.invoke(null);
+		} catch (Exception ex) {
+			throw new UnsupportedOperationException(
+					"Virtual threads are not available in this JVM", ex);
+		}
+	}
+
+	/**
+	 * Stops accepting connections, and closes the open ones, also those
+	 * that are in the middle of a request.
+	 */
 	public void stopServer() {
 		running = false;
 		try {
@@ -35,14 +232,33 @@ public class Server extends Thread {
 		} catch (IOException e) {
 			// do nothing
 		}
+		if (mNioEngine != null) {
+			mNioEngine.wakeup();
+		}
+		mConnections.shutdown();
 	}
 
 	@Override
 	public void run() {
+		mConnections.start();
+		if (mNioEngine != null) {
+			mNioEngine.run();
+			return;
+		}
 		while (running) {
 			try {
 				Socket s = mListenerSocket.accept();
-				new Session(mLibrary, s).start();
+				// responses are buffered whole; a small last write must not
+				// wait for the client to acknowledge the previous one
+				s.setTcpNoDelay(true);
+				mMetrics.connectionOpened();
+				ConnectionManager.Tracker tracker = mConnections.open();
+				Session session = new Session(mLibrary, s, mMaxBodySize, mMetrics, tracker);
+				if (tracker == null) {
+					session.reject(OVERLOAD_RETRY_AFTER);
+					continue;
+				}
+				startSession(session);
 			} catch (IOException ex) {
 				if (running) {
 					ex.printStackTrace();
@@ -52,4 +268,17 @@ public class Server extends Thread {
 		}
 	}
 
+	void startSession(Session session) {
+		if (mExecutor == null) {
+			new Thread(session).start();
+			return;
+		}
+		try {
+			mExecutor.execute(session);
+		} catch (RejectedExecutionException ex) {
+			// overloaded: answer quickly rather than queue without limit
+			session.reject(OVERLOAD_RETRY_AFTER);
+		}
+	}
+
 }
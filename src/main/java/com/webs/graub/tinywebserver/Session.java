@@ -1,187 +1,264 @@
 package com.webs.graub.tinywebserver;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Locale;
-import java.util.TimeZone;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
 
-class Session extends Thread {
-
-	// constants and enums
-	static final String errorTemplate = "<html><head><title>Error</title></head>"
-			+ "<body><h1>resultLine</h1></body></html>";
+/**
+ * Blocking connection handler, reading requests from the socket until
+ * the connection is to be closed. Each session occupies its thread for
+ * the whole lifetime of the connection; the thread is either a new
+ * platform thread or one given by the Executor set to the Server. <p>
+ *
+ * A session may also take over a connection from the NioEngine, when a
+ * request with a body arrives, or a response body too big to buffer: the
+ * request head has then been parsed already, and some of what follows
+ * may already have been read. <p>
+ *
+ * The buffers of the connection are leased from the BufferPool, and given
+ * back when the session ends. <p>
+ *
+ * The session tells its ConnectionManager.Tracker whether it waits for a
+ * request, reads one, or serves one; when a timeout expires, the tracker
+ * closes the socket, and the blocked read or write fails. If it was the
+ * request head that did not arrive in time, only the input is shut down,
+ * and the session answers "408 Request Timeout" before it closes.
+ */
+class Session implements Runnable, ConnectionManager.Managed {
 
 	// members
 	Library mLibrary;
 	Socket mSocket;
+	long mMaxBodySize;
+	Metrics mMetrics;
+	ConnectionManager.Tracker mTracker;
+	HttpRequest mFirstRequest;
+	RequestHandler.Body mFirstBody;
+	ByteBuffer mReceived;
 
-	Session(Library library, Socket socket) {
+	/**
+	 * @param tracker timeouts and limits of the connection; null only for
+	 *        a session that is rejected
+	 */
+	Session(Library library, Socket socket, long maxBodySize, Metrics metrics,
+			ConnectionManager.Tracker tracker) {
 		this.mLibrary = library;
 		this.mSocket = socket;
+		this.mMaxBodySize = maxBodySize;
+		this.mMetrics = metrics;
+		this.mTracker = tracker;
+		if (tracker != null) tracker.attach(this);
+	}
+
+	/**
+	 * Continues a connection whose first request has been parsed
+	 * elsewhere.
+	 * @param body rest of the response to the request, whose head has been
+	 *        sent already; null if the request is still to be answered
+	 * @param received bytes read after the request head, in read mode; its
+	 *        array is leased from the BufferPool, and the session releases it
+	 */
+	void resume(HttpRequest request, RequestHandler.Body body, ByteBuffer received) {
+		this.mFirstRequest = request;
+		this.mFirstBody = body;
+		this.mReceived = received;
 	}
 
 	public void run() {
+		ConnectionInputStream in = null;
+		ConnectionOutputStream out = null;
+		RequestParser parser = null;
 		try {
-			BufferedInputStream in = new BufferedInputStream(mSocket
-					.getInputStream());
-			HttpRequest request = null;
+			// the server may have stopped while the session was waiting
+			if (mTracker.isExpired()) return;
+			in = new ConnectionInputStream(mSocket.getInputStream());
+			if (mReceived != null) {
+				in.prefill(mReceived);
+				BufferPool.release(mReceived.array());
+				mReceived = null;
+			}
+			out = new ConnectionOutputStream(mSocket.getOutputStream(),
+					mSocket.getChannel());
+			// responses go out when the next request is not yet there
+			in.flushBeforeReading(out);
+			in.setMetrics(mMetrics);
+			in.setTracker(mTracker);
+			out.setMetrics(mMetrics);
+			out.setTracker(mTracker);
+			parser = mTracker.newParser();
+			RequestHandler handler = new RequestHandler(mLibrary, out,
+					mSocket.getChannel());
+			handler.setMetrics(mMetrics);
+			handler.setTracker(mTracker);
+			HttpRequest request = mFirstRequest;
+			mFirstRequest = null;
 			do {
-				request = new HttpRequest();
-				request.readRequestLine(in);
-				request.readHeaders(in);
-				if (request.getStatus() != null) {
-					errorResponse(request, request.getStatus());
-				} else if (request.getCommand().equals(Http.GET)
-						|| request.getCommand().equals(Http.HEAD)) {
-					doGet(request);
-				} else if (request.getCommand().equals(Http.POST)) {
-					doPost(request);
-				} else if (request.getCommand().equals(Http.PUT)
-						|| request.getCommand().equals(Http.DELETE)
-						|| request.getCommand().equals(Http.OPTIONS)
-						|| request.getCommand().equals(Http.TRACE)) {
-					errorResponse(request, new HttpStatus(HttpStatus.NOT_IMPLEMENTED));
+				if (request == null) {
+					if (in.buffered() == 0) {
+						// the responses so far go out before the wait
+						out.flush();
+						mTracker.idle();
+						// client may close a keep-alive connection between requests
+						if (in.fill() < 0) break;
+					}
+					mTracker.head();
+					if (!parser.parse(in)) break;
+					request = new HttpRequest();
+					if (mTracker.isHeadTimedOut()) {
+						// what has arrived of the head is not served
+						request.setStatus(new HttpStatus(HttpStatus.REQUEST_TIMEOUT));
+						request.setCloseConnection();
+					} else {
+						parser.fill(request);
+					}
+					parser.reset();
+					// the request of a connection taken over was counted already
+					mTracker.request(request);
+				}
+				openBody(in, request);
+				mTracker.body(request.getBody());
+				if (mFirstBody != null) {
+					mFirstBody.write(handler);
+					mFirstBody = null;
 				} else {
-					errorResponse(request, new HttpStatus(HttpStatus.BAD_REQUEST));
+					handler.handle(request);
 				}
-			} while (!request.shouldCloseConnection());
+				skipBody(request);
+				if (request.shouldCloseConnection()) break;
+				request = null;
+			} while (true);
 
-			close();
+			out.flush();
 
+		} catch (EOFException ex) {
+			// the client went away in the middle of a request
+			flushQuietly(out);
 		} catch (Exception ex) {
-			// should not be here.
-			ex.printStackTrace();
+			// a timeout closes the socket under a blocked read or write
+			if (!mTracker.isExpired()) {
+				// should not be here.
+				ex.printStackTrace();
+				// what has been answered so far still goes out
+				flushQuietly(out);
+			}
+		} finally {
 			close();
+			if (in != null) in.release();
+			if (out != null) out.release();
+			if (parser != null) parser.release();
+			// the thread may end with the session, and its cache with it
+			BufferPool.releaseThreadCache();
 		}
 	}
 
-	private void doGet(HttpRequest request) throws IOException {
-
-		// content = object that will provide the message body
-		OutContent content = findContentOrSendError(request, OutContent.class);
-		if (content==null) return;
-		// TODO: handle requests with If-Modified-Since: or If-Unmodified-Since
-
-		// create headers
-		// TODO: configurable headers?
-		HashMap<String, String> headers = new HashMap<String, String>();
-		setResponseHeaders(headers);
-		headers.put(Http.CONTENT_TYPE, content.getMimetype());
-		int size = content.getDataSize();
-		if (size <= 0 && request.getVersionMode()==Http.Version.HTTP1_1) {
-			headers.put(Http.TRANSFER_ENCODING, Http.CHUNKED);
-		} else if (size <= 0) {
-			// HTTP 1.0 does not support chunked encoding!!!
-			errorResponse(request, new HttpStatus(HttpStatus.INTERNAL_SERVER_ERROR));
-			return;
-		} else {
-			headers.put(Http.CONTENT_LENGTH, Integer.toString(size));
+	private void openBody(ConnectionInputStream in, HttpRequest request) {
+		if (request.getStatus() != null) return;
+		RequestHeaders headers = request.getHeaders();
+		if (headers.contains(RequestHeaders.TRANSFER_ENCODING)
+				&& headers.contains(RequestHeaders.CONTENT_LENGTH)) {
+			// ambiguous framing: do not trust what follows this request
+			request.setCloseConnection();
 		}
-
-		// write headers to output stream
-		BufferedOutputStream out = new BufferedOutputStream(mSocket
-				.getOutputStream());
-		HttpStatus ok = new HttpStatus(HttpStatus.OK);
-		Util.writeLine(out, request.getVersionString() + " " + ok.toString());
-		Util.writeHeaders(out, headers);
-		out.flush();
-
-		// if this was a HEAD request, exit at this point
-		if (request.getCommand().equals(Http.HEAD)) {
-			return;
-		}
-
-		// write content
-		if (size > 0) {
-			LimitedOutputStream limiter = new LimitedOutputStream(out, size);
-			content.out(limiter);
-			limiter.complete();
-			limiter.flush();
-		} else {
-			ChunkedEncodingOutputStream chunker = new ChunkedEncodingOutputStream(out);
-			content.out(chunker);
-			chunker.complete();
-			chunker.flush();
+		try {
+			request.setBody(BodyInputStream.open(in, headers, mMaxBodySize));
+		} catch (HttpStatus status) {
+			// the body can not be skipped, so the connection ends here
+			request.setStatus(status);
+			request.setCloseConnection();
 		}
-
-		out.flush();
-
 	}
 
-	private void doPost(HttpRequest request) throws IOException {
-
-		// content = object that will provide the message body
-		InContent content = findContentOrSendError(request, InContent.class);
-		if (content==null) return;
-
-		// TODO: 100 continue
-
-		errorResponse(request, new HttpStatus(HttpStatus.NOT_IMPLEMENTED));
+	// the next request starts where this body ends
+	private void skipBody(HttpRequest request) throws IOException {
+		BodyInputStream body = request.getBody();
+		if (body == null) return;
+		if (!request.shouldCloseConnection()) {
+			if (body.awaitsContinue()) {
+				// the client was not asked to send the body, and may not
+				request.setCloseConnection();
+			} else if (!body.skipRemaining()) {
+				// the response still goes out, but the rest of the body
+				// is not read, so the connection ends here
+				request.setCloseConnection();
+			}
+		}
+		// gives back its buffer
+		body.close();
 	}
 
-	private <T> T findContentOrSendError(HttpRequest request, Class<T> clz) throws IOException {
-		T content = null;
+	private static void flushQuietly(ConnectionOutputStream out) {
+		if (out == null) return;
 		try {
-			content = clz.cast(mLibrary.getContent(request.getUri()));
-		} catch (HttpStatus ex) {
-			errorResponse(request, ex);
-			return null;
-		} catch (ClassCastException ex) {
-			errorResponse(request, new HttpStatus(HttpStatus.METHOD_NOT_ALLOWED));
-			return null;
-		}
-		if (content == null) {
-			errorResponse(request, new HttpStatus(HttpStatus.NOT_FOUND));
-			return null;
+			out.flush();
+		} catch (IOException ex) {
+			// client is gone
 		}
-		return content;
 	}
 
-	private void errorResponse(HttpRequest request, HttpStatus status)
-			throws IOException {
-		// create headers
-		HashMap<String, String> headers = new HashMap<String, String>();
-		setResponseHeaders(headers);
-		if (request.shouldCloseConnection()) {
-			headers.put("Connection", "close");
+	/**
+	 * Answers "503 Service Unavailable" without reading the request, and
+	 * closes the connection. Used when there is no thread for the session.
+	 */
+	void reject(int retryAfterSeconds) {
+		try {
+			HttpRequest request = new HttpRequest();
+			HttpStatus status = new HttpStatus(HttpStatus.SERVICE_UNAVAILABLE);
+			request.setStatus(status);
+			Map<String, String> headers = Collections.singletonMap(
+					Http.RETRY_AFTER, Integer.toString(retryAfterSeconds));
+			new RequestHandler(mLibrary, mSocket.getOutputStream())
+					.errorResponse(request, status, headers);
+			if (mMetrics != null) mMetrics.responded(status.getStatusCode());
+			// discard what the client has sent so far, so that closing
+			// does not reset the connection before the answer is read
+			mSocket.shutdownOutput();
+			InputStream in = mSocket.getInputStream();
+			in.skip(in.available());
+		} catch (IOException ex) {
+			// client is gone already
 		}
-
-		// write to stream
-		BufferedOutputStream out = new BufferedOutputStream(mSocket
-				.getOutputStream());
-		String resp = Http.versionString(request.getVersionMode()) + " " + status.toString();
-		Util.writeLine(out, resp);
-		Util.writeHeaders(out, headers);
-
-		// write the error content to stream
-		String errorContent = errorTemplate.replace("resultLine", status
-				.toString());
-		Util.writeLine(out, errorContent);
-
-		Util.writeLine(out, "");
-		out.flush();
+		close();
 	}
 
-	private void setResponseHeaders(HashMap<String, String> headers) {
-		headers.put("Server", "TinyWebServer (graub.webs.com)");
-		headers.put("Date", getServerTime());
+	/**
+	 * Ends the session from another thread: the socket is closed, and the
+	 * session's thread finds out on its next read or write. A session
+	 * waiting for the rest of a request head sees its input end instead,
+	 * so that it can still answer.
+	 */
+	@Override
+	public void expire() {
+		if (mTracker.isHeadTimedOut() && !mSocket.isInputShutdown()) {
+			try {
+				mSocket.shutdownInput();
+				return;
+			} catch (IOException ex) {
+				// closed below
+			}
+		}
+		closeSocket();
 	}
 
-	private String getServerTime() {
-		Calendar calendar = Calendar.getInstance();
-		SimpleDateFormat dateFormat = new SimpleDateFormat(
-				"EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
-		TimeZone tz = TimeZone.getTimeZone("GMT");
-		dateFormat.setTimeZone(tz);
-		return dateFormat.format(calendar.getTime());
+	/**
+	 * Closes the connection, and gives up its place among the connections
+	 * of the server; also when the session ends before it started.
+	 */
+	void close() {
+		if (mReceived != null) {
+			// the session ended before it started
+			BufferPool.release(mReceived.array());
+			mReceived = null;
+		}
+		closeSocket();
+		if (mTracker != null) mTracker.close();
 	}
 
-	private void close() {
+	private synchronized void closeSocket() {
+		if (mMetrics != null && !mSocket.isClosed()) mMetrics.connectionClosed();
 		try {
 			mSocket.close();
 		} catch (IOException e) {
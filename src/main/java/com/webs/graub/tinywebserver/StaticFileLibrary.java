@@ -0,0 +1,394 @@
+package com.webs.graub.tinywebserver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Library that serves the files of a directory tree. A request for a
+ * directory is answered with its index.html. <p>
+ *
+ * Files that have been requested are kept in memory, so that they need not
+ * be opened and read again for every request: small files are read into
+ * direct ByteBuffers and bigger ones are memory-mapped, and they are
+ * written from there to the socket without a copy. The cache has a
+ * byte budget, and the least recently used files are dropped when it is
+ * exceeded. Files too big for the cache are sent as FileRegions. A
+ * WatchService follows the directory tree and drops files from the cache
+ * as soon as they change on disk. <p>
+ *
+ * Example:
+ * <pre>
+ * StaticFileLibrary library = new StaticFileLibrary(new File("www"), 64*1024*1024);
+ * new Server(library, 8080).start();
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class StaticFileLibrary implements Library {
+
+	// constants
+	public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+	static final long MAP_THRESHOLD = 256 * 1024;
+	static final int COPY_BUFFER_SIZE = 8192;
+	static final String INDEX_FILE = "index.html";
+	static final String DEFAULT_MIMETYPE = "application/octet-stream";
+	static final HashMap<String, String> MIMETYPES = new HashMap<String, String>();
+	static {
+		MIMETYPES.put("html", "text/html");
+		MIMETYPES.put("htm", "text/html");
+		MIMETYPES.put("txt", "text/plain");
+		MIMETYPES.put("css", "text/css");
+		MIMETYPES.put("js", "application/javascript");
+		MIMETYPES.put("json", "application/json");
+		MIMETYPES.put("xml", "application/xml");
+		MIMETYPES.put("svg", "image/svg+xml");
+		MIMETYPES.put("png", "image/png");
+		MIMETYPES.put("jpg", "image/jpeg");
+		MIMETYPES.put("jpeg", "image/jpeg");
+		MIMETYPES.put("gif", "image/gif");
+		MIMETYPES.put("ico", "image/x-icon");
+		MIMETYPES.put("webp", "image/webp");
+		MIMETYPES.put("woff", "font/woff");
+		MIMETYPES.put("woff2", "font/woff2");
+		MIMETYPES.put("pdf", "application/pdf");
+		MIMETYPES.put("zip", "application/zip");
+		MIMETYPES.put("gz", "application/gzip");
+		MIMETYPES.put("wasm", "application/wasm");
+		MIMETYPES.put("mp3", "audio/mpeg");
+		MIMETYPES.put("mp4", "video/mp4");
+		MIMETYPES.put("webm", "video/webm");
+	}
+
+	// members
+	Path mRoot;
+	long mCacheBudget;
+	long mMaxEntrySize;
+	long mCacheBytes = 0;
+	long mGeneration = 0;
+	LinkedHashMap<Path, CachedFile> mCache =
+			new LinkedHashMap<Path, CachedFile>(16, 0.75f, true);
+	WatchService mWatcher;
+	HashMap<WatchKey, Path> mWatchedDirs = new HashMap<WatchKey, Path>();
+	Thread mWatcherThread;
+
+	public StaticFileLibrary(File root) throws IOException {
+		this(root, DEFAULT_CACHE_BYTES);
+	}
+
+	/**
+	 * @param root directory to serve
+	 * @param cacheBytes how many bytes of file data may be kept in memory
+	 */
+	public StaticFileLibrary(File root, long cacheBytes) throws IOException {
+		if (!root.isDirectory())
+			throw new IOException("Not a directory: " + root);
+		this.mRoot = root.getCanonicalFile().toPath();
+		this.mCacheBudget = cacheBytes;
+		// a single file may take at most a quarter of the cache, and no more
+		// than one buffer holds
+		this.mMaxEntrySize = Math.min(cacheBytes / 4, Integer.MAX_VALUE);
+		startWatching();
+	}
+
+	@Override
+	public Content getContent(URI uri) throws HttpStatus {
+		String path = uri.getPath();
+		if (path == null) return null;
+		Path file = mRoot.resolve(path.startsWith("/") ? path.substring(1) : path).normalize();
+		if (!file.startsWith(mRoot)) {
+			// path tries to escape the root directory
+			throw new HttpStatus(HttpStatus.FORBIDDEN);
+		}
+
+		CachedFile cached = lookup(file);
+		if (cached != null) return cached;
+
+		Path target = file;
+		if (Files.isDirectory(target)) target = target.resolve(INDEX_FILE);
+		if (!Files.isRegularFile(target)) return null;
+		if (!Files.isReadable(target)) throw new HttpStatus(HttpStatus.FORBIDDEN);
+
+		long generation = generation();
+		File f = target.toFile();
+		long length = f.length();
+		if (length > mMaxEntrySize) {
+			return new FileRegion(f, mimetype(target));
+		}
+		try {
+			cached = load(f, length, mimetype(target));
+		} catch (IOException ex) {
+			throw new HttpStatus(HttpStatus.INTERNAL_SERVER_ERROR);
+		}
+		store(file, cached, generation);
+		return cached;
+	}
+
+	/**
+	 * Adds or replaces the mimetype for a file name extension.
+	 */
+	public static void setMimetype(String extension, String mimetype) {
+		synchronized (MIMETYPES) {
+			MIMETYPES.put(extension.toLowerCase(Locale.US), mimetype);
+		}
+	}
+
+	/**
+	 * @return number of bytes of file data currently kept in memory
+	 */
+	public synchronized long getCachedBytes() {
+		return mCacheBytes;
+	}
+
+	/**
+	 * Stops following the directory tree for changes, and empties the cache.
+	 */
+	public void close() {
+		try {
+			mWatcher.close();
+		} catch (IOException e) {
+			// do nothing
+		}
+		clear();
+	}
+
+	static String mimetype(Path file) {
+		String name = file.getFileName().toString();
+		int dot = name.lastIndexOf('.');
+		if (dot < 0) return DEFAULT_MIMETYPE;
+		String type;
+		synchronized (MIMETYPES) {
+			type = MIMETYPES.get(name.substring(dot+1).toLowerCase(Locale.US));
+		}
+		return type != null ? type : DEFAULT_MIMETYPE;
+	}
+
+	private CachedFile load(File file, long length, String mimetype) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			ByteBuffer data;
+			if (length >= MAP_THRESHOLD) {
+				data = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+			} else {
+				data = ByteBuffer.allocateDirect((int)length);
+				while (data.hasRemaining() && channel.read(data) >= 0) {
+					// keep reading
+				}
+				data.flip();
+			}
+			return new CachedFile(data.asReadOnlyBuffer(), mimetype, file.lastModified());
+		} finally {
+			channel.close();
+		}
+	}
+
+	private synchronized CachedFile lookup(Path file) {
+		return mCache.get(file);
+	}
+
+	private synchronized long generation() {
+		return mGeneration;
+	}
+
+	private synchronized void store(Path file, CachedFile cached, long generation) {
+		// something changed while the file was read, so it may be stale
+		if (generation != mGeneration) return;
+		CachedFile old = mCache.put(file, cached);
+		if (old != null) mCacheBytes -= old.mLength;
+		mCacheBytes += cached.mLength;
+		// drop least recently used files until the budget is met
+		Iterator<CachedFile> lru = mCache.values().iterator();
+		while (mCacheBytes > mCacheBudget && lru.hasNext()) {
+			CachedFile eldest = lru.next();
+			if (eldest == cached) continue;
+			mCacheBytes -= eldest.mLength;
+			lru.remove();
+		}
+	}
+
+	// drops the file, everything below it, and the directory it is index of
+	private synchronized void invalidate(Path changed) {
+		mGeneration++;
+		boolean index = changed.getFileName() != null
+				&& changed.getFileName().toString().equals(INDEX_FILE);
+		Iterator<Map.Entry<Path, CachedFile>> entries = mCache.entrySet().iterator();
+		while (entries.hasNext()) {
+			Map.Entry<Path, CachedFile> e = entries.next();
+			Path key = e.getKey();
+			if (key.startsWith(changed) || (index && key.equals(changed.getParent()))) {
+				mCacheBytes -= e.getValue().mLength;
+				entries.remove();
+			}
+		}
+	}
+
+	private synchronized void clear() {
+		mGeneration++;
+		mCache.clear();
+		mCacheBytes = 0;
+	}
+
+	private void startWatching() throws IOException {
+		mWatcher = FileSystems.getDefault().newWatchService();
+		watchTree(mRoot);
+		mWatcherThread = new Thread("StaticFileLibrary-watcher") {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WatchKey key = mWatcher.take();
+						handleEvents(key);
+					}
+				} catch (ClosedWatchServiceException ex) {
+					// library closed
+				} catch (InterruptedException ex) {
+					// end
+				}
+			}
+		};
+		mWatcherThread.setDaemon(true);
+		mWatcherThread.start();
+	}
+
+	private void handleEvents(WatchKey key) {
+		Path dir;
+		synchronized (mWatchedDirs) {
+			dir = mWatchedDirs.get(key);
+		}
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+				// events were lost; nothing in the cache can be trusted
+				clear();
+				continue;
+			}
+			Path changed = dir.resolve((Path)event.context());
+			invalidate(changed);
+			if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+					&& Files.isDirectory(changed)) {
+				try {
+					watchTree(changed);
+				} catch (IOException ex) {
+					ex.printStackTrace();
+				}
+			}
+		}
+		if (!key.reset()) {
+			synchronized (mWatchedDirs) {
+				mWatchedDirs.remove(key);
+			}
+		}
+	}
+
+	private void watchTree(Path start) throws IOException {
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+					throws IOException {
+				WatchKey key = dir.register(mWatcher,
+						StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+				synchronized (mWatchedDirs) {
+					mWatchedDirs.put(key, dir);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Cached file content. The data is shared by all requests; each one
+	 * reads it through its own duplicate of the buffer.
+	 */
+	static class CachedFile implements RandomAccessContent, ValidatedContent {
+		ByteBuffer mData;
+		String mMimetype;
+		long mLastModified;
+		long mLength;
+		String mETag;
+
+		CachedFile(ByteBuffer data, String mimetype, long lastModified) {
+			this.mData = data;
+			this.mMimetype = mimetype;
+			this.mLastModified = lastModified;
+			this.mLength = data.remaining();
+			this.mETag = FileRegion.etag(lastModified, 0, mLength);
+		}
+
+		@Override
+		public String getMimetype() {
+			return mMimetype;
+		}
+
+		@Override
+		public int getDataSize() {
+			return (int)mLength;
+		}
+
+		@Override
+		public long getContentLength() {
+			return mLength;
+		}
+
+		@Override
+		public String getETag() {
+			return mETag;
+		}
+
+		@Override
+		public long getLastModified() {
+			return mLastModified;
+		}
+
+		@Override
+		public void out(OutputStream stream) throws IOException {
+			out(stream, 0, mLength);
+		}
+
+		/**
+		 * @return buffer of its own for reading the given part of the data
+		 */
+		ByteBuffer slice(long offset, long length) {
+			ByteBuffer data = mData.duplicate();
+			data.position((int)offset);
+			data.limit((int)(offset + length));
+			return data;
+		}
+
+		@Override
+		public void out(OutputStream stream, long offset, long length) throws IOException {
+			ByteBuffer data = slice(offset, length);
+			byte[] chunk = BufferPool.lease(COPY_BUFFER_SIZE);
+			try {
+				while (data.hasRemaining()) {
+					int n = Math.min(COPY_BUFFER_SIZE, data.remaining());
+					data.get(chunk, 0, n);
+					stream.write(chunk, 0, n);
+				}
+			} finally {
+				BufferPool.release(chunk);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+package com.webs.graub.tinywebserver;
+
+/**
+ * Hashed timing wheel: timeouts are kept in a ring of buckets, one for
+ * every tick, and a thread advances one bucket per tick, expiring the
+ * timeouts found there. Scheduling and cancelling take constant time,
+ * however many timeouts there are, which suits thousands of connections
+ * that each reset their timeout on every request. A timeout further away
+ * than one turn of the wheel waits for its turn of the ring to come. <p>
+ *
+ * Timeouts fire up to one tick late, never early. The wheel is locked
+ * while Timeout.expired() runs, so it must be quick and must not block;
+ * it may schedule its timeout again.
+ *
+ * @author Hannes R.
+ */
+class TimingWheel {
+
+	// constants
+	static final long DEFAULT_TICK_MS = 100;
+	static final int DEFAULT_BUCKETS = 512;
+
+	/**
+	 * Something that happens unless it is cancelled or scheduled again in
+	 * time. A timeout is in at most one bucket, linked with its neighbours.
+	 */
+	abstract static class Timeout {
+
+		// members
+		Timeout mPrev;
+		Timeout mNext;
+		int mBucket = -1;
+		long mRounds;
+
+		/**
+		 * Called by the wheel's thread, with the wheel locked.
+		 */
+		abstract void expired();
+
+	}
+
+	// members
+	final long mTickMs;
+	final Timeout[] mBuckets;
+	int mCursor = 0;
+	volatile long mTicks = 0;
+	Thread mThread;
+	volatile boolean mRunning = false;
+
+	TimingWheel() {
+		this(DEFAULT_TICK_MS, DEFAULT_BUCKETS);
+	}
+
+	TimingWheel(long tickMs, int buckets) {
+		this.mTickMs = tickMs;
+		this.mBuckets = new Timeout[buckets];
+	}
+
+	/**
+	 * Starts the thread that advances the wheel.
+	 */
+	synchronized void start(String name) {
+		if (mRunning) return;
+		mRunning = true;
+		mThread = new Thread(name) {
+			@Override
+			public void run() {
+				// ticks are counted from the start, so that they do not drift
+				long next = System.nanoTime();
+				while (mRunning) {
+					next += mTickMs * 1000000;
+					long sleep = (next - System.nanoTime()) / 1000000;
+					try {
+						if (sleep > 0) Thread.sleep(sleep);
+					} catch (InterruptedException ex) {
+						break;
+					}
+					advance();
+				}
+			}
+		};
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	/**
+	 * Stops the thread. Timeouts that have not expired never will.
+	 */
+	void stop() {
+		Thread thread;
+		synchronized (this) {
+			mRunning = false;
+			thread = mThread;
+			mThread = null;
+		}
+		if (thread != null) thread.interrupt();
+	}
+
+	/**
+	 * Schedules a timeout to expire after the given time, replacing the
+	 * time it was scheduled for before.
+	 * @param millis 0 or less just cancels the timeout
+	 */
+	synchronized void schedule(Timeout timeout, long millis) {
+		unlink(timeout);
+		if (millis <= 0) return;
+		long ticks = Math.max(1, (millis + mTickMs - 1) / mTickMs);
+		int bucket = (int)((mCursor + ticks) % mBuckets.length);
+		timeout.mRounds = (ticks - 1) / mBuckets.length;
+		timeout.mBucket = bucket;
+		timeout.mPrev = null;
+		timeout.mNext = mBuckets[bucket];
+		if (timeout.mNext != null) timeout.mNext.mPrev = timeout;
+		mBuckets[bucket] = timeout;
+	}
+
+	synchronized void cancel(Timeout timeout) {
+		unlink(timeout);
+	}
+
+	/**
+	 * @return ticks since the wheel was created; a clock that is cheap to
+	 *         read
+	 */
+	long getTicks() {
+		return mTicks;
+	}
+
+	/**
+	 * Moves on by one tick and expires the timeouts whose time has come.
+	 */
+	synchronized void advance() {
+		mCursor = (mCursor + 1) % mBuckets.length;
+		mTicks++;
+		Timeout timeout = mBuckets[mCursor];
+		while (timeout != null) {
+			Timeout next = timeout.mNext;
+			if (timeout.mRounds > 0) {
+				timeout.mRounds--;
+			} else {
+				unlink(timeout);
+				timeout.expired();
+			}
+			timeout = next;
+		}
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.mBucket < 0) return;
+		if (timeout.mPrev != null) {
+			timeout.mPrev.mNext = timeout.mNext;
+		} else {
+			mBuckets[timeout.mBucket] = timeout.mNext;
+		}
+		if (timeout.mNext != null) timeout.mNext.mPrev = timeout.mPrev;
+		timeout.mPrev = null;
+		timeout.mNext = null;
+		timeout.mBucket = -1;
+	}
+
+}
@@ -15,6 +15,7 @@ import java.util.Map;
 public class Util {
 
 	private static final int LINEFBUF_SIZE = 512;
+	private static final int READ_BUFFER_SIZE = 8192;
 	public static boolean readHeaders(InputStream in, HashMap<String,String> headers) throws IOException {
 		// read incoming headers until empty line
 		// TODO: [ ] Header lines beginning with space or tab are actually part of the
@@ -35,15 +36,19 @@ public class Util {
 	}
 
 	public static String readLine(InputStream in) throws IOException {
-		byte[] linebuf = new byte[LINEFBUF_SIZE];
-		int i=0;
-		while(true) {
-			int b = in.read();
-			if (b == -1) break;
-			if (b == '\n') break;
-			if (i<LINEFBUF_SIZE) linebuf[i++] = (byte)b;
+		byte[] linebuf = BufferPool.lease(LINEFBUF_SIZE);
+		try {
+			int i=0;
+			while(true) {
+				int b = in.read();
+				if (b == -1) break;
+				if (b == '\n') break;
+				if (i<LINEFBUF_SIZE) linebuf[i++] = (byte)b;
+			}
+			return new String(linebuf,0,i);
+		} finally {
+			BufferPool.release(linebuf);
 		}
-		return new String(linebuf,0,i);
 	}
 
 	public static InputStream startReadingContent(InputStream in, HashMap<String,String> headers) {
@@ -53,7 +58,7 @@ public class Util {
 			return new ChunkedEncodingInputStream(in);
 		} else if (length != null) {
 			try {
-				return new LimitedInputStream(in, Integer.parseInt(headers.get(Http.CONTENT_LENGTH)));
+				return new LimitedInputStream(in, Long.parseLong(length.trim()));
 			} catch (NumberFormatException ex) {
 				// Content-length seems to be corrupted. Read all content until EOF.
 				return in; 
@@ -67,10 +72,15 @@ public class Util {
 	public static byte[] readContent(InputStream in, HashMap<String,String> headers) throws IOException {
 		InputStream inDecoded = startReadingContent(in, headers);
 		ByteArrayOutputStream bufBuilder = new ByteArrayOutputStream();
-		while(true) {
-			int b = inDecoded.read();
-			if (b<0) break;
-			bufBuilder.write(b);
+		byte[] buf = BufferPool.lease(READ_BUFFER_SIZE);
+		try {
+			while(true) {
+				int n = inDecoded.read(buf, 0, READ_BUFFER_SIZE);
+				if (n<0) break;
+				bufBuilder.write(buf, 0, n);
+			}
+		} finally {
+			BufferPool.release(buf);
 		}
 		return bufBuilder.toByteArray();
 	}
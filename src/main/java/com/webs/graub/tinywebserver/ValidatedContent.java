@@ -0,0 +1,24 @@
+package com.webs.graub.tinywebserver;
+
+/**
+ * OutContent that can tell whether a client's cached copy is still
+ * current. The server sends the validators as ETag and Last-Modified
+ * headers, and answers conditional requests (If-None-Match,
+ * If-Modified-Since, If-Match, If-Unmodified-Since, If-Range) with
+ * "304 Not Modified" or "412 Precondition Failed" without calling out().
+ */
+public interface ValidatedContent extends OutContent {
+
+	/**
+	 * entity tag including the double quotes, e.g. "\"3f-1a2b\"", or
+	 * with the W/ prefix for a weak tag; null if there is none
+	 */
+	String getETag();
+
+	/**
+	 * time of the last modification in milliseconds since the epoch,
+	 * or 0 if not known
+	 */
+	long getLastModified();
+
+}
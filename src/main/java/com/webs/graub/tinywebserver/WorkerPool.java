@@ -0,0 +1,236 @@
+package com.webs.graub.tinywebserver;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded pool of worker threads with a bounded queue, to be given to
+ * Server.setExecutor(). When every thread is busy and the queue is full,
+ * execute() throws RejectedExecutionException and the server answers
+ * "503 Service Unavailable" right away, instead of starting yet another
+ * thread. <p>
+ *
+ * The pool sizes itself between the minimum and maximum thread count by
+ * how long tasks wait in the queue: when the waiting time goes over the
+ * target, a thread is added, and threads that stay idle for the keep-alive
+ * time are removed again. <p>
+ *
+ * Example:
+ * <pre>
+ * Server server = new Server(library, 8080);
+ * server.setExecutor(new WorkerPool(8, 256, 1024));
+ * server.start();
+ * </pre>
+ *
+ * @author Hannes R.
+ */
+public class WorkerPool implements Executor {
+
+	// constants
+	public static final long DEFAULT_TARGET_WAIT_MS = 20;
+	public static final long DEFAULT_KEEP_ALIVE_MS = 30000;
+
+	// members
+	final int mMinThreads;
+	final int mMaxThreads;
+	final long mTargetWait;
+	final long mKeepAlive;
+	final BlockingQueue<Task> mQueue;
+	final ArrayList<Thread> mWorkers = new ArrayList<Thread>();
+	int mIdle = 0;
+	final AtomicLong mAverageWait = new AtomicLong();
+	volatile boolean mShutdown = false;
+	Thread mSupervisor;
+
+	public WorkerPool(int minThreads, int maxThreads, int queueSize) {
+		this(minThreads, maxThreads, queueSize,
+				DEFAULT_TARGET_WAIT_MS, DEFAULT_KEEP_ALIVE_MS);
+	}
+
+	/**
+	 * @param minThreads threads that are kept even when idle
+	 * @param maxThreads upper limit of threads
+	 * @param queueSize how many tasks may wait for a thread
+	 * @param targetWaitMs queue waiting time above which the pool grows
+	 * @param keepAliveMs idle time after which an extra thread is removed
+	 */
+	public WorkerPool(int minThreads, int maxThreads, int queueSize,
+			long targetWaitMs, long keepAliveMs) {
+		if (minThreads < 0 || maxThreads < 1 || maxThreads < minThreads || queueSize < 1)
+			throw new IllegalArgumentException("Bad worker pool size: min="
+					+ minThreads + " max=" + maxThreads + " queue=" + queueSize);
+		this.mMinThreads = minThreads;
+		this.mMaxThreads = maxThreads;
+		this.mTargetWait = TimeUnit.MILLISECONDS.toNanos(targetWaitMs);
+		this.mKeepAlive = keepAliveMs;
+		this.mQueue = new ArrayBlockingQueue<Task>(queueSize);
+		synchronized (this) {
+			for (int i=0; i<minThreads; ++i) startWorker(null);
+		}
+		mSupervisor = new Supervisor();
+		mSupervisor.start();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (mShutdown)
+			throw new RejectedExecutionException("Worker pool has been shut down");
+		Task task = new Task(command);
+		if (!mQueue.offer(task)) {
+			// queue is full; a new thread may still take the task directly
+			synchronized (this) {
+				if (mWorkers.size() >= mMaxThreads)
+					throw new RejectedExecutionException("Worker pool is saturated");
+				startWorker(task);
+			}
+			return;
+		}
+		adjust();
+	}
+
+	/**
+	 * Stops the pool. Tasks already queued will still be run, new tasks
+	 * are rejected.
+	 */
+	public void shutdown() {
+		mShutdown = true;
+		mSupervisor.interrupt();
+		synchronized (this) {
+			for (Thread worker : mWorkers) worker.interrupt();
+		}
+	}
+
+	public synchronized int getThreadCount() {
+		return mWorkers.size();
+	}
+
+	public int getQueueLength() {
+		return mQueue.size();
+	}
+
+	/**
+	 * @return recent average time a task waited in the queue
+	 */
+	public long getAverageWaitMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(mAverageWait.get());
+	}
+
+	// adds a thread if tasks have waited for longer than the target, or
+	// there is none to take them
+	private synchronized void adjust() {
+		if (mShutdown) return;
+		int threads = mWorkers.size();
+		if (threads < mMinThreads || threads == 0
+				|| (mIdle == 0 && threads < mMaxThreads && observedWait() > mTargetWait)) {
+			startWorker(null);
+		}
+	}
+
+	private long observedWait() {
+		Task oldest = mQueue.peek();
+		long age = (oldest == null ? 0 : System.nanoTime() - oldest.mQueued);
+		return Math.max(age, mAverageWait.get());
+	}
+
+	private void startWorker(Task first) {
+		Worker worker = new Worker(first);
+		mWorkers.add(worker);
+		worker.start();
+	}
+
+	private void record(Task task) {
+		long wait = System.nanoTime() - task.mQueued;
+		// workers finish tasks at the same time; no update may be lost
+		long average;
+		do {
+			average = mAverageWait.get();
+		} while (!mAverageWait.compareAndSet(average, average + (wait - average) / 8));
+	}
+
+	static class Task {
+		final Runnable mCommand;
+		final long mQueued;
+		Task(Runnable command) {
+			this.mCommand = command;
+			this.mQueued = System.nanoTime();
+		}
+	}
+
+	class Worker extends Thread {
+		Task mFirst;
+
+		Worker(Task first) {
+			super("WorkerPool-worker");
+			this.mFirst = first;
+		}
+
+		@Override
+		public void run() {
+			Task task = mFirst;
+			mFirst = null;
+			while (true) {
+				if (task == null) task = take();
+				if (task == null) break;
+				record(task);
+				try {
+					task.mCommand.run();
+				} catch (RuntimeException ex) {
+					// should not be here.
+					ex.printStackTrace();
+				}
+				task = null;
+			}
+		}
+
+		// waits for the next task, or returns null if this thread should end
+		private Task take() {
+			while (true) {
+				synchronized (WorkerPool.this) {
+					mIdle++;
+				}
+				Task task = null;
+				try {
+					task = mQueue.poll(mKeepAlive, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException ex) {
+					task = mQueue.poll();
+				}
+				synchronized (WorkerPool.this) {
+					mIdle--;
+					if (task != null) return task;
+					if (mShutdown || mWorkers.size() > mMinThreads) {
+						mWorkers.remove(this);
+						return null;
+					}
+				}
+			}
+		}
+	}
+
+	// grows the pool when all workers are busy and nothing else calls adjust()
+	class Supervisor extends Thread {
+
+		Supervisor() {
+			super("WorkerPool-supervisor");
+			setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			long interval = Math.max(1, TimeUnit.NANOSECONDS.toMillis(mTargetWait));
+			while (!mShutdown) {
+				try {
+					Thread.sleep(interval);
+				} catch (InterruptedException ex) {
+					break;
+				}
+				if (!mQueue.isEmpty()) adjust();
+			}
+		}
+	}
+
+}
@@ -214,5 +214,73 @@ public class BadRequestsTest {
 		assertTrue(resp.contains("501 Not Implemented"));
 	}
 
+	/**
+	 * The body of an unanswered request is skipped, so the connection
+	 * goes on with the next request
+	 * @throws IOException
+	 */
+	@Test
+	public void testUnreadBodyIsSkipped() throws IOException {
+		String req =
+			"POST /normal HTTP/1.1\nHost: 127.0.0.1\nContent-Length: 14\n\nGET / HTTP/1.1"
+			+ "POST /normal HTTP/1.1\nHost: 127.0.0.1\nTransfer-Encoding: chunked\n\n"
+			+ "4\r\nGET \r\n3;ext=1\r\n/ H\r\n0\r\nX-Trailer: 1\r\n\r\n"
+			+ "GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		for (int i=0; i<2; ++i) {
+			String resp = Util.readLine(in);
+			HashMap<String,String> headers = new HashMap<String,String>();
+			Util.readHeaders(in, headers);
+			Util.readContent(in, headers);
+			assertTrue(resp.contains("405 Method Not Allowed"));
+		}
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertTrue(new String(Util.readContent(in, headers)).contains(MyLibrary.TEXT_DATA));
+	}
+
+	/**
+	 * Request with a body bigger than the server accepts
+	 * @throws IOException
+	 */
+	@Test
+	public void testBodyTooLarge() throws IOException {
+		String req =
+			"POST /normal HTTP/1.1\nHost: 127.0.0.1\nContent-Length: "
+			+ (Server.DEFAULT_MAX_BODY_SIZE+1) + "\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("413 Payload Too Large"));
+		assertEquals("close", headers.get("Connection"));
+	}
+
+	/**
+	 * Error pages of standard statuses are cached, those with messages of
+	 * their own are not
+	 */
+	@Test
+	public void testErrorPageCache() {
+		byte[] page = RequestHandler.errorPage(new HttpStatus(HttpStatus.NOT_FOUND));
+		assertSame(page, RequestHandler.errorPage(new HttpStatus(HttpStatus.NOT_FOUND)));
+		int size = RequestHandler.sErrorPages.size();
+		for (int i = 0; i < 10; ++i) {
+			byte[] custom = RequestHandler.errorPage(new HttpStatus(HttpStatus.NOT_FOUND, "No user " + i));
+			assertTrue(new String(custom).contains("404 No user " + i));
+		}
+		RequestHandler.errorPage(new HttpStatus("404.7"));
+		assertEquals(size, RequestHandler.sErrorPages.size());
+	}
 
 }
@@ -0,0 +1,88 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.*;
+
+public class BodyInputStreamTest {
+
+	/**
+	 * Chunked body is decoded correctly even if the underlying stream
+	 * gives one byte at a time, and the trailer is read
+	 */
+	@Test
+	public void testChunkedShortReads() throws IOException {
+		String encoded = "5\r\nhello\r\n1;name=value\r\n \r\nA\r\n0123456789\r\n0\r\nX-Sum: 42\r\n\r\nNEXT";
+		InputStream in = trickle(encoded);
+		RequestHeaders headers = new RequestHeaders();
+		headers.put(Http.TRANSFER_ENCODING, Http.CHUNKED);
+		BodyInputStream body = BodyInputStream.open(in, headers, 1000);
+		byte[] data = new byte[100];
+		int count = 0;
+		for (int n = body.read(data, count, 100-count); n >= 0; n = body.read(data, count, 100-count)) {
+			count += n;
+		}
+		assertEquals("hello 0123456789", new String(data, 0, count));
+		assertEquals("42", body.getTrailers().get("X-Sum"));
+		assertEquals('N', in.read()); // <-- nothing after the body was consumed
+	}
+
+	/**
+	 * Content-Length body is read into a ByteBuffer, and no further
+	 */
+	@Test
+	public void testByteBufferRead() throws IOException {
+		InputStream in = new ByteArrayInputStream("0123456789NEXT".getBytes());
+		RequestHeaders headers = new RequestHeaders();
+		headers.put(Http.CONTENT_LENGTH, "10");
+		BodyInputStream body = BodyInputStream.open(in, headers, 1000);
+		ByteBuffer direct = ByteBuffer.allocateDirect(4);
+		assertEquals(4, body.read(direct));
+		ByteBuffer heap = ByteBuffer.allocate(100);
+		while (body.read(heap) >= 0) {
+			// read all
+		}
+		assertEquals(6, heap.position());
+		assertEquals(10, body.getCount());
+		assertEquals('N', in.read());
+	}
+
+	/**
+	 * Bodies over the limit are refused, whether the length is known in
+	 * advance or not
+	 */
+	@Test
+	public void testMaxSize() throws IOException {
+		RequestHeaders headers = new RequestHeaders();
+		headers.put(Http.CONTENT_LENGTH, "11");
+		try {
+			BodyInputStream.open(new ByteArrayInputStream(new byte[11]), headers, 10);
+			fail("no exception");
+		} catch (HttpStatus status) {
+			assertEquals(413, status.getStatusCode());
+		}
+		headers.clear();
+		headers.put(Http.TRANSFER_ENCODING, Http.CHUNKED);
+		BodyInputStream body = BodyInputStream.open(trickle("8\r\n01234567\r\n8\r\n01234567\r\n0\r\n\r\n"), headers, 10);
+		assertFalse(body.skipRemaining()); // <-- not read to its end
+		assertTrue(body.getCount() > 10);
+		assertTrue(body.getCount() < 16);
+	}
+
+	// stream that gives at most one byte per read
+	private static InputStream trickle(String data) {
+		return new FilterInputStream(new ByteArrayInputStream(data.getBytes())) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, 1));
+			}
+		};
+	}
+
+}
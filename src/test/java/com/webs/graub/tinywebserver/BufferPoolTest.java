@@ -0,0 +1,94 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.*;
+
+public class BufferPoolTest {
+
+	@After
+	public void tearDown() {
+		BufferPool.setDebug(false);
+	}
+
+	/**
+	 * Leases are rounded up to a size class, and released buffers are
+	 * leased again
+	 */
+	@Test
+	public void testReuse() {
+		byte[] buf = BufferPool.lease(5000);
+		assertEquals(8192, buf.length);
+		BufferPool.release(buf);
+		assertSame(buf, BufferPool.lease(8000));
+		BufferPool.release(buf);
+
+		byte[] big = BufferPool.lease(100000);
+		assertEquals(100000, big.length);
+		BufferPool.release(big);
+		assertNotSame(big, BufferPool.lease(100000));
+
+		ByteBuffer direct = BufferPool.leaseDirect(3000);
+		assertTrue(direct.isDirect());
+		assertEquals(4096, direct.capacity());
+		direct.put((byte)1);
+		BufferPool.release(direct);
+		ByteBuffer again = BufferPool.leaseDirect(4096);
+		assertSame(direct, again);
+		assertEquals(0, again.position());
+		BufferPool.release(again);
+	}
+
+	/**
+	 * In debug mode, unreleased buffers are reported, and released ones
+	 * can not be released again
+	 */
+	@Test
+	public void testLeakDetection() {
+		BufferPool.setDebug(true);
+		byte[] a = BufferPool.lease(1000);
+		byte[] b = BufferPool.lease(1000);
+		BufferPool.release(a);
+		assertEquals(1, BufferPool.leaks().size());
+		assertEquals(BufferPool.POISON, a[0]);
+		try {
+			BufferPool.release(a);
+			fail("no exception");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		BufferPool.release(b);
+		assertTrue(BufferPool.leaks().isEmpty());
+	}
+
+	/**
+	 * Streams give their buffers back when they are done
+	 */
+	@Test
+	public void testStreamsRelease() throws Exception {
+		BufferPool.setDebug(true);
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		ChunkedEncodingOutputStream chunker = new ChunkedEncodingOutputStream(sink);
+		for (int i = 0; i < 10000; ++i) {
+			chunker.write('x'); // <-- the chunk buffer grows
+		}
+		chunker.complete();
+
+		ConnectionInputStream in = new ConnectionInputStream(
+				new ByteArrayInputStream(sink.toByteArray()));
+		RequestHeaders headers = new RequestHeaders();
+		headers.put(Http.TRANSFER_ENCODING, Http.CHUNKED);
+		BodyInputStream body = BodyInputStream.open(in, headers, 100000);
+		assertEquals('x', body.read());
+		body.close();
+		body.skipRemaining();
+		assertEquals(10000, body.getCount());
+		in.release();
+		assertTrue(BufferPool.leaks().isEmpty());
+	}
+
+}
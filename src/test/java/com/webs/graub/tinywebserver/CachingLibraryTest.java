@@ -0,0 +1,182 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import org.junit.*;
+
+public class CachingLibraryTest {
+
+	/**
+	 * Library that counts how often it is asked, and gives a new version
+	 * of the content every time
+	 */
+	static class CountingLibrary implements Library {
+		HashMap<String, Integer> mCalls = new HashMap<String, Integer>();
+		@Override
+		public Content getContent(URI uri) throws HttpStatus {
+			String path = uri.getPath();
+			Integer calls = mCalls.get(path);
+			calls = calls == null ? 1 : calls + 1;
+			mCalls.put(path, calls);
+			if (path.equals("/missing")) return null;
+			if (path.equals("/forbidden")) throw new HttpStatus(HttpStatus.FORBIDDEN);
+			if (path.equals("/flaky") && calls > 1) throw new HttpStatus(HttpStatus.SERVICE_UNAVAILABLE);
+			final byte[] data = (path.equals("/constant") ? path : path + " v" + calls).getBytes();
+			return new OutContent() {
+				@Override
+				public int getDataSize() { return 0; }
+				@Override
+				public String getMimetype() { return "text/plain"; }
+				@Override
+				public void out(OutputStream stream) throws IOException { stream.write(data); }
+			};
+		}
+		int calls(String path) {
+			Integer calls = mCalls.get(path);
+			return calls == null ? 0 : calls;
+		}
+	}
+
+	static String get(Library library, String path) throws IOException {
+		OutContent content = (OutContent)library.getContent(Http.GET, URI.create(path));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		content.out(out);
+		return out.toString();
+	}
+
+	/**
+	 * Content and missing content are asked for once, until they expire;
+	 * POST makes the cache forget
+	 */
+	@Test
+	public void testCachingAndExpiry() throws Exception {
+		CountingLibrary counting = new CountingLibrary();
+		CachingLibrary cache = new CachingLibrary(counting);
+		cache.setTtl(200);
+		cache.setNegativeTtl(200);
+		assertEquals("/page v1", get(cache, "/page"));
+		assertEquals("/page v1", get(cache, "/page"));
+		assertEquals(1, counting.calls("/page"));
+		assertTrue(cache.getContent(Http.HEAD, URI.create("/page")) instanceof ValidatedContent);
+		for (int i=0; i<3; ++i) {
+			assertNull(cache.getContent(Http.GET, URI.create("/missing")));
+			try {
+				cache.getContent(Http.GET, URI.create("/forbidden"));
+				fail("no exception");
+			} catch (HttpStatus status) {
+				assertEquals(403, status.getStatusCode());
+			}
+		}
+		assertEquals(1, counting.calls("/missing"));
+		assertEquals(1, counting.calls("/forbidden"));
+
+		Thread.sleep(300);
+		assertEquals("/page v2", get(cache, "/page"));
+		assertNull(cache.getContent(Http.GET, URI.create("/missing")));
+		assertEquals(2, counting.calls("/missing"));
+
+		cache.getContent(Http.POST, URI.create("/page"));
+		assertEquals("/page v4", get(cache, "/page"));
+	}
+
+	/**
+	 * Expired content is served once more while it is refreshed
+	 */
+	@Test
+	public void testStaleWhileRevalidate() throws Exception {
+		CountingLibrary counting = new CountingLibrary();
+		CachingLibrary cache = new CachingLibrary(counting);
+		cache.setTtl(100);
+		cache.setStaleWhileRevalidate(60000);
+		cache.setOffHeap(true);
+		final Runnable[] pending = {null};
+		cache.setRefreshExecutor(new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				pending[0] = task;
+			}
+		});
+		assertEquals("/page v1", get(cache, "/page"));
+		Thread.sleep(200);
+		assertEquals("/page v1", get(cache, "/page")); // <-- stale, refresh started
+		assertEquals("/page v1", get(cache, "/page")); // <-- only one refresh
+		assertEquals(1, counting.calls("/page"));
+		pending[0].run();
+		assertEquals("/page v2", get(cache, "/page"));
+		assertEquals(2, counting.calls("/page"));
+	}
+
+	/**
+	 * A refresh that fails leaves the stale content in the cache
+	 */
+	@Test
+	public void testFailedRefresh() throws Exception {
+		CountingLibrary counting = new CountingLibrary();
+		CachingLibrary cache = new CachingLibrary(counting);
+		cache.setTtl(100);
+		cache.setStaleWhileRevalidate(60000);
+		final Runnable[] pending = {null};
+		cache.setRefreshExecutor(new Executor() {
+			@Override
+			public void execute(Runnable task) {
+				pending[0] = task;
+			}
+		});
+		assertEquals("/flaky v1", get(cache, "/flaky"));
+		Thread.sleep(200);
+		assertEquals("/flaky v1", get(cache, "/flaky")); // <-- stale, refresh started
+		pending[0].run();
+		assertEquals(2, counting.calls("/flaky"));
+		pending[0] = null;
+		assertEquals("/flaky v1", get(cache, "/flaky"));
+		assertNotNull(pending[0]); // <-- tried again
+	}
+
+	/**
+	 * Content that has not changed keeps its validators when it is loaded
+	 * again, also when captured off the heap
+	 */
+	@Test
+	public void testUnchangedContent() throws Exception {
+		CountingLibrary counting = new CountingLibrary();
+		CachingLibrary cache = new CachingLibrary(counting);
+		cache.setTtl(100);
+		cache.setOffHeap(true);
+		ValidatedContent first = (ValidatedContent)cache.getContent(Http.GET, URI.create("/constant"));
+		String page = get(cache, "/page");
+		Thread.sleep(200);
+		ValidatedContent second = (ValidatedContent)cache.getContent(Http.GET, URI.create("/constant"));
+		assertEquals(2, counting.calls("/constant"));
+		assertEquals(first.getETag(), second.getETag());
+		assertEquals(first.getLastModified(), second.getLastModified());
+		assertEquals("/constant", get(cache, "/constant"));
+		assertFalse(page.equals(get(cache, "/page")));
+	}
+
+	/**
+	 * Pages requested more than once survive a scan of one-off pages
+	 */
+	@Test
+	public void testScanResistance() throws Exception {
+		CountingLibrary counting = new CountingLibrary();
+		CachingLibrary cache = new CachingLibrary(counting, 4000);
+		get(cache, "/popular");
+		get(cache, "/popular");
+		for (int i=0; i<100; ++i) {
+			get(cache, "/once/" + i);
+		}
+		assertTrue(cache.getCachedBytes() <= 4000);
+		get(cache, "/popular");
+		assertEquals(1, counting.calls("/popular"));
+		get(cache, "/once/0");
+		assertEquals(2, counting.calls("/once/0"));
+	}
+
+}
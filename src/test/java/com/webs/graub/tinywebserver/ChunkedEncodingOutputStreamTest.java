@@ -0,0 +1,83 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Random;
+
+import org.junit.*;
+
+public class ChunkedEncodingOutputStreamTest {
+
+	/**
+	 * Mixed small and big writes come out as the same data, with growing
+	 * chunks and no flushes of the underlying stream
+	 */
+	@Test
+	public void testWritesAndChunkSizes() throws IOException {
+		byte[] data = new byte[60000];
+		new Random().nextBytes(data);
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		final int[] flushes = {0};
+		FilterOutputStream counter = new FilterOutputStream(sink) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				out.write(b, off, len);
+			}
+			@Override
+			public void flush() throws IOException {
+				flushes[0]++;
+			}
+		};
+		ChunkedEncodingOutputStream chunker = new ChunkedEncodingOutputStream(counter, 4096);
+		int pos = 0;
+		for (; pos < 10000; ++pos) chunker.write(data[pos]);  // <-- byte by byte
+		chunker.write(data, pos, 100);                        // <-- small
+		pos += 100;
+		chunker.write(data, pos, 20000);                      // <-- passed through
+		pos += 20000;
+		chunker.write(data, pos, data.length - pos);
+		chunker.complete();
+		assertEquals(0, flushes[0]);
+
+		String encoded = new String(sink.toByteArray(), "ISO-8859-1");
+		assertTrue(encoded.startsWith("400\r\n")); // <-- first chunk 1024 bytes
+		assertTrue(encoded.contains("\r\n1000\r\n")); // <-- grown to the 4096 maximum
+		assertTrue(encoded.endsWith("\r\n0\r\n\r\n"));
+		assertArrayEquals(data, decode(sink.toByteArray()));
+	}
+
+	/**
+	 * Trailer fields follow the last chunk, and the stream cannot be
+	 * written after completing it
+	 */
+	@Test
+	public void testTrailers() throws IOException {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		ChunkedEncodingOutputStream chunker = new ChunkedEncodingOutputStream(sink);
+		chunker.write("hello".getBytes());
+		chunker.complete(Collections.singletonMap("X-Checksum", "abc"));
+		assertEquals("5\r\nhello\r\n0\r\nX-Checksum: abc\r\n\r\n", sink.toString());
+		try {
+			chunker.write(1);
+			fail("no exception");
+		} catch (IOException ex) {
+			// expected
+		}
+	}
+
+	private static byte[] decode(byte[] encoded) throws IOException {
+		ChunkedEncodingInputStream in = new ChunkedEncodingInputStream(
+				new ByteArrayInputStream(encoded));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int b = in.read(); b >= 0; b = in.read()) {
+			out.write(b);
+		}
+		return out.toByteArray();
+	}
+
+}
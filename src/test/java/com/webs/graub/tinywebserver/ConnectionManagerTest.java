@@ -0,0 +1,392 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.*;
+
+/**
+ * Timeouts and limits of connections, with both engines. Every test
+ * starts its own server, as they need different settings.
+ */
+public class ConnectionManagerTest {
+
+	public static final int PORT = 27888;
+	static final Server.Engine[] ENGINES = {Server.Engine.BLOCKING, Server.Engine.NIO};
+
+	Server mServer;
+
+	@After
+	public void stopServer() throws InterruptedException {
+		if (mServer != null) {
+			mServer.stopServer();
+			mServer.join(5000);
+			assertFalse(mServer.isAlive());
+			mServer = null;
+		}
+	}
+
+	Server newServer(Server.Engine engine) throws IOException, InterruptedException {
+		stopServer();
+		mServer = new Server(new MyLibrary(), PORT, engine);
+		// all timeouts far away, unless a test sets them
+		mServer.setIdleTimeout(60000);
+		mServer.setHeaderTimeout(60000);
+		mServer.setBodyTimeout(60000);
+		mServer.setWriteTimeout(60000);
+		return mServer;
+	}
+
+	void start() throws InterruptedException {
+		mServer.start();
+		Thread.sleep(300);
+		assertTrue(mServer.isAlive());
+	}
+
+	static Socket connect() throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		// a connection that is not closed fails the test, rather than hangs it
+		s.setSoTimeout(5000);
+		return s;
+	}
+
+	static void send(Socket s, String text) throws IOException {
+		OutputStream out = s.getOutputStream();
+		out.write(text.getBytes("ISO-8859-1"));
+		out.flush();
+	}
+
+	static String readResponse(InputStream in, HashMap<String,String> headers) throws IOException {
+		String status = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		Util.readContent(in, headers);
+		return status;
+	}
+
+	void waitForNoConnections(long millis) throws InterruptedException {
+		long end = System.currentTimeMillis() + millis;
+		while (mServer.getConnectionCount() > 0) {
+			if (System.currentTimeMillis() > end) fail("Connection was not closed");
+			Thread.sleep(50);
+		}
+	}
+
+	// the server has closed the connection; unread data may reset it
+	static void assertClosed(InputStream in) throws IOException {
+		try {
+			while (in.read() >= 0) {
+				// what was sent before closing
+			}
+		} catch (SocketTimeoutException ex) {
+			fail("Connection was not closed");
+		} catch (IOException ex) {
+			// reset
+		}
+	}
+
+	/**
+	 * A keep-alive connection that has no next request is closed after
+	 * the idle timeout
+	 */
+	@Test
+	public void testIdleTimeout() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setIdleTimeout(300);
+			start();
+			Socket s = connect();
+			send(s, "GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			assertTrue(readResponse(in, new HashMap<String,String>()).contains("200 OK"));
+			long start = System.currentTimeMillis();
+			assertClosed(in);
+			assertTrue(System.currentTimeMillis() - start >= 200);
+			s.close();
+			Thread.sleep(200);
+			assertEquals(0, mServer.getConnectionCount());
+		}
+	}
+
+	/**
+	 * A request head that does not arrive in time ends the connection,
+	 * though bytes keep arriving
+	 */
+	@Test
+	public void testHeaderTimeout() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setHeaderTimeout(500);
+			start();
+			Socket s = connect();
+			send(s, "GET /normal HTTP/1.1\r\n");
+			long start = System.currentTimeMillis();
+			try {
+				for (int i = 0; i < 20; ++i) {
+					Thread.sleep(100);
+					send(s, "X-Slow: " + i + "\r\n");
+				}
+				fail("Slow head was accepted");
+			} catch (IOException ex) {
+				// connection closed by the server
+			}
+			assertTrue(System.currentTimeMillis() - start < 1900);
+			s.close();
+		}
+	}
+
+	/**
+	 * A request head that is not complete in time is answered with 408
+	 */
+	@Test
+	public void testHeaderTimeoutAnswered() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setHeaderTimeout(300);
+			start();
+			Socket s = connect();
+			send(s, "GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\n");
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			assertTrue(readResponse(in, new HashMap<String,String>()).contains("408"));
+			assertClosed(in);
+			s.close();
+		}
+	}
+
+	/**
+	 * A request head over the size limit is answered with 431, and the
+	 * connection closed
+	 */
+	@Test
+	public void testMaxHeaderSize() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setMaxHeaderSize(1024);
+			start();
+			Socket s = connect();
+			StringBuilder req = new StringBuilder("GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\n");
+			while (req.length() < 1024) req.append("X-Pad: 0123456789\r\n");
+			send(s, req.append("\r\n").toString());
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			assertTrue(readResponse(in, new HashMap<String,String>()).contains("431"));
+			assertClosed(in);
+			s.close();
+		}
+	}
+
+	/**
+	 * A client that does not read its responses is disconnected after the
+	 * write timeout
+	 */
+	@Test
+	public void testWriteTimeout() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setWriteTimeout(500);
+			start();
+			Socket s = new Socket();
+			s.setReceiveBufferSize(4096);
+			s.connect(new InetSocketAddress(InetAddress.getLocalHost(), PORT));
+			StringBuilder req = new StringBuilder();
+			for (int i = 0; i < 200; ++i) {
+				req.append("GET /object HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+			}
+			long start = System.currentTimeMillis();
+			send(s, req.toString());
+			Thread.sleep(200);
+			assertEquals(1, mServer.getConnectionCount());
+			waitForNoConnections(3000);
+			assertTrue(System.currentTimeMillis() - start >= 500);
+			s.close();
+		}
+	}
+
+	/**
+	 * A request body that arrives more slowly than the minimum data rate
+	 * ends the connection, though it never stalls for the body timeout
+	 */
+	@Test
+	public void testMinDataRate() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setMinDataRate(1000, 500);
+			start();
+			// a quick upload is not affected
+			Socket s = connect();
+			send(s, "POST /upload HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: 10\r\n\r\n0123456789");
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			assertTrue(readResponse(in, new HashMap<String,String>()).contains("200 OK"));
+			Thread.sleep(700);
+
+			// 100 bytes per second
+			send(s, "POST /upload HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: 10000\r\n\r\n");
+			long start = System.currentTimeMillis();
+			try {
+				for (int i = 0; i < 30; ++i) {
+					Thread.sleep(100);
+					send(s, "0123456789");
+				}
+				fail("Slow body was accepted");
+			} catch (IOException ex) {
+				// connection closed by the server
+			}
+			assertTrue(System.currentTimeMillis() - start < 2500);
+			s.close();
+		}
+	}
+
+	/**
+	 * A request body that stops arriving ends the connection, also one
+	 * taken over from the NIO engine
+	 */
+	@Test
+	public void testBodyTimeout() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setBodyTimeout(300);
+			start();
+			Socket s = connect();
+			send(s, "POST /upload HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: 100\r\n\r\n0123456789");
+			assertClosed(s.getInputStream());
+			s.close();
+			Thread.sleep(200);
+			assertEquals(0, mServer.getConnectionCount());
+		}
+	}
+
+	/**
+	 * The last request allowed on a connection is answered with
+	 * "Connection: close"
+	 */
+	@Test
+	public void testMaxRequestsPerConnection() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setMaxRequestsPerConnection(2);
+			start();
+			Socket s = connect();
+			String req = "GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n";
+			send(s, req + req + req);
+			InputStream in = new BufferedInputStream(s.getInputStream());
+			HashMap<String,String> headers = new HashMap<String,String>();
+			assertTrue(readResponse(in, headers).contains("200 OK"));
+			assertNull(headers.get("Connection"));
+			assertTrue(readResponse(in, headers).contains("200 OK"));
+			assertEquals("close", headers.get("Connection"));
+			assertClosed(in);
+			s.close();
+		}
+	}
+
+	/**
+	 * A connection over the limit is answered with 503, and one is
+	 * accepted again when another has closed
+	 */
+	@Test
+	public void testMaxConnections() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setMaxConnections(1);
+			start();
+			Socket first = connect();
+			send(first, "GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+			InputStream in = new BufferedInputStream(first.getInputStream());
+			assertTrue(readResponse(in, new HashMap<String,String>()).contains("200 OK"));
+
+			Socket second = connect();
+			HashMap<String,String> headers = new HashMap<String,String>();
+			assertTrue(readResponse(new BufferedInputStream(second.getInputStream()), headers)
+					.contains("503"));
+			assertEquals("1", headers.get("Retry-After"));
+			second.close();
+
+			first.close();
+			Thread.sleep(300);
+			Socket third = connect();
+			send(third, "GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n");
+			assertTrue(readResponse(new BufferedInputStream(third.getInputStream()),
+					new HashMap<String,String>()).contains("200 OK"));
+			third.close();
+		}
+	}
+
+	/**
+	 * Connections that the executor rejects are answered with 503, and do
+	 * not keep their place among the connections
+	 */
+	@Test
+	public void testRejectedSessionsAreNotCounted() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine).setMaxConnections(3);
+			mServer.setExecutor(new Executor() {
+				@Override
+				public void execute(Runnable command) {
+					throw new RejectedExecutionException();
+				}
+			});
+			start();
+			// the NIO engine hands only requests with a body to the executor
+			String req = (engine == Server.Engine.NIO
+					? "POST /upload HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: 4\r\n\r\n0123"
+					: "GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+			for (int i = 0; i < 5; ++i) {
+				Socket s = connect();
+				send(s, req);
+				assertTrue(readResponse(new BufferedInputStream(s.getInputStream()),
+						new HashMap<String,String>()).contains("503"));
+				s.close();
+			}
+			waitForNoConnections(2000);
+		}
+	}
+
+	/**
+	 * A chunked body over the size limit that the content does not read
+	 * does not lose the response; the connection is closed after it
+	 */
+	@Test
+	public void testIgnoredBodyTooLarge() throws Exception {
+		newServer(Server.Engine.BLOCKING).setMaxBodySize(100);
+		start();
+		Socket s = connect();
+		StringBuilder req = new StringBuilder(
+				"GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\nTransfer-Encoding: chunked\r\n\r\n");
+		for (int i = 0; i < 20; ++i) req.append("a\r\n0123456789\r\n");
+		send(s, req.append("0\r\n\r\n").toString());
+		InputStream in = new BufferedInputStream(s.getInputStream());
+		// the response was out before the body was found too large
+		assertTrue(readResponse(in, new HashMap<String,String>()).contains("200 OK"));
+		assertClosed(in);
+		s.close();
+	}
+
+	/**
+	 * Stopping the server closes the connections that are open
+	 */
+	@Test
+	public void testStopServerClosesConnections() throws Exception {
+		for (Server.Engine engine : ENGINES) {
+			newServer(engine);
+			start();
+			Socket idle = connect();
+			send(idle, "GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n");
+			InputStream in = new BufferedInputStream(idle.getInputStream());
+			assertTrue(readResponse(in, new HashMap<String,String>()).contains("200 OK"));
+			Socket reading = connect();
+			send(reading, "POST /upload HTTP/1.1\r\nHost: 127.0.0.1\r\nContent-Length: 100\r\n\r\n0123");
+			Thread.sleep(200);
+			assertEquals(2, mServer.getConnectionCount());
+
+			mServer.stopServer();
+			assertClosed(in);
+			assertClosed(reading.getInputStream());
+			idle.close();
+			reading.close();
+			Thread.sleep(200);
+			assertEquals(0, mServer.getConnectionCount());
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.*;
+
+public class ConnectionOutputStreamTest {
+
+	/**
+	 * Buffered bytes and a big write go out together, in order
+	 */
+	@Test
+	public void testGatheredWrite() throws IOException {
+		Pipe pipe = Pipe.open();
+		ConnectionOutputStream out = new ConnectionOutputStream(
+				Channels.newOutputStream(pipe.sink()), pipe.sink());
+		byte[] head = "HTTP/1.1 200 OK\r\n\r\n".getBytes();
+		byte[] body = new byte[3*ConnectionOutputStream.BUFFER_SIZE];
+		new Random().nextBytes(body);
+		out.write(head);
+		assertEquals(head.length, out.buffered());
+		out.write(body);
+		assertEquals(0, out.buffered()); // <-- written without a flush
+
+		ByteBuffer received = ByteBuffer.allocate(head.length + body.length);
+		while (received.hasRemaining()) pipe.source().read(received);
+		byte[] data = received.array();
+		assertArrayEquals(head, Arrays.copyOfRange(data, 0, head.length));
+		assertArrayEquals(body, Arrays.copyOfRange(data, head.length, data.length));
+	}
+
+	/**
+	 * Small writes stay in the buffer until the input stream reads again
+	 */
+	@Test
+	public void testFlushBeforeReading() throws IOException {
+		final ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		final ConnectionOutputStream out = new ConnectionOutputStream(sink, null);
+		final int[] flushes = {0};
+		ConnectionInputStream in = new ConnectionInputStream(
+				new ByteArrayInputStream("GET / HTTP/1.0\n\nGET / HTTP/1.0\n\n".getBytes()));
+		in.flushBeforeReading(new Flushable() {
+			@Override
+			public void flush() throws IOException {
+				flushes[0]++;
+				out.flush();
+			}
+		});
+		RequestParser parser = new RequestParser();
+		assertTrue(parser.parse(in));
+		parser.reset();
+		out.write("response 1\n".getBytes());
+		assertTrue(parser.parse(in)); // <-- already in the buffer
+		parser.reset();
+		out.write("response 2\n".getBytes());
+		assertEquals(0, sink.size());
+		assertFalse(parser.parse(in)); // <-- has to read: flushes both
+		assertEquals("response 1\nresponse 2\n", sink.toString());
+		assertEquals(2, flushes[0]);
+	}
+
+}
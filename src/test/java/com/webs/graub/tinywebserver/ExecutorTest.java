@@ -0,0 +1,107 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.*;
+
+public class ExecutorTest {
+
+
+	public static final int PORT = 27888;
+	static Library mDummyLibrary = new MyLibrary();
+	static Server mServer;
+	static ExecutorService mPool = Executors.newCachedThreadPool();
+	static AtomicInteger mExecuted = new AtomicInteger();
+
+
+	/**
+	 * Starts the server with an executor that counts the sessions it runs
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@BeforeClass
+	public static void startServer() throws IOException, InterruptedException {
+		mServer = new Server(mDummyLibrary, PORT);
+		mServer.setExecutor(new Executor() {
+			public void execute(Runnable command) {
+				mExecuted.incrementAndGet();
+				mPool.execute(command);
+			}
+		});
+		mServer.start();
+		Thread.sleep(1000);
+		assertTrue(mServer.isAlive());
+	}
+
+	/**
+	 * Terminate the server after all tests run
+	 * @throws InterruptedException
+	 */
+	@AfterClass
+	public static void stopServer() throws InterruptedException {
+		mServer.stopServer();
+		Thread.sleep(1000);
+		assertFalse(mServer.isAlive());
+		mPool.shutdown();
+	}
+
+	/**
+	 * Sessions are run by the given executor
+	 * @throws IOException
+	 */
+	@Test
+	public void testSessionsRunOnExecutor() throws IOException {
+		int before = mExecuted.get();
+		for(int i=0;i<3;++i) {
+			String req = "GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n";
+			Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+			OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+			writer.write(req);
+			writer.flush();
+			BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+			String resp = Util.readLine(in);
+			HashMap<String,String> headers = new HashMap<String,String>();
+			Util.readHeaders(in, headers);
+			String content = new String(Util.readContent(in, headers));
+			assertTrue(resp.contains("200 OK"));
+			assertTrue(content.contains(MyLibrary.TEXT_DATA));
+			s.close();
+		}
+		assertEquals(before+3, mExecuted.get());
+	}
+
+	/**
+	 * Virtual thread executor either works, or tells it is not supported
+	 */
+	@Test
+	public void testVirtualThreadExecutor() throws InterruptedException {
+		ExecutorService virtual;
+		try {
+			virtual = Server.newVirtualThreadExecutor();
+		} catch (UnsupportedOperationException ex) {
+			return; // JVM older than Java 21
+		}
+		final AtomicInteger ran = new AtomicInteger();
+		virtual.execute(new Runnable() {
+			public void run() {
+				ran.incrementAndGet();
+			}
+		});
+		virtual.shutdown();
+		virtual.awaitTermination(5, TimeUnit.SECONDS);
+		assertEquals(1, ran.get());
+	}
+
+}
@@ -3,12 +3,19 @@ package com.webs.graub.tinywebserver;
 import static org.junit.Assert.*;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 
 import org.junit.*;
 
@@ -65,6 +72,7 @@ public class GetTest {
 		assertTrue(headers.containsKey("Server")); // <-- server has a name
 		assertTrue(headers.containsKey("Content-Length")); // Content length is given
 		assertTrue(headers.get("Date").contains("GMT")); // <-- server time is in GMT
+		assertEquals("close", headers.get("Connection")); // <-- server closes as asked
 		assertTrue(content.contains(MyLibrary.TEXT_DATA));
 	}
 
@@ -116,6 +124,295 @@ public class GetTest {
 		}
 	}
 
+	/**
+	 * Test GET request for a file region, sent with transferTo()
+	 * @throws IOException
+	 */
+	@Test
+	public void testGetFileRegion() throws IOException {
+		String req = "GET /region HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertEquals(Integer.toString(MyLibrary.BYTE_DATA.length), headers.get("Content-Length"));
+		assertArrayEquals(MyLibrary.BYTE_DATA, content);
+		assertEquals("bytes", headers.get("Accept-Ranges"));
+	}
+
+	/**
+	 * Test GET with one range, and with a range that is past the end
+	 * @throws IOException
+	 */
+	@Test
+	public void testGetSingleRange() throws IOException {
+		String req = "GET /region HTTP/1.1\nHost: 127.0.0.1\nRange: bytes=100-199\n\n"
+				+ "GET /region HTTP/1.1\nHost: 127.0.0.1\nRange: bytes=-10\n\n"
+				+ "GET /region HTTP/1.1\nHost: 127.0.0.1\nRange: bytes=70000-\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		int size = MyLibrary.BYTE_DATA.length;
+
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		assertTrue(resp.contains("206 Partial Content"));
+		assertEquals("bytes 100-199/" + size, headers.get("Content-Range"));
+		assertArrayEquals(Arrays.copyOfRange(MyLibrary.BYTE_DATA, 100, 200), content);
+
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		content = Util.readContent(in, headers);
+		assertTrue(resp.contains("206 Partial Content"));
+		assertEquals("bytes " + (size-10) + "-" + (size-1) + "/" + size, headers.get("Content-Range"));
+		assertArrayEquals(Arrays.copyOfRange(MyLibrary.BYTE_DATA, size-10, size), content);
+
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("416"));
+		assertEquals("bytes */" + size, headers.get("Content-Range"));
+		s.close();
+	}
+
+	/**
+	 * Content over 2 GB is sent with its length, and can be resumed near
+	 * its end
+	 * @throws IOException
+	 */
+	@Test
+	public void testGetHugeContent() throws IOException {
+		String req = "HEAD /huge HTTP/1.1\nHost: 127.0.0.1\n\n"
+				+ "GET /huge HTTP/1.1\nHost: 127.0.0.1\nRange: bytes=2999999990-\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertEquals("3000000000", headers.get("Content-Length"));
+		assertEquals("bytes", headers.get("Accept-Ranges"));
+
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		assertTrue(resp.contains("206 Partial Content"));
+		assertEquals("bytes 2999999990-2999999999/3000000000", headers.get("Content-Range"));
+		assertEquals(10, content.length);
+		for (int i=0; i<10; ++i) {
+			assertEquals(MyLibrary.hugeByte(2999999990L + i), content[i]);
+		}
+		s.close();
+	}
+
+	/**
+	 * Test GET with several ranges, sent as multipart/byteranges
+	 * @throws IOException
+	 */
+	@Test
+	public void testGetMultipleRanges() throws IOException {
+		String req = "GET /region HTTP/1.1\nHost: 127.0.0.1\nRange: bytes=500-509, 0-4, 3-7\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		assertTrue(resp.contains("206 Partial Content"));
+		String type = headers.get("Content-Type");
+		assertTrue(type.startsWith("multipart/byteranges; boundary="));
+		String boundary = type.substring(type.indexOf('=')+1);
+		int size = MyLibrary.BYTE_DATA.length;
+
+		// overlapping ranges are merged and sorted
+		String body = new String(content, "ISO-8859-1");
+		String[] parts = body.split("\r\n--" + boundary);
+		assertEquals(4, parts.length);
+		assertTrue(parts[1].contains("Content-Range: bytes 0-7/" + size + "\r\n\r\n"));
+		assertTrue(parts[2].contains("Content-Range: bytes 500-509/" + size + "\r\n\r\n"));
+		assertEquals("--\r\n", parts[3]);
+		byte[] data = parts[2].substring(parts[2].indexOf("\r\n\r\n")+4).getBytes("ISO-8859-1");
+		assertArrayEquals(Arrays.copyOfRange(MyLibrary.BYTE_DATA, 500, 510), data);
+	}
+
+	/**
+	 * Test conditional GET requests against the validators of a file
+	 * @throws IOException
+	 */
+	@Test
+	public void testConditionalGet() throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write("GET /region HTTP/1.1\nHost: 127.0.0.1\n\n");
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		Util.readContent(in, headers);
+		String etag = headers.get("ETag");
+		String modified = headers.get("Last-Modified");
+		assertTrue(etag.startsWith("\""));
+		assertTrue(modified.endsWith("GMT"));
+
+		writer.write("GET /region HTTP/1.1\nHost: 127.0.0.1\nIf-None-Match: \"x\", " + etag + "\n\n"
+				+ "HEAD /region HTTP/1.1\nHost: 127.0.0.1\nIf-Modified-Since: " + modified + "\n\n"
+				+ "GET /region HTTP/1.1\nHost: 127.0.0.1\nIf-Match: \"other\"\n\n"
+				+ "GET /region HTTP/1.1\nHost: 127.0.0.1\nIf-Range: " + etag + "\nRange: bytes=0-9\n\n"
+				+ "GET /region HTTP/1.1\nHost: 127.0.0.1\nIf-Range: \"old\"\nRange: bytes=0-9\n"
+				+ "If-Modified-Since: Sat, 01 Jan 2000 00:00:00 GMT\nConnection: close\n\n");
+		writer.flush();
+
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("304 Not Modified"));
+		assertEquals(etag, headers.get("ETag"));
+		assertFalse(headers.containsKey("Content-Length")); // <-- no body follows
+
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("304 Not Modified"));
+
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		Util.readContent(in, headers);
+		assertTrue(resp.contains("412 Precondition Failed"));
+
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertEquals(10, Util.readContent(in, headers).length);
+		assertTrue(resp.contains("206 Partial Content"));
+
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertArrayEquals(MyLibrary.BYTE_DATA, Util.readContent(in, headers));
+		assertTrue(resp.contains("200 OK")); // <-- changed since: whole content
+		s.close();
+	}
+
+	/**
+	 * "*" matches any content that exists, also one without an entity tag
+	 */
+	@Test
+	public void testMatchAny() {
+		assertTrue(Preconditions.matches("*", null, true));
+		assertTrue(Preconditions.matches(" * ", "\"abc\"", false));
+		assertFalse(Preconditions.matches("\"abc\"", null, true));
+	}
+
+	/**
+	 * Deflaters are used again by any thread; those the pool has no room
+	 * for are ended
+	 */
+	@Test
+	public void testDeflaterPool() {
+		Deflater[] deflaters = new Deflater[Compression.MAX_POOLED + 1];
+		for (int i=0; i<deflaters.length; ++i) deflaters[i] = Compression.lease(true);
+		for (Deflater deflater : deflaters) Compression.release(deflater, true);
+		try {
+			deflaters[deflaters.length-1].reset();
+			fail("not ended");
+		} catch (NullPointerException ex) {
+			// ended: its zlib state is gone
+		}
+		assertSame(deflaters[deflaters.length-2], Compression.lease(true));
+	}
+
+	/**
+	 * Test GET requests where the client accepts compressed content
+	 * @throws IOException
+	 */
+	@Test
+	public void testGetCompressed() throws IOException {
+		HashMap<String,String> headers = new HashMap<String,String>();
+		byte[] content = get("GET /normal HTTP/1.1\nHost: 127.0.0.1\n"
+				+ "Accept-Encoding: deflate;q=0.5, gzip\nConnection: close\n\n", headers);
+		assertEquals("gzip", headers.get("Content-Encoding"));
+		assertEquals("Accept-Encoding", headers.get("Vary"));
+		assertFalse(headers.containsKey("Content-Length"));
+		assertEquals(MyLibrary.TEXT_DATA, new String(inflate(new GZIPInputStream(
+				new ByteArrayInputStream(content)))));
+
+		headers.clear();
+		content = get("GET /chunked HTTP/1.1\nHost: 127.0.0.1\n"
+				+ "Accept-Encoding: gzip;q=0, deflate\nConnection: close\n\n", headers);
+		assertEquals("deflate", headers.get("Content-Encoding"));
+		assertEquals(MyLibrary.TEXT_DATA, new String(inflate(new InflaterInputStream(
+				new ByteArrayInputStream(content)))));
+
+		headers.clear();
+		content = get("GET /region HTTP/1.1\nHost: 127.0.0.1\n"
+				+ "Accept-Encoding: gzip\nConnection: close\n\n", headers);
+		assertFalse(headers.containsKey("Content-Encoding")); // <-- binary data is not compressed
+		assertFalse(headers.containsKey("Vary"));
+		assertArrayEquals(MyLibrary.BYTE_DATA, content);
+
+		// "304 Not Modified" has the same validator as the compressed "200 OK"
+		headers.clear();
+		get("GET /textregion HTTP/1.1\nHost: 127.0.0.1\n"
+				+ "Accept-Encoding: gzip\nConnection: close\n\n", headers);
+		String etag = headers.get("ETag");
+		assertTrue(etag.startsWith("W/"));
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write("GET /textregion HTTP/1.1\nHost: 127.0.0.1\nAccept-Encoding: gzip\n"
+				+ "If-None-Match: " + etag + "\nConnection: close\n\n");
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		assertTrue(Util.readLine(in).contains("304 Not Modified"));
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertEquals(etag, headers.get("ETag"));
+		s.close();
+	}
+
+	private static byte[] get(String req, HashMap<String,String> headers) throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		assertTrue(resp.contains("200 OK"));
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		s.close();
+		return content;
+	}
+
+	private static byte[] inflate(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[1024];
+		for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+			out.write(buf, 0, n);
+		}
+		return out.toByteArray();
+	}
+
 	/**
 	 * The webserver only supports HTTP 1.1, HTTP 1.0 requests bounce
 	 * @throws IOException 
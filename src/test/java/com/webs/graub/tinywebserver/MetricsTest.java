@@ -0,0 +1,107 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.*;
+
+public class MetricsTest {
+
+	public static final int PORT = 27888;
+	static Metrics mMetrics = new Metrics();
+	static Server mServer;
+
+	@BeforeClass
+	public static void startServer() throws IOException, InterruptedException {
+		mServer = new Server(new MetricsLibrary(new MyLibrary(), mMetrics), PORT);
+		mServer.setMetrics(mMetrics);
+		mServer.start();
+		Thread.sleep(1000);
+		assertTrue(mServer.isAlive());
+	}
+
+	@AfterClass
+	public static void stopServer() throws InterruptedException {
+		mServer.stopServer();
+		Thread.sleep(1000);
+		assertFalse(mServer.isAlive());
+	}
+
+	static String get(String path, HashMap<String,String> headers) throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n");
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String status = Util.readLine(in);
+		Util.readHeaders(in, headers);
+		String content = new String(Util.readContent(in, headers), "UTF-8");
+		s.close();
+		return status.trim() + "\n" + content;
+	}
+
+	/**
+	 * Percentiles are within the precision of the buckets
+	 */
+	@Test
+	public void testHistogram() {
+		Metrics.Histogram histogram = new Metrics.Histogram();
+		for (int i = 1; i <= 1000; ++i) {
+			histogram.record(i * 100);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(50050000, histogram.getSum());
+		long p50 = histogram.getPercentile(50);
+		assertTrue(p50 >= 50000 && p50 <= 50000 * 1.125);
+		long p99 = histogram.getPercentile(99);
+		assertTrue(p99 >= 99000 && p99 <= 99000 * 1.125);
+		assertTrue(histogram.getMax() >= 100000 && histogram.getMax() <= 100000 * 1.125);
+		for (int b = 0; b < Metrics.Histogram.BUCKETS; ++b) {
+			assertEquals(b, Metrics.Histogram.bucketOf(Metrics.Histogram.lowestOf(b)));
+			assertEquals(b, Metrics.Histogram.bucketOf(Metrics.Histogram.highestOf(b)));
+		}
+		assertEquals(0, new Metrics.Histogram().getPercentile(99));
+	}
+
+	/**
+	 * Requests are counted by method and status, and the counts can be
+	 * read from the metrics path and through JMX
+	 */
+	@Test
+	public void testServerMetrics() throws Exception {
+		HashMap<String,String> headers = new HashMap<String,String>();
+		assertTrue(get("/normal", headers).startsWith("HTTP/1.1 200"));
+		assertTrue(get("/nonexistent", headers).startsWith("HTTP/1.1 404"));
+
+		headers.clear();
+		String text = get("/metrics", headers);
+		assertTrue(text.startsWith("HTTP/1.1 200"));
+		assertTrue(headers.get("Content-Type").startsWith("text/plain; version=0.0.4"));
+		assertTrue(text.contains("\ntinywebserver_requests_total{method=\"GET\"} 3\n"));
+		assertTrue(text.contains("\ntinywebserver_responses_total{status=\"404\"} 1\n"));
+		assertTrue(text.contains("\ntinywebserver_connections_total 3\n"));
+		assertTrue(text.contains("\ntinywebserver_request_seconds_bucket{le=\"+Inf\"} 2\n"));
+		assertTrue(text.contains("\n# TYPE tinywebserver_content_seconds histogram\n"));
+
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName name = mMetrics.registerMBean("test");
+		try {
+			assertEquals(3L, server.getAttribute(name, "Requests"));
+			assertEquals(1L, server.getAttribute(name, "ClientErrors"));
+			assertTrue((Long)server.getAttribute(name, "BytesSent") > 0);
+		} finally {
+			server.unregisterMBean(name);
+		}
+	}
+
+}
@@ -0,0 +1,139 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.*;
+
+public class MultipartFormTest {
+
+	static final String TYPE = "multipart/form-data; boundary=\"AaB03x\"";
+
+	/**
+	 * Small fields stay in memory, a big file goes to disk; data that
+	 * resembles the boundary is kept, even across reads
+	 */
+	@Test
+	public void testPartsAndSpill() throws IOException {
+		byte[] file = new byte[50000];
+		new Random().nextBytes(file);
+		byte[] tricky = "x\r\n--AaB03\r\n--AaB0\r\r\n--Aa".getBytes();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(("preamble\r\n--AaB03x\r\n"
+				+ "Content-Disposition: form-data; name=\"field\"\r\n\r\n"
+				+ "value\r\n--AaB03x  \r\n"
+				+ "content-disposition: form-data; name=\"tricky\"\r\n\r\n").getBytes());
+		body.write(tricky);
+		body.write(("\r\n--AaB03x\r\n"
+				+ "Content-Disposition: form-data; name=\"file\"; filename=\"a \\\"b\\\".bin\"\r\n"
+				+ "Content-Type: application/octet-stream\r\n\r\n").getBytes());
+		body.write(file);
+		body.write("\r\n--AaB03x--\r\nepilogue".getBytes());
+
+		MultipartForm form = new MultipartForm();
+		form.setMemoryThreshold(10000);
+		form.read(trickle(body.toByteArray(), 7), TYPE);
+		try {
+			assertEquals(3, form.getParts().size());
+			MultipartForm.Part field = form.getPart("field");
+			assertEquals("value", field.getString());
+			assertTrue(field.isInMemory());
+			assertEquals("text/plain", field.getContentType());
+			assertArrayEquals(tricky, read(form.getPart("tricky").getInputStream()));
+
+			MultipartForm.Part part = form.getPart("file");
+			assertEquals("a \"b\".bin", part.getFilename());
+			assertEquals("application/octet-stream", part.getContentType());
+			assertFalse(part.isInMemory());
+			assertEquals(file.length, part.getSize());
+			assertEquals(file.length, part.getFile().length());
+			assertArrayEquals(file, read(part.getInputStream()));
+		} finally {
+			form.delete();
+		}
+		assertFalse(form.getPart("file").getFile().exists());
+	}
+
+	/**
+	 * Once the form has used its memory, also small parts go to disk
+	 */
+	@Test
+	public void testMaxMemory() throws IOException {
+		StringBuilder body = new StringBuilder();
+		for (int i=0; i<10; ++i) {
+			body.append("--AaB03x\r\nContent-Disposition: form-data; name=\"f").append(i)
+				.append("\"\r\n\r\n").append(new String(new char[200]).replace('\0', 'a')).append("\r\n");
+		}
+		body.append("--AaB03x--");
+		MultipartForm form = new MultipartForm();
+		form.setMaxMemory(1000);
+		form.read(new ByteArrayInputStream(body.toString().getBytes()), TYPE);
+		try {
+			assertTrue(form.getPart("f0").isInMemory());
+			assertFalse(form.getPart("f9").isInMemory());
+			assertEquals(200, form.getPart("f9").getString().length());
+		} finally {
+			form.delete();
+		}
+	}
+
+	/**
+	 * A body without the closing boundary is refused, and nothing is left
+	 * on disk
+	 */
+	@Test
+	public void testTruncated() throws IOException {
+		byte[] data = new byte[5000];
+		String head = "--AaB03x\r\nContent-Disposition: form-data; name=\"file\"\r\n\r\n";
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		body.write(head.getBytes());
+		body.write(data);
+		File dir = new File(System.getProperty("java.io.tmpdir"), "multipart-test-" + System.nanoTime());
+		assertTrue(dir.mkdir());
+		MultipartForm form = new MultipartForm();
+		form.setMemoryThreshold(1000);
+		form.setTempDirectory(dir);
+		try {
+			form.read(new ByteArrayInputStream(body.toByteArray()), TYPE);
+			fail("no exception");
+		} catch (HttpStatus status) {
+			assertEquals(400, status.getStatusCode());
+		}
+		assertEquals(0, dir.list().length);
+		dir.delete();
+		try {
+			MultipartForm.parse(new ByteArrayInputStream(new byte[0]));
+			fail("no exception");
+		} catch (HttpStatus status) {
+			assertEquals(415, status.getStatusCode());
+		}
+	}
+
+	private static byte[] read(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buf = new byte[4096];
+		for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+			out.write(buf, 0, n);
+		}
+		in.close();
+		return out.toByteArray();
+	}
+
+	// stream that gives at most a few bytes per read
+	private static InputStream trickle(byte[] data, final int max) {
+		return new FilterInputStream(new ByteArrayInputStream(data)) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return super.read(b, off, Math.min(len, max));
+			}
+		};
+	}
+
+}
@@ -1,12 +1,15 @@
 package com.webs.graub.tinywebserver;
 
 import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.net.URI;
 import java.util.Random;
+import java.util.zip.CRC32;
 
 public class MyLibrary implements Library {
 
@@ -21,9 +24,20 @@ public class MyLibrary implements Library {
 	public static String TEXT_DATA = "Lorem ipsum dolor sit amet, consectetur adipisicing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua. Ut enim ad minim veniam, quis nostrud exercitation ullamco laboris nisi ut aliquip ex ea commodo consequat. Duis aute irure dolor in reprehenderit in voluptate velit esse cillum dolore eu fugiat nulla pariatur. Excepteur sint occaecat cupidatat non proident, sunt in culpa qui officia deserunt mollit anim id est laborum.";
 
 	public static byte[] BYTE_DATA = new byte[60000];
+	public static File BYTE_FILE;
 	static {
 		// fill data array with randomness
 		new Random().nextBytes(BYTE_DATA);
+		// and store it in a file for the file region content
+		try {
+			BYTE_FILE = File.createTempFile("tinywebserver", ".bin");
+			BYTE_FILE.deleteOnExit();
+			FileOutputStream out = new FileOutputStream(BYTE_FILE);
+			out.write(BYTE_DATA);
+			out.close();
+		} catch (IOException ex) {
+			throw new RuntimeException(ex);
+		}
 	}
 
 	class StringContent implements OutContent {
@@ -90,6 +104,86 @@ public class MyLibrary implements Library {
 		}
 	}
 
+	// 3 GB of generated data, more than getDataSize() can tell
+	public static final long HUGE_SIZE = 3000000000L;
+	public static byte hugeByte(long position) {
+		return (byte)(position % 251);
+	}
+
+	class HugeContent implements RandomAccessContent {
+		@Override
+		public int getDataSize() { return 0; }
+		@Override
+		public long getContentLength() { return HUGE_SIZE; }
+		@Override
+		public String getMimetype() { return "application/octet-stream"; }
+		@Override
+		public void out(OutputStream stream) throws IOException {
+			out(stream, 0, HUGE_SIZE);
+		}
+		@Override
+		public void out(OutputStream stream, long offset, long length) throws IOException {
+			for (long p = offset; p < offset + length; ++p) {
+				stream.write(hugeByte(p));
+			}
+		}
+	}
+
+	class UploadContent implements InContent, OutContent {
+		String mResult;
+		@Override
+		public void in(InputStream in) throws IOException {
+			CRC32 crc = new CRC32();
+			byte[] buf = new byte[1000];
+			long count = 0;
+			for (int n = in.read(buf); n >= 0; n = in.read(buf)) {
+				crc.update(buf, 0, n);
+				count += n;
+			}
+			mResult = "received " + count + " bytes, crc " + crc.getValue();
+		}
+		@Override
+		public int getDataSize() { return mResult.length(); }
+		@Override
+		public String getMimetype() { return "text/plain"; }
+		@Override
+		public void out(OutputStream stream) throws IOException {
+			stream.write(mResult.getBytes());
+		}
+	}
+
+	class FormContent implements InContent, OutContent {
+		String mResult = "";
+		@Override
+		public void in(InputStream in) throws IOException {
+			MultipartForm form = MultipartForm.parse(in);
+			try {
+				for (MultipartForm.Part part : form.getParts()) {
+					mResult += part.getName() + "=" + part.getSize() + "\n";
+				}
+			} finally {
+				form.delete();
+			}
+		}
+		@Override
+		public int getDataSize() { return mResult.length(); }
+		@Override
+		public String getMimetype() { return "text/plain"; }
+		@Override
+		public void out(OutputStream stream) throws IOException {
+			stream.write(mResult.getBytes());
+		}
+	}
+
+	class SinkContent implements InContent {
+		@Override
+		public void in(InputStream in) throws IOException {
+			while (in.read() >= 0) {
+				// throw away
+			}
+		}
+	}
+
 	@Override
 	public Content getContent(URI uri) throws HttpStatus {
 		String path = uri.getPath();
@@ -103,6 +197,18 @@ public class MyLibrary implements Library {
 			return new FileContent("image/png", "test.png");
 		} else if (path.equals("/object")) {
 			return new DataContent("application/java-object", BYTE_DATA);
+		} else if (path.equals("/region")) {
+			return new FileRegion(BYTE_FILE, "application/octet-stream");
+		} else if (path.equals("/textregion")) {
+			return new FileRegion(BYTE_FILE, "text/plain");
+		} else if (path.equals("/huge")) {
+			return new HugeContent();
+		} else if (path.equals("/upload")) {
+			return new UploadContent();
+		} else if (path.equals("/form")) {
+			return new FormContent();
+		} else if (path.equals("/sink")) {
+			return new SinkContent();
 		} else if (path.equals("/forbidden")) {
 			throw new HttpStatus(HttpStatus.FORBIDDEN);
 		} else {
@@ -0,0 +1,257 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+
+import org.junit.*;
+
+public class NioEngineTest {
+
+
+	public static final int PORT = 27888;
+	static Library mDummyLibrary = new MyLibrary();
+	static Server mServer;
+
+
+	/**
+	 * Starts the server in NIO mode - prerequisite for the tests
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@BeforeClass
+	public static void startServer() throws IOException, InterruptedException {
+		mServer = new Server(mDummyLibrary, PORT, Server.Engine.NIO);
+		mServer.start();
+		Thread.sleep(1000);
+		assertTrue(mServer.isAlive());
+	}
+
+	/**
+	 * Terminate the server after all tests run
+	 * @throws InterruptedException
+	 */
+	@AfterClass
+	public static void stopServer() throws InterruptedException {
+		mServer.stopServer();
+		Thread.sleep(1000);
+		assertFalse(mServer.isAlive());
+	}
+
+	/**
+	 * Test traditional GET request
+	 * @throws IOException
+	 */
+	@Test
+	public void testGetNormalPage() throws IOException {
+		String req = "GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		String content = new String(Util.readContent(in, headers));
+		assertTrue(resp.contains("200 OK"));
+		assertTrue(headers.containsKey("Content-Length"));
+		assertTrue(content.contains(MyLibrary.TEXT_DATA));
+		assertEquals(-1, in.read()); // <-- connection has been closed
+	}
+
+	/**
+	 * Test GET request with a big body in chunked encoding
+	 * @throws IOException
+	 */
+	@Test
+	public void testGetBigChunkedBinaryPage() throws IOException {
+		String req = "GET /object HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertArrayEquals(MyLibrary.BYTE_DATA, content);
+	}
+
+	/**
+	 * Test GET request for a file region, sent with transferTo()
+	 * @throws IOException
+	 */
+	@Test
+	public void testGetFileRegion() throws IOException {
+		String req = "GET /region HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertEquals(Integer.toString(MyLibrary.BYTE_DATA.length), headers.get("Content-Length"));
+		assertArrayEquals(MyLibrary.BYTE_DATA, content);
+	}
+
+	/**
+	 * Requests sent one at a time over a keep-alive connection
+	 * @throws IOException
+	 */
+	@Test
+	public void testMultipleGetsOnSameConnection() throws IOException {
+		String req = "GET / HTTP/1.1\nHost: 127.0.0.1\n\n";
+		String req2 = "GET / HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		for(int i=0;i<5;++i) {
+			writer.write(i<4 ? req : req2);
+			writer.flush();
+			String resp = Util.readLine(in);
+			HashMap<String,String> headers = new HashMap<String,String>();
+			Util.readHeaders(in, headers);
+			new String(Util.readContent(in, headers));
+			assertTrue(resp.contains("200 OK"));
+		}
+	}
+
+	/**
+	 * Pipelined requests sent in one go are all answered, in order
+	 * @throws IOException
+	 */
+	@Test
+	public void testPipelinedGets() throws IOException {
+		String req = "GET /normal HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n"
+				+ "GET /nonexistent HTTP/1.1\r\nHost: 127.0.0.1\r\n\r\n"
+				+ "GET /chunked HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: close\r\n\r\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		String content = new String(Util.readContent(in, headers));
+		assertTrue(resp.contains("200 OK"));
+		assertTrue(content.contains(MyLibrary.TEXT_DATA));
+
+		resp = Util.readLine(in);
+		headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		content = new String(Util.readContent(in, headers));
+		assertTrue(resp.contains("404 Not Found"));
+		assertTrue(content.contains("404 Not Found"));
+
+		resp = Util.readLine(in);
+		assertEquals("HTTP/1.1 200 OK\r", resp);
+		headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		content = new String(Util.readContent(in, headers));
+		assertTrue(content.contains(MyLibrary.TEXT_DATA));
+	}
+
+	/**
+	 * A request with a body hands the connection over to a blocking
+	 * session, which answers it and the requests after it
+	 * @throws IOException
+	 */
+	@Test
+	public void testPostHandedOver() throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStream out = s.getOutputStream();
+		out.write(("GET /normal HTTP/1.1\nHost: 127.0.0.1\n\n"
+				+ "POST /upload HTTP/1.1\nHost: 127.0.0.1\nContent-Length: "
+				+ MyLibrary.BYTE_DATA.length + "\n\n").getBytes());
+		out.write(MyLibrary.BYTE_DATA);
+		out.write("GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n".getBytes());
+		out.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		for (int i=0; i<3; ++i) {
+			String resp = Util.readLine(in);
+			HashMap<String,String> headers = new HashMap<String,String>();
+			Util.readHeaders(in, headers);
+			String content = new String(Util.readContent(in, headers));
+			assertTrue(resp.contains("200 OK"));
+			if (i == 1) {
+				assertEquals(PostTest.expected(MyLibrary.BYTE_DATA), content);
+			} else {
+				assertTrue(content.contains(MyLibrary.TEXT_DATA));
+			}
+		}
+		assertEquals(-1, in.read());
+	}
+
+	/**
+	 * An invalid Content-Length leaves the end of the body unknown, so the
+	 * connection is closed after the error
+	 * @throws IOException
+	 */
+	@Test
+	public void testInvalidContentLength() throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStream out = s.getOutputStream();
+		out.write(("GET /normal HTTP/1.1\nHost: 127.0.0.1\nContent-Length: 1x\n\n"
+				+ "GET /normal HTTP/1.1\nHost: 127.0.0.1\n\n").getBytes());
+		out.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		Util.readContent(in, headers);
+		assertTrue(resp.contains("400 Bad Request"));
+		assertEquals("close", headers.get("Connection"));
+		assertEquals(-1, in.read());
+	}
+
+	/**
+	 * A big response body is written by a blocking session, so a client
+	 * that does not read it does not hold up other connections
+	 * @throws IOException
+	 */
+	@Test
+	public void testBigResponseHandedOver() throws IOException {
+		int length = 16*ResponseBuffer.MAX_SIZE;
+		Socket slow = new Socket(InetAddress.getLocalHost(), PORT);
+		slow.getOutputStream().write(("GET /huge HTTP/1.1\nHost: 127.0.0.1\nRange: bytes=0-"
+				+ (length-1) + "\n\nGET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n").getBytes());
+		slow.getOutputStream().flush();
+
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		s.setSoTimeout(5000); // <-- the event loop is not waiting for the slow client
+		s.getOutputStream().write("GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n".getBytes());
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		assertTrue(Util.readLine(in).contains("200 OK"));
+		s.close();
+
+		in = new BufferedInputStream(slow.getInputStream());
+		assertTrue(Util.readLine(in).contains("206 Partial Content"));
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		assertEquals(length, content.length);
+		assertEquals(MyLibrary.hugeByte(length-1), content[length-1]);
+		assertTrue(Util.readLine(in).contains("200 OK"));
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertTrue(new String(Util.readContent(in, headers)).contains(MyLibrary.TEXT_DATA));
+		assertEquals(-1, in.read());
+		slow.close();
+	}
+
+}
@@ -0,0 +1,231 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.zip.CRC32;
+
+import org.junit.*;
+
+public class PostTest {
+
+	public static final int PORT = 27888;
+	static Library mDummyLibrary = new MyLibrary();
+	static Server mServer;
+
+	/**
+	 * Starts the server - prerequisite for the tests
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@BeforeClass
+	public static void startServer() throws IOException, InterruptedException {
+		mServer = new Server(mDummyLibrary, PORT);
+		mServer.start();
+		Thread.sleep(1000);
+		assertTrue(mServer.isAlive());
+	}
+
+	/**
+	 * Terminate the server after all tests run
+	 * @throws InterruptedException
+	 */
+	@AfterClass
+	public static void stopServer() throws InterruptedException {
+		mServer.stopServer();
+		Thread.sleep(1000);
+		assertFalse(mServer.isAlive());
+	}
+
+	/**
+	 * POST with a Content-Length body, answered by the content, and the
+	 * connection goes on
+	 * @throws IOException
+	 */
+	@Test
+	public void testPostBody() throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStream out = s.getOutputStream();
+		out.write(("POST /upload HTTP/1.1\nHost: 127.0.0.1\nContent-Length: "
+				+ MyLibrary.BYTE_DATA.length + "\n\n").getBytes());
+		out.write(MyLibrary.BYTE_DATA);
+		out.write("GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n".getBytes());
+		out.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertEquals(expected(MyLibrary.BYTE_DATA), new String(Util.readContent(in, headers)));
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertTrue(new String(Util.readContent(in, headers)).contains(MyLibrary.TEXT_DATA));
+		s.close();
+	}
+
+	/**
+	 * PUT with a chunked body to a content that has nothing to answer
+	 * @throws IOException
+	 */
+	@Test
+	public void testPutChunked() throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStream out = s.getOutputStream();
+		out.write(("PUT /sink HTTP/1.1\nHost: 127.0.0.1\nTransfer-Encoding: chunked\n\n"
+				+ "5\r\nhello\r\n6\r\n world\r\n0\r\n\r\n"
+				+ "GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n").getBytes());
+		out.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("204 No Content"));
+		resp = Util.readLine(in);
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		s.close();
+	}
+
+	/**
+	 * Malformed chunked bodies get "400 Bad Request" when they are read,
+	 * and end the connection when they are skipped, without a stack trace
+	 * @throws IOException
+	 */
+	@Test
+	public void testMalformedChunks() throws IOException {
+		PrintStream err = System.err;
+		ByteArrayOutputStream printed = new ByteArrayOutputStream();
+		System.setErr(new PrintStream(printed));
+		try {
+			Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+			s.getOutputStream().write(("PUT /sink HTTP/1.1\nHost: 127.0.0.1\nTransfer-Encoding: chunked\n\n"
+					+ "5\r\nhello\r\nzz\r\n").getBytes());
+			BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+			String resp = Util.readLine(in);
+			HashMap<String,String> headers = new HashMap<String,String>();
+			Util.readHeaders(in, headers);
+			Util.readContent(in, headers);
+			assertTrue(resp.contains("400 Bad Request"));
+			assertEquals("close", headers.get("Connection"));
+			assertEquals(-1, in.read());
+			s.close();
+
+			s = new Socket(InetAddress.getLocalHost(), PORT);
+			s.getOutputStream().write(("GET /normal HTTP/1.1\nHost: 127.0.0.1\nTransfer-Encoding: chunked\n\n"
+					+ "zz\r\n").getBytes());
+			in = new BufferedInputStream(s.getInputStream());
+			resp = Util.readLine(in);
+			headers.clear();
+			Util.readHeaders(in, headers);
+			Util.readContent(in, headers);
+			assertTrue(resp.contains("200 OK"));
+			assertEquals(-1, in.read());
+			s.close();
+		} finally {
+			System.setErr(err);
+		}
+		assertEquals("", printed.toString());
+	}
+
+	/**
+	 * The body is sent only after "100 Continue"
+	 * @throws IOException
+	 */
+	@Test
+	public void testExpectContinue() throws IOException {
+		byte[] body = "some data".getBytes();
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStream out = s.getOutputStream();
+		out.write(("POST /upload HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n"
+				+ "Expect: 100-continue\nContent-Length: " + body.length + "\n\n").getBytes());
+		out.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		assertTrue(resp.contains("100 Continue"));
+		assertEquals("", Util.readLine(in).trim());
+		out.write(body);
+		out.flush();
+		resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertEquals(expected(body), new String(Util.readContent(in, headers)));
+		s.close();
+	}
+
+	/**
+	 * A refused body is not asked for, and the connection is closed
+	 * @throws IOException
+	 */
+	@Test
+	public void testExpectContinueRefused() throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStream out = s.getOutputStream();
+		out.write(("POST /normal HTTP/1.1\nHost: 127.0.0.1\n"
+				+ "Expect: 100-continue\nContent-Length: 1000\n\n").getBytes());
+		out.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		Util.readContent(in, headers);
+		assertTrue(resp.contains("405 Method Not Allowed"));
+		assertEquals("close", headers.get("Connection"));
+		assertEquals(-1, in.read());
+
+		s = new Socket(InetAddress.getLocalHost(), PORT);
+		out = s.getOutputStream();
+		out.write(("POST /upload HTTP/1.1\nHost: 127.0.0.1\n"
+				+ "Expect: something-else\nContent-Length: 1000\n\n").getBytes());
+		out.flush();
+		in = new BufferedInputStream(s.getInputStream());
+		resp = Util.readLine(in);
+		assertTrue(resp.contains("417 Expectation Failed"));
+		s.close();
+	}
+
+	/**
+	 * Upload of a form with a file
+	 * @throws IOException
+	 */
+	@Test
+	public void testPostForm() throws IOException {
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStream out = s.getOutputStream();
+		byte[] head = ("--xyz\r\nContent-Disposition: form-data; name=\"title\"\r\n\r\nhello"
+				+ "\r\n--xyz\r\nContent-Disposition: form-data; name=\"file\"; filename=\"data.bin\"\r\n\r\n").getBytes();
+		byte[] tail = "\r\n--xyz--\r\n".getBytes();
+		out.write(("POST /form HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n"
+				+ "Content-Type: multipart/form-data; boundary=xyz\nContent-Length: "
+				+ (head.length + MyLibrary.BYTE_DATA.length + tail.length) + "\n\n").getBytes());
+		out.write(head);
+		out.write(MyLibrary.BYTE_DATA);
+		out.write(tail);
+		out.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("200 OK"));
+		assertEquals("title=5\nfile=" + MyLibrary.BYTE_DATA.length + "\n",
+				new String(Util.readContent(in, headers)));
+		s.close();
+	}
+
+	static String expected(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return "received " + data.length + " bytes, crc " + crc.getValue();
+	}
+
+}
@@ -0,0 +1,64 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import org.junit.*;
+
+public class RequestHeadersTest {
+
+	/**
+	 * Names are found in any case, well-known ones also by their number,
+	 * and the last of repeated headers counts
+	 */
+	@Test
+	public void testLookup() {
+		RequestHeaders headers = new RequestHeaders();
+		headers.put("host", "example.com");
+		headers.put("X-Custom", "first");
+		headers.put("CONTENT-LENGTH", "42");
+		headers.put("x-custom", "second");
+		assertEquals("example.com", headers.get(RequestHeaders.HOST));
+		assertEquals("example.com", headers.get("HoSt"));
+		assertEquals("42", headers.get(Http.CONTENT_LENGTH));
+		assertTrue(headers.contains(RequestHeaders.CONTENT_LENGTH));
+		assertFalse(headers.contains(RequestHeaders.TRANSFER_ENCODING));
+		assertEquals("second", headers.get("X-CUSTOM"));
+		assertNull(headers.get("X-Other"));
+		assertEquals(3, headers.size());
+	}
+
+	/**
+	 * Headers are taken from a head by their offsets, and decoded only
+	 * when asked for; the table grows, and is emptied for the next request
+	 */
+	@Test
+	public void testReuse() {
+		RequestHeaders headers = new RequestHeaders();
+		StringBuilder head = new StringBuilder();
+		for (int i = 0; i < 100; ++i) {
+			head.append("X-Header-").append(i).append(": value ").append(i).append("\n");
+		}
+		byte[] bytes = head.toString().getBytes();
+		headers.clear(bytes, bytes.length);
+		int p = 0;
+		for (int i = 0; i < 100; ++i) {
+			int colon = head.indexOf(":", p);
+			int end = head.indexOf("\n", p);
+			headers.add(p, colon, colon+2, end);
+			p = end + 1;
+		}
+		assertNull(headers.mValues[99]);
+		assertEquals("value 99", headers.get("x-header-99"));
+		assertNotNull(headers.mValues[99]);
+		assertEquals("value 0", headers.get("X-HEADER-0"));
+		assertEquals(100, headers.size());
+
+		bytes = "Connection: close\n".getBytes();
+		headers.clear(bytes, bytes.length);
+		headers.add(0, 10, 12, 17);
+		assertNull(headers.get("X-Header-0"));
+		assertEquals("close", headers.get(RequestHeaders.CONNECTION));
+		assertEquals(1, headers.size());
+	}
+
+}
@@ -0,0 +1,130 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.*;
+
+public class RequestParserTest {
+
+	/**
+	 * Head split into single bytes is parsed the same as in one piece
+	 */
+	@Test
+	public void testHeadInPieces() {
+		byte[] head = "GET /normal?x=1 HTTP/1.1\r\nHost: 127.0.0.1\r\nX-Test:  some value \r\n\r\nBODY".getBytes();
+		RequestParser parser = new RequestParser();
+		int consumed = 0;
+		while (!parser.isComplete()) {
+			consumed += parser.parse(head, consumed, consumed+1);
+		}
+		assertEquals(head.length - 4, consumed); // <-- body is not consumed
+		HttpRequest request = new HttpRequest();
+		parser.fill(request);
+		assertNull(request.getStatus());
+		assertSame(Http.GET, request.getCommand());
+		assertEquals("/normal", request.getUri().getPath());
+		assertEquals("HTTP/1.1", request.getVersionString());
+		assertEquals(Http.Version.HTTP1_1, request.getVersionMode());
+		assertEquals("127.0.0.1", request.getHeaders().get(Http.HOST));
+		assertEquals("some value", request.getHeaders().get("X-Test"));
+	}
+
+	/**
+	 * Header names are not case-sensitive
+	 */
+	@Test
+	public void testLowerCaseHeaders() {
+		HttpRequest request = parse(new RequestParser(),
+				"POST /upload HTTP/1.1\nhost: h\ncontent-length: 10\nconnection: Close\n\n");
+		assertNull(request.getStatus());
+		assertEquals("h", request.getHeaders().get(Http.HOST));
+		assertEquals("10", request.getHeaders().get(RequestHeaders.CONTENT_LENGTH));
+		assertTrue(request.shouldCloseConnection());
+	}
+
+	/**
+	 * Parser is reused for pipelined requests read from a stream
+	 */
+	@Test
+	public void testPipelinedFromStream() throws IOException {
+		String heads = "\r\nHEAD / HTTP/1.0\n\nGET /b HTTP/1.1\nHost: h\n\n";
+		ConnectionInputStream in = new ConnectionInputStream(
+				new ByteArrayInputStream(heads.getBytes()));
+		RequestParser parser = new RequestParser();
+
+		assertTrue(parser.parse(in));
+		HttpRequest first = new HttpRequest();
+		parser.fill(first);
+		parser.reset();
+		assertNull(first.getStatus());
+		assertSame(Http.HEAD, first.getCommand());
+		assertEquals(Http.Version.HTTP1_0, first.getVersionMode());
+
+		assertTrue(parser.parse(in));
+		HttpRequest second = new HttpRequest();
+		parser.fill(second);
+		parser.reset();
+		assertNull(second.getStatus());
+		assertEquals("/b", second.getUri().getPath());
+
+		assertFalse(parser.parse(in)); // <-- end of stream between requests
+	}
+
+	/**
+	 * Malformed heads give "400 Bad Request"
+	 */
+	@Test
+	public void testBadHeads() {
+		assertBad("GET\n\n");
+		assertBad("XYZ / HTTP/1.1\nHost: h\n\n");
+		assertBad("GET / HTTP/0.3\nHost: h\n\n");
+		assertBad("GET / FTP\nHost: h\n\n");
+		assertBad("GET / HTTP/1.1\nHost: h\nBadHeader\n\n");
+		assertBad("GET / HTTP/1.1\nHost: h\nkey:\n\n");
+		assertBad("GET / HTTP/1.1\nHost: h\n:value\n\n");
+		assertBad("GET / HTTP/1.1\nHost: h\nX-Folded: a\n b\n\n");
+		assertBad("GET / HTTP/1.1\n\n"); // <-- no Host
+	}
+
+	/**
+	 * Heads over the limits give 431, or 414 for a long request line; the
+	 * connection is closed if the head was not read to its end
+	 */
+	@Test
+	public void testHeadLimits() {
+		StringBuilder big = new StringBuilder("GET / HTTP/1.1\nHost: h\n");
+		while (big.length() < RequestParser.DEFAULT_MAX_HEAD_SIZE) big.append("X-Pad: 0123456789\n");
+		HttpRequest request = parse(new RequestParser(), big.append("\n").toString());
+		assertEquals(431, request.getStatus().getStatusCode());
+		assertTrue(request.shouldCloseConnection());
+
+		StringBuilder uri = new StringBuilder("GET /");
+		while (uri.length() < 200) uri.append("0123456789");
+		request = parse(new RequestParser(100, 10), uri.append(" HTTP/1.1\nHost: h\n\n").toString());
+		assertEquals(414, request.getStatus().getStatusCode());
+		assertTrue(request.shouldCloseConnection());
+
+		request = parse(new RequestParser(1000, 2), "GET / HTTP/1.1\nHost: h\nA: 1\nB: 2\n\n");
+		assertEquals(431, request.getStatus().getStatusCode());
+		assertFalse(request.shouldCloseConnection());
+	}
+
+	private void assertBad(String head) {
+		HttpRequest request = parse(new RequestParser(), head);
+		assertNotNull(head, request.getStatus());
+		assertEquals(head, 400, request.getStatus().getStatusCode());
+	}
+
+	private HttpRequest parse(RequestParser parser, String head) {
+		byte[] bytes = head.getBytes();
+		parser.parse(bytes, 0, bytes.length);
+		assertTrue(parser.isComplete());
+		HttpRequest request = new HttpRequest();
+		parser.fill(request);
+		return request;
+	}
+
+}
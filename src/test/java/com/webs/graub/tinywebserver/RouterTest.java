@@ -0,0 +1,128 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Map;
+
+import org.junit.*;
+
+public class RouterTest {
+
+	/**
+	 * Content that tells which route created it, and with what parameters
+	 */
+	static class RouteContent implements OutContent, InContent {
+		String mRoute;
+		Map<String, String> mParams;
+		RouteContent(String route, Map<String, String> params) {
+			this.mRoute = route;
+			this.mParams = params;
+		}
+		@Override
+		public int getDataSize() { return 0; }
+		@Override
+		public String getMimetype() { return "text/plain"; }
+		@Override
+		public void out(OutputStream stream) {}
+		@Override
+		public void in(InputStream in) {}
+	}
+
+	static Router.ContentFactory factory(final String route) {
+		return new Router.ContentFactory() {
+			@Override
+			public Content create(URI uri, Map<String, String> params) {
+				return new RouteContent(route, params);
+			}
+		};
+	}
+
+	static Router mRouter = new Router()
+			.get("/", factory("index"))
+			.get("/users", factory("users"))
+			.get("/users/{id}", factory("user"))
+			.put("/users/{id}", factory("user upload"))
+			.get("/users/me", factory("me"))
+			.get("/users/{id}/posts/{post}", factory("post"))
+			.get("/users/admin/stats", factory("stats"))
+			.get("/static/*", factory("static"))
+			.get("/static/special/file", factory("special"));
+
+	static RouteContent route(String method, String path) {
+		return (RouteContent)mRouter.getContent(method, URI.create(path));
+	}
+
+	/**
+	 * Static segments, parameters and their precedence
+	 */
+	@Test
+	public void testRoutes() {
+		assertEquals("index", route(Http.GET, "/").mRoute);
+		assertEquals("users", route(Http.GET, "/users/").mRoute);
+		assertEquals("me", route(Http.GET, "/users/me").mRoute);
+		RouteContent user = route(Http.GET, "/users/42");
+		assertEquals("user", user.mRoute);
+		assertEquals("42", user.mParams.get("id"));
+		RouteContent post = route(Http.HEAD, "/users/42/posts/7");
+		assertEquals("post", post.mRoute);
+		assertEquals("42", post.mParams.get("id"));
+		assertEquals("7", post.mParams.get("post"));
+		assertNull(route(Http.GET, "/users/42/comments"));
+		assertNull(route(Http.GET, "/nothing"));
+	}
+
+	/**
+	 * A static segment that leads to no route does not hide the parameter
+	 * beside it
+	 */
+	@Test
+	public void testStaticDeadEnd() {
+		assertEquals("stats", route(Http.GET, "/users/admin/stats").mRoute);
+		RouteContent admin = route(Http.GET, "/users/admin");
+		assertEquals("user", admin.mRoute);
+		assertEquals("admin", admin.mParams.get("id"));
+		RouteContent post = route(Http.GET, "/users/admin/posts/3");
+		assertEquals("post", post.mRoute);
+		assertEquals("admin", post.mParams.get("id"));
+		assertEquals("3", post.mParams.get("post"));
+		assertEquals("me", route(Http.GET, "/users/me/posts/1").mParams.get("id"));
+	}
+
+	/**
+	 * The wildcard takes the rest of the path, also from a dead end below
+	 */
+	@Test
+	public void testWildcard() {
+		assertEquals("a/b.css", route(Http.GET, "/static/a/b.css").mParams.get("*"));
+		assertEquals("", route(Http.GET, "/static").mParams.get("*"));
+		assertEquals("special", route(Http.GET, "/static/special/file").mRoute);
+		RouteContent other = route(Http.GET, "/static/special/other");
+		assertEquals("static", other.mRoute);
+		assertEquals("special/other", other.mParams.get("*"));
+	}
+
+	/**
+	 * Routes by method, and conflicting patterns
+	 */
+	@Test
+	public void testMethods() {
+		assertEquals("user upload", route(Http.PUT, "/users/42").mRoute);
+		assertEquals("42", route(Http.PUT, "/users/42").mParams.get("id"));
+		try {
+			route(Http.POST, "/users/42");
+			fail("no exception");
+		} catch (HttpStatus status) {
+			assertEquals(405, status.getStatusCode());
+		}
+		try {
+			new Router().get("/a/{x}", factory("x")).get("/a/{y}/b", factory("y"));
+			fail("no exception");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+	}
+
+}
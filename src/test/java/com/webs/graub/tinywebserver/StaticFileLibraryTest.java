@@ -0,0 +1,214 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.util.HashMap;
+
+import org.junit.*;
+
+public class StaticFileLibraryTest {
+
+	static final int PORT = 27888;
+	static File mRoot;
+	static StaticFileLibrary mLibrary;
+	static Server mServer;
+
+	/**
+	 * Starts the server on a temporary directory tree
+	 */
+	@BeforeClass
+	public static void startServer() throws IOException, InterruptedException {
+		mRoot = File.createTempFile("tinywebserver", "");
+		mRoot.delete();
+		mRoot.mkdir();
+		new File(mRoot, "sub").mkdir();
+		write(new File(mRoot, "index.html"), "<html>index</html>".getBytes());
+		write(new File(mRoot, "hello.txt"), "hello".getBytes());
+		write(new File(mRoot, "empty.txt"), new byte[0]);
+		write(new File(mRoot, "sub/big.bin"), new byte[4000]);
+		mLibrary = new StaticFileLibrary(mRoot, 10000);
+		mServer = new Server(mLibrary, PORT);
+		mServer.start();
+		Thread.sleep(1000);
+		assertTrue(mServer.isAlive());
+	}
+
+	@AfterClass
+	public static void stopServer() throws InterruptedException {
+		mServer.stopServer();
+		mLibrary.close();
+		Thread.sleep(1000);
+		assertFalse(mServer.isAlive());
+		new File(mRoot, "sub/big.bin").delete();
+		new File(mRoot, "sub/new.txt").delete();
+		new File(mRoot, "sub").delete();
+		new File(mRoot, "index.html").delete();
+		new File(mRoot, "hello.txt").delete();
+		new File(mRoot, "empty.txt").delete();
+		mRoot.delete();
+	}
+
+	/**
+	 * Files and directory indexes are served with mimetype and Content-Length
+	 */
+	@Test
+	public void testGetFiles() throws IOException {
+		HashMap<String,String> headers = new HashMap<String,String>();
+		assertEquals("hello", new String(get("/hello.txt", headers)));
+		assertEquals("text/plain", headers.get("Content-Type"));
+		assertEquals("5", headers.get("Content-Length"));
+
+		headers.clear();
+		assertEquals("<html>index</html>", new String(get("/", headers)));
+		assertEquals("text/html", headers.get("Content-Type"));
+
+		headers.clear();
+		assertEquals(4000, get("/sub/big.bin", headers).length);
+		assertEquals("application/octet-stream", headers.get("Content-Type"));
+	}
+
+	/**
+	 * An empty file is sent with "Content-Length: 0", also to HTTP/1.0
+	 * clients, which can not take chunked encoding
+	 */
+	@Test
+	public void testEmptyFile() throws IOException {
+		HashMap<String,String> headers = new HashMap<String,String>();
+		assertEquals(0, get("/empty.txt", headers).length);
+		assertEquals("0", headers.get("Content-Length"));
+		assertNull(headers.get("Transfer-Encoding"));
+		assertEquals(0, new FileRegion(new File(mRoot, "empty.txt"), "text/plain").getContentLength());
+
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write("GET /empty.txt HTTP/1.0\n\n");
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		assertTrue(Util.readLine(in).contains("200 OK"));
+		headers.clear();
+		Util.readHeaders(in, headers);
+		assertEquals("0", headers.get("Content-Length"));
+		assertEquals(-1, in.read());
+		s.close();
+	}
+
+	/**
+	 * Cached files go out from their buffers in both engines, also in
+	 * parts; no file is cached that a buffer can not hold
+	 */
+	@Test
+	public void testCachedFileSent() throws IOException, InterruptedException {
+		byte[] hello = get("/hello.txt", new HashMap<String,String>());
+		Server nio = new Server(mLibrary, PORT+1, Server.Engine.NIO);
+		nio.start();
+		Thread.sleep(500);
+		try {
+			Socket s = new Socket(InetAddress.getLocalHost(), PORT+1);
+			OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+			writer.write("GET /hello.txt HTTP/1.1\nHost: 127.0.0.1\n\n"
+					+ "GET /hello.txt HTTP/1.1\nHost: 127.0.0.1\nRange: bytes=1-3\nConnection: close\n\n");
+			writer.flush();
+			BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+			HashMap<String,String> headers = new HashMap<String,String>();
+			assertTrue(Util.readLine(in).contains("200 OK"));
+			Util.readHeaders(in, headers);
+			assertArrayEquals(hello, Util.readContent(in, headers));
+			headers.clear();
+			assertTrue(Util.readLine(in).contains("206 Partial Content"));
+			Util.readHeaders(in, headers);
+			assertEquals("ell", new String(Util.readContent(in, headers)));
+			s.close();
+		} finally {
+			nio.stopServer();
+		}
+		StaticFileLibrary huge = new StaticFileLibrary(mRoot, 16L*1024*1024*1024);
+		assertTrue(huge.mMaxEntrySize <= Integer.MAX_VALUE);
+		huge.close();
+	}
+
+	/**
+	 * Paths outside the root are forbidden, missing files are not found
+	 */
+	@Test
+	public void testBadPaths() throws IOException {
+		try {
+			mLibrary.getContent(URI.create("/sub/../../secret"));
+			fail("no exception");
+		} catch (HttpStatus status) {
+			assertEquals(403, status.getStatusCode());
+		}
+		assertNull(mLibrary.getContent(URI.create("/nothing.txt")));
+	}
+
+	/**
+	 * The cache stays within its budget, and files too big for it are
+	 * sent as file regions
+	 */
+	@Test
+	public void testCacheBudget() throws IOException {
+		write(new File(mRoot, "sub/new.txt"), new byte[2000]);
+		assertTrue(mLibrary.getContent(URI.create("/sub/big.bin")) instanceof FileRegionContent);
+		for (int i=0; i<3; ++i) {
+			assertTrue(mLibrary.getContent(URI.create("/sub/new.txt")) instanceof StaticFileLibrary.CachedFile);
+			mLibrary.getContent(URI.create("/hello.txt"));
+			mLibrary.getContent(URI.create("/"));
+		}
+		assertTrue(mLibrary.getCachedBytes() <= 10000);
+		assertTrue(mLibrary.getCachedBytes() > 0);
+	}
+
+	/**
+	 * A changed file is read again after the watcher notices the change
+	 */
+	@Test
+	public void testFileChanged() throws IOException, InterruptedException {
+		File file = new File(mRoot, "hello.txt");
+		assertEquals("hello", new String(content("/hello.txt")));
+		write(file, "hello again".getBytes());
+		String text = null;
+		for (int i=0; i<100; ++i) {
+			text = new String(content("/hello.txt"));
+			if (text.equals("hello again")) break;
+			Thread.sleep(100);
+		}
+		assertEquals("hello again", text);
+		write(file, "hello".getBytes());
+	}
+
+	private static byte[] content(String path) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		((OutContent)mLibrary.getContent(URI.create(path))).out(out);
+		return out.toByteArray();
+	}
+
+	private static byte[] get(String path, HashMap<String,String> headers) throws IOException {
+		String req = "GET " + path + " HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n";
+		Socket s = new Socket(InetAddress.getLocalHost(), PORT);
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		assertTrue(resp.contains("200 OK"));
+		Util.readHeaders(in, headers);
+		byte[] content = Util.readContent(in, headers);
+		s.close();
+		return content;
+	}
+
+	private static void write(File file, byte[] data) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(data);
+		out.close();
+	}
+
+}
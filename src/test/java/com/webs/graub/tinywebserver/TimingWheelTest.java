@@ -0,0 +1,77 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+import org.junit.*;
+
+public class TimingWheelTest {
+
+	static class Recorder extends TimingWheel.Timeout {
+		String mName;
+		ArrayList<String> mExpired;
+		Recorder(String name, ArrayList<String> expired) {
+			this.mName = name;
+			this.mExpired = expired;
+		}
+		@Override
+		void expired() {
+			mExpired.add(mName);
+		}
+	}
+
+	/**
+	 * Timeouts expire on their tick, also those further away than one
+	 * turn of the wheel, and not when cancelled or rescheduled
+	 */
+	@Test
+	public void testExpiry() {
+		TimingWheel wheel = new TimingWheel(10, 8);
+		ArrayList<String> expired = new ArrayList<String>();
+		Recorder a = new Recorder("a", expired);
+		Recorder b = new Recorder("b", expired);
+		Recorder c = new Recorder("c", expired);
+		Recorder d = new Recorder("d", expired);
+		wheel.schedule(a, 30);   // 3 ticks
+		wheel.schedule(b, 25);   // rounded up to 3 ticks
+		wheel.schedule(c, 200);  // 20 ticks, more than two turns
+		wheel.schedule(d, 30);
+		wheel.cancel(d);
+		wheel.advance();
+		wheel.advance();
+		assertTrue(expired.isEmpty());
+		wheel.schedule(b, 20);   // moved one tick further
+		wheel.advance();
+		assertEquals("[a]", expired.toString());
+		wheel.advance();
+		assertEquals("[a, b]", expired.toString());
+		for (int i = 4; i < 19; ++i) wheel.advance();
+		assertEquals(2, expired.size());
+		wheel.advance();
+		assertEquals("[a, b, c]", expired.toString());
+		for (int i = 0; i < 30; ++i) wheel.advance();
+		assertEquals(3, expired.size());
+		assertEquals(50, wheel.getTicks());
+	}
+
+	/**
+	 * A timeout may schedule itself again when it expires
+	 */
+	@Test
+	public void testRescheduleOnExpiry() {
+		final TimingWheel wheel = new TimingWheel(10, 4);
+		final ArrayList<String> expired = new ArrayList<String>();
+		TimingWheel.Timeout repeating = new TimingWheel.Timeout() {
+			@Override
+			void expired() {
+				expired.add("tick " + wheel.getTicks());
+				if (expired.size() < 3) wheel.schedule(this, 40);
+			}
+		};
+		wheel.schedule(repeating, 40);
+		for (int i = 0; i < 20; ++i) wheel.advance();
+		assertEquals("[tick 4, tick 8, tick 12]", expired.toString());
+	}
+
+}
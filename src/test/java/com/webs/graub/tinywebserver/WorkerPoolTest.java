@@ -0,0 +1,148 @@
+package com.webs.graub.tinywebserver;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.*;
+
+public class WorkerPoolTest {
+
+
+	public static final int PORT = 27888;
+	static Library mDummyLibrary = new MyLibrary();
+	static Server mServer;
+	static WorkerPool mPool;
+
+
+	/**
+	 * Starts the server with a pool of one thread and a queue of one
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@BeforeClass
+	public static void startServer() throws IOException, InterruptedException {
+		mPool = new WorkerPool(1, 1, 1);
+		mServer = new Server(mDummyLibrary, PORT);
+		mServer.setExecutor(mPool);
+		mServer.start();
+		Thread.sleep(1000);
+		assertTrue(mServer.isAlive());
+	}
+
+	/**
+	 * Terminate the server after all tests run
+	 * @throws InterruptedException
+	 */
+	@AfterClass
+	public static void stopServer() throws InterruptedException {
+		mServer.stopServer();
+		Thread.sleep(1000);
+		assertFalse(mServer.isAlive());
+		mPool.shutdown();
+	}
+
+	/**
+	 * When the thread and the queue are taken, the next connection is
+	 * answered "503 Service Unavailable" with Retry-After
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testSaturatedServerAnswers503() throws IOException, InterruptedException {
+		// first connection keeps the only thread, second one waits in queue
+		Socket busy = new Socket(InetAddress.getLocalHost(), PORT);
+		String resp = get(busy, "GET /normal HTTP/1.1\nHost: 127.0.0.1\n\n");
+		assertTrue(resp.contains("200 OK"));
+		Socket queued = new Socket(InetAddress.getLocalHost(), PORT);
+		Thread.sleep(200);
+
+		Socket rejected = new Socket(InetAddress.getLocalHost(), PORT);
+		BufferedInputStream in = new BufferedInputStream(rejected.getInputStream());
+		resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		assertTrue(resp.contains("503 Service Unavailable"));
+		assertEquals("1", headers.get("Retry-After"));
+		rejected.close();
+
+		// once the first connection ends, the queued one is served
+		get(busy, "GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n");
+		busy.close();
+		resp = get(queued, "GET /normal HTTP/1.1\nHost: 127.0.0.1\nConnection: close\n\n");
+		assertTrue(resp.contains("200 OK"));
+		queued.close();
+	}
+
+	/**
+	 * The pool grows when tasks wait, up to its maximum
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testPoolGrowsAndRejects() throws InterruptedException {
+		WorkerPool pool = new WorkerPool(1, 3, 2, 10, 1000);
+		final CountDownLatch release = new CountDownLatch(1);
+		Runnable blocker = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException ex) {
+					// end
+				}
+			}
+		};
+		for (int i=0; i<5; ++i) {
+			pool.execute(blocker);
+			Thread.sleep(50);
+		}
+		assertEquals(3, pool.getThreadCount());
+		try {
+			pool.execute(blocker);
+			fail("saturated pool should reject");
+		} catch (RejectedExecutionException ex) {
+			// expected
+		}
+		release.countDown();
+		pool.shutdown();
+	}
+
+	private String get(Socket s, String req) throws IOException {
+		OutputStreamWriter writer = new OutputStreamWriter(s.getOutputStream());
+		writer.write(req);
+		writer.flush();
+		BufferedInputStream in = new BufferedInputStream(s.getInputStream());
+		String resp = Util.readLine(in);
+		HashMap<String,String> headers = new HashMap<String,String>();
+		Util.readHeaders(in, headers);
+		Util.readContent(in, headers);
+		return resp;
+	}
+
+	/**
+	 * A pool without threads starts one for the first task right away,
+	 * not only once the task has waited for the target time
+	 * @throws InterruptedException
+	 */
+	@Test
+	public void testFirstTaskAfterIdle() throws InterruptedException {
+		WorkerPool pool = new WorkerPool(0, 2, 10, 60000, 60000);
+		final CountDownLatch done = new CountDownLatch(1);
+		pool.execute(new Runnable() {
+			@Override
+			public void run() {
+				done.countDown();
+			}
+		});
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		pool.shutdown();
+	}
+
+}